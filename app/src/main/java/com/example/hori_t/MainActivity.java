@@ -29,6 +29,7 @@ import com.example.quiz_lib.QuizException;
 import com.example.quiz_lib.QuizGuestManager;
 import com.example.quiz_lib.QuizHostManager;
 import com.example.quiz_lib.QuizPlayer;
+import com.sky.hori_t.util.EventLoopScheduler;
 import com.sky.hori_t.util.Log;
 
 import java.util.ArrayList;
@@ -190,6 +191,15 @@ public class MainActivity extends AppCompatActivity
         mIncorrectSoundId = mSoundPool.load(this, R.raw.incorrect1, 0);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing()) {
+            // 対戦毎には終了せず使い回し、アプリの終了時にまとめて終了する
+            EventLoopScheduler.getInstance().shutdown();
+        }
+    }
+
     @Override
     public void onRequestPermissionsResult(
             int requestCode,
@@ -243,6 +253,8 @@ public class MainActivity extends AppCompatActivity
                 mType = PlayerType.Guest;
                 mGuestManager = new QuizGuestManager(
                         this, Looper.getMainLooper(), mGuestCallback);
+                // ホストに直接接続できた場合は、満員で接続できないゲストを中継する
+                mGuestManager.enableRelay(this);
                 mGuestManager.discoverHost();
 
                 bundle = new Bundle();
@@ -1,6 +1,5 @@
 package com.example.ble_communication_lib;
 
-import android.bluetooth.BluetoothDevice;
 import android.support.annotation.NonNull;
 import android.support.test.InstrumentationRegistry;
 import android.util.Log;
@@ -11,9 +10,9 @@ public class BleDataCommunicationClientTest {
     private final BleDataCommunicationClient.Callback mCallback =
             new BleDataCommunicationClient.Callback() {
         @Override
-        public void onDiscovered(@NonNull BluetoothDevice device) {
-            Log.d("通信Lib", "[onDiscovered]" + device);
-            Thread thread = new Thread(() -> mClient.connect(device));
+        public void onDiscovered(@NonNull DiscoveryResult result) {
+            Log.d("通信Lib", "[onDiscovered]" + result);
+            Thread thread = new Thread(() -> mClient.connect(result.getDevice()));
             thread.start();
         }
 
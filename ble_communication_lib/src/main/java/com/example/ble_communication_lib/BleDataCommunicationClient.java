@@ -11,22 +11,25 @@ import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
+import android.os.Build;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import com.sky.hori_t.util.EventLoopScheduler;
+import com.sky.hori_t.util.StateMachine;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
@@ -42,10 +45,10 @@ public class BleDataCommunicationClient {
      */
     public interface Callback {
         /**
-         * サーバ側端末発見通知
-         * @param device    発見したサーバ側端末の端末情報
+         * サーバ側端末発見通知。スキャン応答の待機状態が変わった場合も通知します。
+         * @param result    発見したサーバ側端末の情報
          */
-        void onDiscovered(@NonNull BluetoothDevice device);
+        void onDiscovered(@NonNull DiscoveryResult result);
 
         /**
          * サーバ側端末探索終了通知
@@ -64,7 +67,7 @@ public class BleDataCommunicationClient {
 
         /**
          * データ受信通知
-         * @param data  受信したデータ
+         * @param data  受信したデータ。通信ライブラリが使い回すため、このメソッドの中でのみ参照してください。
          */
         void onDataReceived(@NonNull byte[] data);
 
@@ -75,16 +78,34 @@ public class BleDataCommunicationClient {
         void onError(@NonNull BleDataCommunicationException exception);
     }
 
+    /**
+     * サーバ側端末へのデータの書き込み方式です。
+     */
+    public enum WriteMode {
+        /**
+         * ブロック毎にサーバ側端末の応答を待ちます。
+         */
+        WithResponse,
+        /**
+         * 応答無しで書き込み、サーバ側端末からはデータ毎に受信確認を受け取ります。
+         * 受信確認待ちのブロック数が上限に達するまで、続けて書き込みます。
+         */
+        WithoutResponse,
+    }
+
     private enum State {
         Stopped,
         Scanning,
+        // 探索せずに直前のサーバ側端末へ接続中
+        Reconnecting,
         Connecting,
         Connected,
         Stopping,
     }
 
+    // 遷移はハンドラスレッドのみ。呼び出し元スレッドからは待たずに読む
     @NonNull
-    private State mState = State.Stopped;
+    private final StateMachine<State> mState;
     @Nullable
     private BleDataCommunicationException mException;
 
@@ -100,7 +121,7 @@ public class BleDataCommunicationClient {
     private final ScanCallback mScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            mHandler.post(() -> _onScanResult(result.getDevice()));
+            mHandler.post(() -> _onScanResult(result));
         }
 
         @Override
@@ -108,10 +129,21 @@ public class BleDataCommunicationClient {
             // TODO
         }
     };
+    // 発見したサーバ側端末。電波強度の平滑値と待機状態を持つ
     @NonNull
-    private final List<BluetoothDevice> mScannedDevice = new ArrayList<>();
+    private final DiscoveryCache<BluetoothDevice> mDiscoveryCache =
+            new DiscoveryCache<>(Constants.DISCOVERY_EXPIRE_MS);
+    // 最も良いサーバ側端末への自動接続中
+    private boolean isJoining = false;
+    // 自動接続の待ち時間が過ぎ、次に見つけた接続できる端末へ接続する
+    private boolean isJoinWindowElapsed = false;
+    @NonNull
+    private final Runnable mJoinWindowTask = this::onJoinWindowElapsed;
     @Nullable
     private BluetoothGatt mGatt;
+    // 直前に接続したサーバ側端末。再接続に使う
+    @Nullable
+    private BluetoothDevice mLastDevice;
     @NonNull
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
@@ -155,6 +187,15 @@ public class BleDataCommunicationClient {
             }
         }
 
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+            if (BluetoothGatt.GATT_SUCCESS == status) {
+                mHandler.post(() -> _onReliableWriteCompleted());
+            } else {
+                // TODO
+            }
+        }
+
         @Override
         public void onCharacteristicChanged(
                 BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
@@ -162,24 +203,49 @@ public class BleDataCommunicationClient {
             mHandler.post(() -> _onCharacteristicChanged(data));
         }
 
-//        @Override
-//        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-//            if (BluetoothGatt.GATT_SUCCESS == status) {
-//
-//            } else {
-//
-//            }
-//        }
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (BluetoothGatt.GATT_SUCCESS == status) {
+                mHandler.post(() -> _onMtuChanged(mtu));
+            } else {
+                // 既定のサイズのまま通知を有効にする
+                mHandler.post(() -> _onMtuChanged(Constants.DEFAULT_MTU));
+            }
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            mHandler.post(() -> mLinkPolicy.onPhyUpdated(txPhy, rxPhy, status));
+        }
     };
     @Nullable
     private BluetoothGattCharacteristic mCharacteristic;
+    // 論理チャネル毎の送信待ちのデータ。優先度の高いチャネルからブロックを切り出して送る
+    @NonNull
+    private final ChannelScheduler mScheduler =
+            new ChannelScheduler(Constants.DEFAULT_BLOCK_SIZE);
+    // 信頼性のある書き込みで送信中のデータ。書き切るまで他のチャネルは割り込ませない
+    @NonNull
+    private final Fragmenter mReliableFragmenter = new Fragmenter();
+    private boolean isReliableWriting = false;
     @NonNull
-    private final LinkedList<byte[]> mSendQueue = new LinkedList<>();
+    private WriteMode mWriteMode = WriteMode.WithResponse;
+    // 応答無し書き込み時の論理チャネル毎の受信確認待ち
+    @NonNull
+    private final CreditQueue[] mCreditQueues = new CreditQueue[Channel.count()];
+    private int mNumOfInFlightBlock = 0;
     // 1回の送信で送れるデータサイズのデフォルト値。MTU変更により設定可能。
     private int mBlockSize = Constants.DEFAULT_BLOCK_SIZE;
+    // 交渉したMTU。挨拶でサーバ側端末に伝える
+    private int mMtu = Constants.DEFAULT_MTU;
+    // サーバ側端末から挨拶の応答を受け、接続を通知したか
+    private boolean isWelcomed = false;
     private boolean isWriting = false;
-    @Nullable
-    private ReceivePacketLinker mLinker = new ReceivePacketLinker();
+    // 論理チャネル毎の結合処理
+    @NonNull
+    private final PacketReassembler[] mReassemblers = new PacketReassembler[Channel.count()];
+    @NonNull
+    private final LinkPolicy mLinkPolicy = new LinkPolicy();
 
     /**
      * コンストラクタ
@@ -201,27 +267,35 @@ public class BleDataCommunicationClient {
 
         mScanner = manager.getAdapter().getBluetoothLeScanner();
 
-        // 自スレッド生成
-        HandlerThread handlerThread = new HandlerThread(getClass().getSimpleName());
-        handlerThread.start();
-        mHandler = new Handler(handlerThread.getLooper());
+        // 部品毎にスレッドを作らず、共有のイベントループに割り当てる
+        Looper looper = EventLoopScheduler.getInstance().getLooper(EventLoopScheduler.Loop.Io);
+        mHandler = new Handler(looper);
+        mState = new StateMachine<>(State.class, State.Stopped, looper.getThread())
+                .allow(State.Stopped, State.Scanning, State.Reconnecting)
+                .allow(State.Scanning, State.Connecting, State.Stopped)
+                .allow(State.Reconnecting, State.Connecting, State.Stopping, State.Stopped)
+                .allow(State.Connecting, State.Connected, State.Stopping, State.Stopped)
+                .allow(State.Connected, State.Stopping, State.Stopped)
+                .allow(State.Stopping, State.Stopped);
 
         // コールバックインスタンス生成
         Handler callbackHandler;
         if (dispatchQueueLooper == null) {
-            HandlerThread callbackThread =
-                    new HandlerThread(getClass().getSimpleName() + "Callback");
-            callbackThread.start();
-            callbackHandler = new Handler(callbackThread.getLooper());
+            callbackHandler = new Handler(EventLoopScheduler.getInstance()
+                    .getLooper(EventLoopScheduler.Loop.Callback));
         } else {
             callbackHandler = new Handler(dispatchQueueLooper);
         }
         mCallback = new CallbackExecutor(callback, callbackHandler);
+        for (int cnt = 0; Channel.count() > cnt; cnt++) {
+            mCreditQueues[cnt] = new CreditQueue();
+            mReassemblers[cnt] = new PacketReassembler();
+        }
     }
 
     /**
      * サーバ側端末の探索を開始します。<br>
-     * サーバ側端末を検出すると{@link Callback#onDiscovered(BluetoothDevice)}が通知されます。
+     * サーバ側端末を検出すると{@link Callback#onDiscovered(DiscoveryResult)}が通知されます。
      * @throws IllegalStateException    既に検索を開始しているか、サーバ側端末との接続が
      *                                   確立している場合に投げられます。
      */
@@ -243,6 +317,42 @@ public class BleDataCommunicationClient {
         mHandler.post(this::_stopDiscovery);
     }
 
+    /**
+     * 接続できるサーバ側端末のうち、最も電波の強い端末へ自動で接続します。<br>
+     * 低遅延の設定で探索し、指定した時間が経った時点で見つけている中から最も良い端末へ接続します。
+     * その時点で見つけていなければ、次に見つけた接続できる端末へ接続します。
+     * 探索中に呼び出した場合は、それまでに見つけた端末も候補になります。
+     * 接続が完了すると{@link Callback#onConnected()}が通知されます。
+     * @param windowMs  端末を見比べる時間(ms)
+     * @throws IllegalStateException    サーバ側端末との接続が確立している場合に投げられます。
+     */
+    public void joinBest(long windowMs) throws IllegalStateException {
+        State state = getState();
+        if ((State.Stopped != state) && (State.Scanning != state)) {
+            throw new IllegalStateException("Bad state.");
+        }
+        mHandler.post(() -> _joinBest(windowMs));
+    }
+
+    /**
+     * 見つけているサーバ側端末を返します。
+     * @return  見つけている端末。平滑化した電波強度の強い順
+     */
+    @NonNull
+    public List<DiscoveryResult> getDiscoveryResults() {
+        Mutex<List<DiscoveryResult>> mutex = new Mutex<>();
+        mHandler.post(() -> {
+            mDiscoveryCache.expire(SystemClock.elapsedRealtime());
+            List<DiscoveryResult> results = new ArrayList<>();
+            for (DiscoveryCache.Entry<BluetoothDevice> entry
+                    : mDiscoveryCache.getRankedEntries()) {
+                results.add(toDiscoveryResult(entry));
+            }
+            mutex.unlock(results);
+        });
+        return mutex.lock();
+    }
+
     /**
      * 引数で指定したサーバ側端末へ通信を接続します。<br>
      * 接続が完了すると{@link Callback#onConnected()}が通知されます。
@@ -264,24 +374,90 @@ public class BleDataCommunicationClient {
     }
 
     /**
-     * サーバ側端末にデータを送信します。<br>
+     * 直前に接続していたサーバ側端末へ、探索せずに再接続します。<br>
+     * 一時的な切断から早く復帰するために使います。
+     * 接続が完了すると{@link Callback#onConnected()}が通知されます。
+     * 接続できなかった場合は{@link Callback#onError(BleDataCommunicationException)}が通知されます。
+     * @throws IllegalStateException    切断が完了していないか、1度も接続していない場合に投げられます。
+     */
+    public void reconnect() throws IllegalStateException {
+        if (State.Stopped != getState()) {
+            throw new IllegalStateException("Bad state.");
+        }
+        Mutex<IllegalStateException> mutex = new Mutex<>();
+        mHandler.post(() -> _reconnect(mutex));
+        IllegalStateException exception = mutex.lock();
+        if (null != exception) {
+            throw exception;
+        }
+    }
+
+    /**
+     * サーバ側端末にデータを{@link Channel#Bulk}で送信します。<br>
      *
      * @param data  送信するデータ
      * @throws IllegalStateException    接続が確立していない段階で呼び出した場合に投げられます。
+     * @throws IllegalArgumentException 受信側が結合できる大きさを超える場合に投げられます。
      */
     public void sendData(@NonNull byte[] data) throws IllegalStateException {
+        sendData(data, Channel.Bulk);
+    }
+
+    /**
+     * サーバ側端末にデータを指定した論理チャネルで送信します。<br>
+     * 優先度の高いチャネルのデータは、送信途中の低いチャネルのデータより先に届きます。
+     * @param data      送信するデータ
+     * @param channel   送信する論理チャネル
+     * @throws IllegalStateException    接続が確立していない段階で呼び出した場合に投げられます。
+     * @throws IllegalArgumentException 受信側が結合できる大きさを超える場合に投げられます。
+     */
+    public void sendData(@NonNull byte[] data, @NonNull Channel channel)
+            throws IllegalStateException {
         if (State.Connected != getState()) {
             throw new IllegalStateException("Bad state.");
         }
-        mHandler.post(() -> _sendData(data));
+        if (Constants.MAX_DATA_SIZE < data.length) {
+            throw new IllegalArgumentException("Data is too large. Length: " + data.length);
+        }
+        mHandler.post(() -> _sendData(data, channel));
     }
 
     /**
-     * サーバ側端末との通信接続を切断します。<br>
+     * サーバ側端末へのデータの書き込み方式を設定します。<br>
+     * 次に送信するデータから反映されます。
+     * @param writeMode 書き込み方式
+     */
+    public void setWriteMode(@NonNull WriteMode writeMode) {
+        mHandler.post(() -> mWriteMode = writeMode);
+    }
+
+    /**
+     * 接続の通信間隔とPHYの方針を設定します。<br>
+     * 接続中であればすぐに要求し、接続前であれば接続した時点で要求します。
+     * @param linkMode  方針
+     */
+    public void setLinkMode(@NonNull LinkMode linkMode) {
+        mHandler.post(() -> mLinkPolicy.setMode(linkMode));
+    }
+
+    /**
+     * 接続の通信パラメータを返します。
+     * @return  設定している方針と交渉結果
+     */
+    @NonNull
+    public LinkParameters getLinkParameters() {
+        Mutex<LinkParameters> mutex = new Mutex<>();
+        mHandler.post(() -> mutex.unlock(mLinkPolicy.getParameters()));
+        return mutex.lock();
+    }
+
+    /**
+     * サーバ側端末との通信接続を切断します。再接続中であれば中止します。<br>
      * 切断が完了すると{@link Callback#onDisconnected()}が通知されます。
      */
     public void disconnect() throws IllegalStateException {
-        if (State.Connected != getState()) {
+        State state = getState();
+        if ((State.Connected != state) && (State.Reconnecting != state)) {
             throw new IllegalStateException("Bad state.");
         }
         mHandler.post(this::_disconnect);
@@ -294,59 +470,142 @@ public class BleDataCommunicationClient {
 //    @Nullable
 //    public BluetoothDevice getMyDeviceInfo() {}
 
+    @NonNull
     private State getState() {
-        State state;
-//        if (Thread.currentThread() == mHandler.getLooper().getThread()) {
-            state = mState;
-//        } else {
-//            Mutex<State> mutex = new Mutex<>();
-//            mHandler.post(() -> mutex.unlock(mState));
-//            state = mutex.lock();
-//        }
-        return state;
+        return mState.get();
     }
 
     private void _startDiscovery() {
-        List<ScanFilter> scanFilters = new ArrayList<>();
-        scanFilters.add(new ScanFilter.Builder().setServiceUuid(
-                new ParcelUuid(UUID.fromString(Constants.Uuids.ADVERTISE))).build());
-        ScanSettings scanSettings = new ScanSettings.Builder().build();
-        mScanner.startScan(scanFilters, scanSettings, mScanCallback);
-        mState = State.Scanning;
+        if (State.Stopped != getState()) {
+            return;
+        }
+        startScan(new ScanSettings.Builder().build());
+        mState.moveTo(State.Scanning);
     }
 
     private void _stopDiscovery() {
+        if (State.Scanning != getState()) {
+            return;
+        }
+        cancelJoin();
         mScanner.stopScan(mScanCallback);
-        mState = State.Stopped;
+        mState.moveTo(State.Stopped);
         mCallback.onDiscoveryStopped();
     }
 
-    private void _onScanResult(@NonNull BluetoothDevice device) {
-        if ((State.Scanning != getState()) || (mScannedDevice.contains(device))) {
+    private void _joinBest(long windowMs) {
+        if ((State.Stopped != getState()) && (State.Scanning != getState())) {
+            return;
+        }
+        // 接続までの時間を縮めるため、低遅延の設定で探索し直す
+        if (State.Scanning == getState()) {
+            mScanner.stopScan(mScanCallback);
+        }
+        startScan(new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .build());
+        mState.moveTo(State.Scanning);
+        cancelJoin();
+        isJoining = true;
+        mHandler.postDelayed(mJoinWindowTask, windowMs);
+    }
+
+    private void onJoinWindowElapsed() {
+        if (!isJoining || (State.Scanning != getState())) {
             return;
         }
-        mScannedDevice.add(device);
-        mCallback.onDiscovered(device);
+        mDiscoveryCache.expire(SystemClock.elapsedRealtime());
+        DiscoveryCache.Entry<BluetoothDevice> best = mDiscoveryCache.getBest();
+        if (null == best) {
+            isJoinWindowElapsed = true;
+            return;
+        }
+        connectGatt(best.getDevice());
+    }
+
+    private void cancelJoin() {
+        mHandler.removeCallbacks(mJoinWindowTask);
+        isJoining = false;
+        isJoinWindowElapsed = false;
+    }
+
+    private void startScan(@NonNull ScanSettings scanSettings) {
+        List<ScanFilter> scanFilters = new ArrayList<>();
+        scanFilters.add(new ScanFilter.Builder().setServiceUuid(
+                new ParcelUuid(UUID.fromString(Constants.Uuids.ADVERTISE))).build());
+        mScanner.startScan(scanFilters, scanSettings, mScanCallback);
+    }
+
+    private void _onScanResult(@NonNull ScanResult scanResult) {
+        if (State.Scanning != getState()) {
+            return;
+        }
+        BluetoothDevice device = scanResult.getDevice();
+        LobbyInfo lobbyInfo = null;
+        ScanRecord scanRecord = scanResult.getScanRecord();
+        if (null != scanRecord) {
+            lobbyInfo = LobbyInfo.decode(scanRecord.getServiceData(
+                    new ParcelUuid(UUID.fromString(Constants.Uuids.ADVERTISE))));
+        }
+        long nowMs = SystemClock.elapsedRealtime();
+        mDiscoveryCache.expire(nowMs);
+        String address = device.getAddress();
+        // 同じ端末は待機状態が変わった場合のみ通知する
+        boolean isChanged = mDiscoveryCache.update(
+                address, device, scanResult.getRssi(), lobbyInfo, nowMs);
+        DiscoveryCache.Entry<BluetoothDevice> entry =
+                Objects.requireNonNull(mDiscoveryCache.get(address));
+        if (isChanged) {
+            mCallback.onDiscovered(toDiscoveryResult(entry));
+        }
+        if (isJoinWindowElapsed && entry.isJoinable()) {
+            connectGatt(device);
+        }
+    }
+
+    @NonNull
+    private static DiscoveryResult toDiscoveryResult(
+            @NonNull DiscoveryCache.Entry<BluetoothDevice> entry) {
+        return new DiscoveryResult(
+                entry.getDevice(), entry.getSmoothedRssi(), entry.getLobbyInfo());
     }
 
     private void _connect(
             @NonNull BluetoothDevice device, @NonNull Mutex<IllegalArgumentException> mutex) {
-        if (!mScannedDevice.contains(device)) {
+        mDiscoveryCache.expire(SystemClock.elapsedRealtime());
+        if (null == mDiscoveryCache.get(device.getAddress())) {
             mutex.unlock(new IllegalArgumentException("The device name \"" + device.getName() +
                             "\" has not been discovered."));
             return;
         }
         mutex.unlock(null);
+        connectGatt(device);
+    }
+
+    private void connectGatt(@NonNull BluetoothDevice device) {
+        cancelJoin();
         mScanner.stopScan(mScanCallback);
-        device.connectGatt(mContext, false, mGattCallback);
+        mGatt = device.connectGatt(mContext, false, mGattCallback);
+    }
+
+    private void _reconnect(@NonNull Mutex<IllegalStateException> mutex) {
+        if ((State.Stopped != getState()) || (null == mLastDevice)) {
+            mutex.unlock(new IllegalStateException("Bad state."));
+            return;
+        }
+        mutex.unlock(null);
+        mState.moveTo(State.Reconnecting);
+        // 自動接続はせず、すぐに接続を試みる
+        mGatt = mLastDevice.connectGatt(mContext, false, mGattCallback);
     }
 
     private void onConnected(@NonNull BluetoothGatt gatt) {
-        if (State.Scanning != getState()) {
+        if ((State.Scanning != getState()) && (State.Reconnecting != getState())) {
             return;
         }
-        mState = State.Connecting;
+        mState.moveTo(State.Connecting);
         mGatt = gatt;
+        mLastDevice = gatt.getDevice();
         boolean result = gatt.discoverServices();
         if (!result) {
             // TODO
@@ -371,6 +630,27 @@ public class BleDataCommunicationClient {
             return;
         }
         mCharacteristic = characteristic;
+        // 通知を有効にする前にMTUを広げ、1回で送れるデータサイズを増やす
+        if (!mGatt.requestMtu(Constants.REQUEST_MTU)) {
+            Log.w(getClass().getSimpleName(), "Failed to request MTU.");
+            enableNotification();
+        }
+    }
+
+    private void _onMtuChanged(int mtu) {
+        if (State.Connecting != getState()) {
+            return;
+        }
+        mMtu = mtu;
+        mBlockSize = Constants.getBlockSize(mtu);
+        mScheduler.setBlockSize(mBlockSize);
+        Log.d(getClass().getSimpleName(), "MTU: " + mtu + " Block size: " + mBlockSize);
+        enableNotification();
+    }
+
+    private void enableNotification() {
+        Objects.requireNonNull(mGatt);
+        Objects.requireNonNull(mCharacteristic);
         boolean setResult = mGatt.setCharacteristicNotification(mCharacteristic, true);
         if (!setResult) {
             // TODO
@@ -387,13 +667,85 @@ public class BleDataCommunicationClient {
     }
 
     private void _onDescriptorWrite() {
-        mState = State.Connected;
-        sendData(Constants.CONNECTED_SIGN.getBytes());
+        if (State.Connecting != getState()) {
+            return;
+        }
+        Objects.requireNonNull(mGatt);
+        mState.moveTo(State.Connected);
+        mLinkPolicy.attach(new GattLinkController(mGatt));
+        // 接続の通知はサーバ側端末の応答を受けてから
+        _sendData(new Handshake(Handshake.Kind.Hello, Constants.PROTOCOL_VERSION, mMtu).encode(),
+                Channel.Control);
+    }
+
+    /**
+     * サーバ側端末の挨拶の応答を受け、接続を通知します。通信方式の版が異なれば切断します。
+     * @param payload   最初に受信したデータ
+     */
+    private void onWelcomed(@NonNull ByteBuffer payload) {
+        Handshake welcome = Handshake.decode(payload);
+        if ((null == welcome) || (!welcome.isAcceptable(Handshake.Kind.Welcome))) {
+            // 予期しない切断として通知される
+            Log.w(getClass().getSimpleName(), "Bad welcome.");
+            Objects.requireNonNull(mGatt).disconnect();
+            return;
+        }
+        isWelcomed = true;
         mCallback.onConnected();
     }
 
-    private void _sendData(@NonNull byte[] data) {
-        mSendQueue.addAll(Constants.splitData(data, mBlockSize));
+    private void _sendData(@NonNull byte[] data, @NonNull Channel channel) {
+        if (WriteMode.WithoutResponse == mWriteMode) {
+            mCreditQueues[channel.getId()].mWaitingQueue.add(data);
+            releaseWaitingData();
+            return;
+        }
+        mScheduler.offer(channel, data);
+        startWriting();
+    }
+
+    /**
+     * 受信確認待ちのブロック数が上限を超えない範囲で、待たせているデータを
+     * 優先度の高いチャネルから送信キューに移します。<br>
+     * 上限より大きいデータも、受信確認待ちが無くなれば送ります。
+     */
+    private void releaseWaitingData() {
+        for (int id = 0; mCreditQueues.length > id; id++) {
+            CreditQueue creditQueue = mCreditQueues[id];
+            while (!creditQueue.mWaitingQueue.isEmpty()) {
+                int numOfBlock = Fragmenter.getNumOfBlock(
+                        creditQueue.mWaitingQueue.peek().length, mBlockSize);
+                if ((0 < mNumOfInFlightBlock)
+                        && (Constants.WRITE_WINDOW_SIZE < (mNumOfInFlightBlock + numOfBlock))) {
+                    // 優先度の低いチャネルには追い越させない
+                    startWriting();
+                    return;
+                }
+                mScheduler.offer(
+                        Objects.requireNonNull(Channel.valueOf(id)),
+                        creditQueue.mWaitingQueue.poll());
+                creditQueue.mInFlightQueue.add(numOfBlock);
+                mNumOfInFlightBlock += numOfBlock;
+            }
+        }
+        startWriting();
+    }
+
+    private void _onAcknowledged(@NonNull Channel channel) {
+        // 受信確認はチャネル毎に送った順で届く
+        CreditQueue creditQueue = mCreditQueues[channel.getId()];
+        if (creditQueue.mInFlightQueue.isEmpty()) {
+            Log.w(getClass().getSimpleName(), "Unexpected acknowledgement.");
+            return;
+        }
+        mNumOfInFlightBlock -= creditQueue.mInFlightQueue.poll();
+        releaseWaitingData();
+    }
+
+    private void startWriting() {
+        if (!mScheduler.hasRemaining()) {
+            return;
+        }
         if (isWriting) {
             // TODO ログ
             return;
@@ -403,12 +755,52 @@ public class BleDataCommunicationClient {
     }
 
     private void sendRequest() {
+        Objects.requireNonNull(mGatt);
+        if (isReliableWriting) {
+            if (!mReliableFragmenter.hasRemaining()) {
+                // onReliableWriteCompletedを待って次のデータへ進む
+                boolean executeResult = mGatt.executeReliableWrite();
+                if (!executeResult) {
+                    // TODO
+                }
+                return;
+            }
+            writeBlock(mReliableFragmenter.current());
+            return;
+        }
+        Channel channel = Objects.requireNonNull(mScheduler.select());
+        if (mScheduler.isFirstBlock() && isReliableWriteNeeded(mScheduler.getCurrentData())) {
+            // 大きいデータは1回の信頼性のある書き込みにまとめる。開始できなければ通常の書き込みで送る
+            isReliableWriting = mGatt.beginReliableWrite();
+            if (isReliableWriting) {
+                // 各ブロックは長い書き込みで送られるため、MTUに関わらず最大サイズで切り出す
+                mReliableFragmenter.reset(
+                        mScheduler.takeCurrentData(), channel, Constants.MAX_BLOCK_SIZE);
+                writeBlock(mReliableFragmenter.current());
+                return;
+            }
+        }
+        writeBlock(mScheduler.current());
+    }
+
+    private boolean isReliableWriteNeeded(@NonNull byte[] data) {
+        return (WriteMode.WithResponse == mWriteMode) && (Constants.RELIABLE_WRITE_THRESHOLD
+                < Fragmenter.getNumOfBlock(data.length, mBlockSize));
+    }
+
+    private void writeBlock(@NonNull byte[] block) {
         Objects.requireNonNull(mCharacteristic);
         Objects.requireNonNull(mGatt);
-        boolean setResult = mCharacteristic.setValue(mSendQueue.peek());
+        boolean setResult = mCharacteristic.setValue(block);
         if (!setResult) {
             // TODO
         }
+        // 応答無し書き込みでもonCharacteristicWriteは端末内で送信を受け付けた時点で通知される。
+        // 信頼性のある書き込み中は応答有りで書き込む
+        mCharacteristic.setWriteType(
+                ((WriteMode.WithoutResponse == mWriteMode) && (!isReliableWriting))
+                ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
         boolean writeResult = mGatt.writeCharacteristic(mCharacteristic);
         if (!writeResult) {
             // TODO
@@ -419,8 +811,13 @@ public class BleDataCommunicationClient {
         if (State.Connected != getState()) {
             return;
         }
-        mSendQueue.remove();
-        if (mSendQueue.isEmpty()) {
+        if (isReliableWriting) {
+            mReliableFragmenter.advance();
+            sendRequest();
+            return;
+        }
+        mScheduler.advance();
+        if (!mScheduler.hasRemaining()) {
             // TODO ログ
             isWriting = false;
             return;
@@ -428,28 +825,68 @@ public class BleDataCommunicationClient {
         sendRequest();
     }
 
+    private void _onReliableWriteCompleted() {
+        if (State.Connected != getState()) {
+            return;
+        }
+        isReliableWriting = false;
+        mReliableFragmenter.clear();
+        if (!mScheduler.hasRemaining()) {
+            isWriting = false;
+            return;
+        }
+        sendRequest();
+    }
+
     private void _onCharacteristicChanged(@NonNull byte[] data) {
         if (State.Connected != getState()) {
             return;
         }
-        if (null == mLinker) {
-            mLinker = new ReceivePacketLinker();
+        // 論理チャネル毎に結合する
+        Channel channel = (0 < data.length) ? Channel.valueOf(data[0] & 0xFF) : null;
+        if (null == channel) {
+            Log.w(getClass().getSimpleName(), "Bad channel.");
+            return;
         }
+        PacketReassembler reassembler = mReassemblers[channel.getId()];
         try {
-            mLinker.link(data);
+            if (!reassembler.append(data)) {
+                return;
+            }
         } catch (IOException e) {
             e.printStackTrace();
             // TODO
+            return;
         }
-        if (null != mLinker.getLinkedPacket()) {
-            byte[] receivedData = mLinker.getLinkedPacket();
-            mLinker = null;
-            mCallback.onDataReceived(receivedData);
+        // 長さ0のデータは応答無し書き込みに対する受信確認
+        if (!reassembler.getPayload().hasRemaining()) {
+            _onAcknowledged(channel);
+            return;
         }
+        if (!isWelcomed) {
+            // 最初のデータは挨拶の応答。以降のデータは比較せずに通知する
+            onWelcomed(reassembler.getPayload());
+            return;
+        }
+        // コールバックは別スレッドで実行されるため、使い回すバッファからプールの配列へ複製して渡す
+        mCallback.onDataReceived(reassembler.acquirePayload());
     }
 
     private void _disconnect() {
-        mState = State.Stopping;
+        State state = getState();
+        if ((State.Stopped == state) || (State.Scanning == state) || (State.Stopping == state)) {
+            // 呼び出しから実行までの間に切断された
+            return;
+        }
+        if ((State.Reconnecting == state) && (null != mGatt)) {
+            // 接続前は切断の通知が来ないため、ここで閉じる
+            mGatt.close();
+            mGatt = null;
+            mState.moveTo(State.Stopped);
+            mCallback.onDisconnected();
+            return;
+        }
+        mState.moveTo(State.Stopping);
         if (null != mGatt) {
             mGatt.disconnect();
             return;
@@ -458,14 +895,35 @@ public class BleDataCommunicationClient {
     }
 
     private void onDisconnected() {
-        Objects.requireNonNull(mGatt);
+        if (null == mGatt) {
+            // 再接続を中止して閉じた後の通知
+            return;
+        }
         mGatt.close();
         mGatt = null;
-        mScannedDevice.clear();
-        mSendQueue.clear();
-        mLinker = null;
+        mDiscoveryCache.clear();
+        mLinkPolicy.detach();
+        mScheduler.clear();
+        mReliableFragmenter.clear();
+        for (CreditQueue creditQueue : mCreditQueues) {
+            creditQueue.mWaitingQueue.clear();
+            creditQueue.mInFlightQueue.clear();
+        }
+        mNumOfInFlightBlock = 0;
+        isWriting = false;
+        isReliableWriting = false;
+        for (PacketReassembler reassembler : mReassemblers) {
+            reassembler.release();
+        }
         mCharacteristic = null;
-        if (State.Stopping == getState()) {
+        isWelcomed = false;
+        mMtu = Constants.DEFAULT_MTU;
+        mBlockSize = Constants.DEFAULT_BLOCK_SIZE;
+        mScheduler.setBlockSize(mBlockSize);
+        State state = getState();
+        // 再接続や次の探索ができるよう、停止状態へ戻す
+        mState.moveTo(State.Stopped);
+        if (State.Stopping == state) {
             mCallback.onDisconnected();
         } else {
             errorOccurred(new BleDataCommunicationException(
@@ -478,6 +936,42 @@ public class BleDataCommunicationClient {
         mCallback.onError(mException);
     }
 
+    private static class GattLinkController implements LinkPolicy.LinkController {
+        @NonNull
+        private final BluetoothGatt mGatt;
+
+        GattLinkController(@NonNull BluetoothGatt gatt) {
+            mGatt = gatt;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int connectionPriority) {
+            return mGatt.requestConnectionPriority(connectionPriority);
+        }
+
+        @Override
+        public boolean setPreferredPhy(int phyMask) {
+            // PHYの指定はAndroid 8.0から
+            if (Build.VERSION_CODES.O > Build.VERSION.SDK_INT) {
+                return false;
+            }
+            mGatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+            return true;
+        }
+    }
+
+    /**
+     * 応答無し書き込み時の、1つの論理チャネルの受信確認待ち
+     */
+    private static class CreditQueue {
+        // 受信確認待ちのブロック数が上限に達したため送信を待っているデータ
+        @NonNull
+        private final LinkedList<byte[]> mWaitingQueue = new LinkedList<>();
+        // 受信確認待ちのデータ毎のブロック数
+        @NonNull
+        private final LinkedList<Integer> mInFlightQueue = new LinkedList<>();
+    }
+
     private static class CallbackExecutor implements Callback {
         @NonNull
         private final Callback mCallback;
@@ -490,8 +984,8 @@ public class BleDataCommunicationClient {
         }
 
         @Override
-        public void onDiscovered(@NonNull BluetoothDevice device) {
-            mHandler.post(() -> mCallback.onDiscovered(device));
+        public void onDiscovered(@NonNull DiscoveryResult result) {
+            mHandler.post(() -> mCallback.onDiscovered(result));
         }
 
         @Override
@@ -511,7 +1005,13 @@ public class BleDataCommunicationClient {
 
         @Override
         public void onDataReceived(@NonNull byte[] data) {
-            mHandler.post(() -> mCallback.onDataReceived(data));
+            mHandler.post(() -> {
+                try {
+                    mCallback.onDataReceived(data);
+                } finally {
+                    BufferPool.getShared().release(data);
+                }
+            });
         }
 
         @Override
@@ -519,34 +1019,4 @@ public class BleDataCommunicationClient {
             mHandler.post(() -> mCallback.onError(exception));
         }
     }
-
-    private static class ReceivePacketLinker {
-        @Nullable
-        private byte[] mLinkedPacket;
-        @NonNull
-        private final ByteArrayOutputStream mStream = new ByteArrayOutputStream();
-        private int mDataLen;
-        private boolean mIsReceiving = false;
-
-        private static final int DATA_OFFSET = 4;
-
-        void link(@NonNull byte[] receivePacket) throws IOException {
-            if (!mIsReceiving) {
-                mIsReceiving = true;
-                byte[] dataLenByte = Arrays.copyOfRange(receivePacket, 0, DATA_OFFSET);
-                mDataLen = ByteBuffer.wrap(dataLenByte).getInt();
-                receivePacket = Arrays.copyOfRange(
-                        receivePacket, DATA_OFFSET, receivePacket.length);
-            }
-            mStream.write(receivePacket);
-            if (mDataLen == mStream.size()) {
-                mLinkedPacket = mStream.toByteArray();
-            }
-        }
-
-        @Nullable
-        byte[] getLinkedPacket() {
-            return mLinkedPacket;
-        }
-    }
 }
@@ -16,23 +16,26 @@ import android.bluetooth.le.AdvertiseSettings;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.ParcelUuid;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.sky.hori_t.util.Log;
+import com.sky.hori_t.util.EventLoopScheduler;
+import com.sky.hori_t.util.StateMachine;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * BLEのGATTを用いて{@link BleDataCommunicationClient}とデータの送受信を行うクラスです。サーバ側となる場合に用います。
@@ -68,7 +71,7 @@ public class BleDataCommunicationServer {
         /**
          * データ受信通知
          * @param device    送信元クライアント側端末の端末情報
-         * @param data      受信したデータ
+         * @param data      受信したデータ。通信ライブラリが使い回すため、このメソッドの中でのみ参照してください。
          */
         void onDataReceived(@NonNull BluetoothDevice device, @NonNull byte[] data);
 
@@ -86,8 +89,9 @@ public class BleDataCommunicationServer {
         Stopping,
     }
 
+    // 遷移はハンドラスレッドのみ。呼び出し元スレッドからは待たずに読む
     @NonNull
-    private State mState = State.Stopped;
+    private final StateMachine<State> mState;
 
     @NonNull
     private final Context mContext;
@@ -104,9 +108,21 @@ public class BleDataCommunicationServer {
     private BluetoothGattServer mServer;
     @Nullable
     private BluetoothGattCharacteristic mCharacteristic;
+    @Nullable
+    private AdvertiseCallback mAdvertiseCallback;
+    // スキャン応答に載せる部屋名
+    @Nullable
+    private String mRoomName;
+    // 応答無し書き込みの受信確認として送る長さ0のデータ
+    private static final byte[] ACK_DATA = new byte[0];
     @NonNull
-    private LinkedHashMap<BluetoothDevice, ReceivePacketLinker> mDeviceMap =
+    private LinkedHashMap<BluetoothDevice, ConnectedDevice> mDeviceMap =
             new LinkedHashMap<>();
+    // 端末毎の送信待ちブロック数と予約。接続中の端末の登録簿を兼ね、呼び出し元スレッドから
+    // 接続の有無の判断と送信キューの空きの予約を、ハンドラスレッドを待たずに行うために使う
+    @NonNull
+    private final ConcurrentHashMap<BluetoothDevice, SendQuota> mQuotaMap =
+            new ConcurrentHashMap<>();
     @NonNull
     private final BluetoothGattServerCallback mGattCallback =
             new BluetoothGattServerCallback() {
@@ -132,9 +148,21 @@ public class BleDataCommunicationServer {
                         BluetoothDevice device, int requestId,
                         BluetoothGattCharacteristic characteristic, boolean preparedWrite,
                         boolean responseNeeded, int offset, byte[] value) {
-                    Log.vMethodIn();
-                    mHandler.post(() -> _onCharacteristicWriteRequest(
-                            device, characteristic, requestId, offset, value));
+                    Log.vMethodIn("preparedWrite:" + preparedWrite);
+                    if (preparedWrite) {
+                        mHandler.post(() -> _onPreparedWriteRequest(
+                                device, requestId, offset, value));
+                    } else {
+                        mHandler.post(() -> _onCharacteristicWriteRequest(
+                                device, characteristic, requestId, responseNeeded, offset, value));
+                    }
+                    Log.vMethodOut();
+                }
+
+                @Override
+                public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+                    Log.vMethodIn("execute:" + execute);
+                    mHandler.post(() -> _onExecuteWrite(device, requestId, execute));
                     Log.vMethodOut();
                 }
 
@@ -149,10 +177,19 @@ public class BleDataCommunicationServer {
                     Log.vMethodOut();
                 }
 
-//                @Override
-//                public void onMtuChanged(BluetoothDevice device, int mtu) {
-//                    mHandler.post(() -> _onMtuChanged(device, mtu));
-//                }
+                @Override
+                public void onNotificationSent(BluetoothDevice device, int status) {
+                    Log.vMethodIn("status:" + status);
+                    mHandler.post(() -> _onNotificationSent(device, status));
+                    Log.vMethodOut();
+                }
+
+                @Override
+                public void onMtuChanged(BluetoothDevice device, int mtu) {
+                    Log.vMethodIn("mtu:" + mtu);
+                    mHandler.post(() -> _onMtuChanged(device, mtu));
+                    Log.vMethodOut();
+                }
             };
 
     /**
@@ -175,18 +212,18 @@ public class BleDataCommunicationServer {
         mManager = manager;
         mAdapter = manager.getAdapter();
 
-        // 自スレッド生成
-        HandlerThread handlerThread = new HandlerThread(getClass().getSimpleName());
-        handlerThread.start();
-        mHandler = new Handler(handlerThread.getLooper());
+        // 部品毎にスレッドを作らず、共有のイベントループに割り当てる
+        Looper looper = EventLoopScheduler.getInstance().getLooper(EventLoopScheduler.Loop.Io);
+        mHandler = new Handler(looper);
+        mState = new StateMachine<>(State.class, State.Stopped, looper.getThread())
+                .allow(State.Stopped, State.Starting)
+                .allow(State.Starting, State.ConnectWaiting);
 
         // コールバックインスタンス生成
         Handler callbackHandler;
         if (dispatchQueueLooper == null) {
-            HandlerThread callbackThread =
-                    new HandlerThread(getClass().getSimpleName() + "Callback");
-            callbackThread.start();
-            callbackHandler = new Handler(callbackThread.getLooper());
+            callbackHandler = new Handler(EventLoopScheduler.getInstance()
+                    .getLooper(EventLoopScheduler.Loop.Callback));
         } else {
             callbackHandler = new Handler(dispatchQueueLooper);
         }
@@ -194,6 +231,21 @@ public class BleDataCommunicationServer {
         Log.vMethodOut();
     }
 
+    /**
+     * スキャン応答に載せる部屋名を設定します。接続待ち中であれば広告し直します。
+     * @param roomName  部屋名
+     */
+    public void setRoomName(@Nullable String roomName) {
+        Log.vMethodIn("Room: " + roomName);
+        mHandler.post(() -> {
+            mRoomName = roomName;
+            if (null != mAdvertiseCallback) {
+                startAdvertising();
+            }
+        });
+        Log.vMethodOut();
+    }
+
     /**
      * クライアント側端末からの接続待ち状態に移ります。<br>
      * 接続待ちに移ると{@link Callback#onWaitingStarted()}が通知されます。
@@ -203,7 +255,7 @@ public class BleDataCommunicationServer {
         if (State.Stopped != getState()) {
             throw new IllegalStateException("Bad state.");
         }
-        _startWaiting();
+        mHandler.post(this::_startWaiting);
         Log.vMethodOut();
     }
 
@@ -222,14 +274,33 @@ public class BleDataCommunicationServer {
     }
 
     /**
-     * 引数で指定したクライアント側端末に任意データを送信します。
+     * 引数で指定したクライアント側端末に任意データを{@link Channel#Bulk}で送信します。<br>
+     * 送信待ちのブロックが上限に達している場合は送信せずにfalseを返します。
      * @param device    送信先クライアント側端末の端末情報
      * @param data      送信するデータ
+     * @return  true: 送信キューに積んだ false: 送信キューが一杯のため送信しなかった
      * @throws IllegalStateException    接続が確立していない段階で呼び出した場合に投げられます。
+     * @throws IllegalArgumentException 1つのデータで送信キューの上限、または受信側が結合できる大きさを超える場合に投げられます。
      */
-    public void sendData(@NonNull BluetoothDevice device, @NonNull byte[] data)
+    public boolean sendData(@NonNull BluetoothDevice device, @NonNull byte[] data)
             throws IllegalStateException {
-        Log.vMethodIn("Device: " + device + " Data: " + new String(data));
+        return sendData(device, data, Channel.Bulk);
+    }
+
+    /**
+     * 引数で指定したクライアント側端末に任意データを指定した論理チャネルで送信します。<br>
+     * 送信待ちのブロックが上限に達している場合は送信せずにfalseを返します。
+     * @param device    送信先クライアント側端末の端末情報
+     * @param data      送信するデータ
+     * @param channel   送信する論理チャネル
+     * @return  true: 送信キューに積んだ false: 送信キューが一杯のため送信しなかった
+     * @throws IllegalStateException    接続が確立していない段階で呼び出した場合に投げられます。
+     * @throws IllegalArgumentException 1つのデータで送信キューの上限、または受信側が結合できる大きさを超える場合に投げられます。
+     */
+    public boolean sendData(
+            @NonNull BluetoothDevice device, @NonNull byte[] data, @NonNull Channel channel)
+            throws IllegalStateException {
+        Log.vMethodIn("Device: " + device + " Length: " + data.length + " Channel: " + channel);
         if (State.ConnectWaiting != getState()) {
             throw new IllegalStateException("Bad state.");
         }
@@ -237,8 +308,135 @@ public class BleDataCommunicationServer {
             throw new IllegalStateException(
                     "The device name \"" + device.getName() + "\" has not been connected.");
         }
-        mHandler.post(() -> _sendData(device, data));
+        SendQuota quota = mQuotaMap.get(device);
+        int reservedBlocks = (null == quota) ? 0 : quota.reserve(data.length);
+        if (0 == reservedBlocks) {
+            Log.vMethodOut("Send queue is full.");
+            return false;
+        }
+        mHandler.post(() -> _sendToDevices(Collections.singletonList(device),
+                new int[] {reservedBlocks}, data, channel));
+        Log.vMethodOut();
+        return true;
+    }
+
+    /**
+     * 接続している全てのクライアント側端末に同じデータを{@link Channel#Bulk}で送信します。<br>
+     * 分割は1度だけ行い、分割したブロックを端末毎に順番に送ります。
+     * @param data  送信するデータ
+     * @return  true: 全ての端末の送信キューに積んだ false: 送信キューが一杯の端末には送信しなかった
+     * @throws IllegalStateException    接続待ち状態でない段階で呼び出した場合に投げられます。
+     */
+    public boolean sendToAll(@NonNull byte[] data) throws IllegalStateException {
+        return sendToAll(data, Channel.Bulk);
+    }
+
+    /**
+     * 接続している全てのクライアント側端末に同じデータを指定した論理チャネルで送信します。
+     * @param data      送信するデータ
+     * @param channel   送信する論理チャネル
+     * @return  true: 全ての端末の送信キューに積んだ false: 送信キューが一杯の端末には送信しなかった
+     * @throws IllegalStateException    接続待ち状態でない段階で呼び出した場合に投げられます。
+     */
+    public boolean sendToAll(@NonNull byte[] data, @NonNull Channel channel)
+            throws IllegalStateException {
+        Log.vMethodIn("Data length: " + data.length);
+        boolean result = sendToDevices(mQuotaMap.keySet(), data, channel);
+        Log.vMethodOut();
+        return result;
+    }
+
+    /**
+     * 引数で指定した複数のクライアント側端末に同じデータを{@link Channel#Bulk}で送信します。<br>
+     * 分割は1度だけ行い、分割したブロックを端末毎に順番に送ります。切断済みの端末は無視します。
+     * @param devices   送信先クライアント側端末の端末情報
+     * @param data      送信するデータ
+     * @return  true: 全ての端末の送信キューに積んだ false: 送信キューが一杯の端末には送信しなかった
+     * @throws IllegalStateException    接続待ち状態でない段階で呼び出した場合に投げられます。
+     */
+    public boolean sendToDevices(
+            @NonNull Collection<BluetoothDevice> devices, @NonNull byte[] data)
+            throws IllegalStateException {
+        return sendToDevices(devices, data, Channel.Bulk);
+    }
+
+    /**
+     * 引数で指定した複数のクライアント側端末に同じデータを指定した論理チャネルで送信します。<br>
+     * 優先度の高いチャネルのデータは、送信途中の低いチャネルのデータより先に届きます。
+     * @param devices   送信先クライアント側端末の端末情報
+     * @param data      送信するデータ
+     * @param channel   送信する論理チャネル
+     * @return  true: 全ての端末の送信キューに積んだ false: 送信キューが一杯の端末には送信しなかった
+     * @throws IllegalStateException    接続待ち状態でない段階で呼び出した場合に投げられます。
+     */
+    public boolean sendToDevices(
+            @NonNull Collection<BluetoothDevice> devices,
+            @NonNull byte[] data,
+            @NonNull Channel channel) throws IllegalStateException {
+        return offerToDevices(devices, data, channel).isEmpty();
+    }
+
+    /**
+     * 引数で指定した複数のクライアント側端末に同じデータを指定した論理チャネルで送信し、
+     * 送信キューが一杯で送信しなかった端末を返します。<br>
+     * 送信しなかった端末へは、利用側で時間を置いて送り直してください。
+     * 受け付けたデータは送信キューの空きを予約済みのため、切断しない限り必ず送信されます。
+     * @param devices   送信先クライアント側端末の端末情報
+     * @param data      送信するデータ
+     * @param channel   送信する論理チャネル
+     * @return  送信しなかった端末。全ての端末の送信キューに積んだ場合は空
+     * @throws IllegalStateException    接続待ち状態でない段階で呼び出した場合に投げられます。
+     * @throws IllegalArgumentException 1つのデータで送信キューの上限、または受信側が結合できる大きさを超える場合に投げられます。
+     */
+    @NonNull
+    public List<BluetoothDevice> offerToDevices(
+            @NonNull Collection<BluetoothDevice> devices,
+            @NonNull byte[] data,
+            @NonNull Channel channel) throws IllegalStateException {
+        Log.vMethodIn("Devices: " + devices + " Data length: " + data.length
+                + " Channel: " + channel);
+        if (State.ConnectWaiting != getState()) {
+            throw new IllegalStateException("Bad state.");
+        }
+        ArrayList<BluetoothDevice> deviceList = new ArrayList<>(devices.size());
+        int[] reservedBlocks = new int[devices.size()];
+        ArrayList<BluetoothDevice> refusedList = new ArrayList<>();
+        for (BluetoothDevice device : devices) {
+            SendQuota quota = mQuotaMap.get(device);
+            if (null == quota) {
+                // 切断済みの端末は無視する
+                continue;
+            }
+            int numOfBlock = quota.reserve(data.length);
+            if (0 == numOfBlock) {
+                refusedList.add(device);
+                continue;
+            }
+            reservedBlocks[deviceList.size()] = numOfBlock;
+            deviceList.add(device);
+        }
+        if (!deviceList.isEmpty()) {
+            mHandler.post(() -> _sendToDevices(deviceList, reservedBlocks, data, channel));
+        }
+        Log.vMethodOut("Refused: " + refusedList);
+        return refusedList;
+    }
+
+    /**
+     * 引数で指定したクライアント側端末の送信キューの統計情報を返します。
+     * @param device    クライアント側端末の端末情報
+     * @return  統計情報。接続していない端末の場合はnull
+     */
+    @Nullable
+    public SendStatistics getSendStatistics(@NonNull BluetoothDevice device) {
+        Log.vMethodIn();
+        Mutex<SendStatistics> mutex = new Mutex<>();
+        mHandler.post(() -> {
+            ConnectedDevice connectedDevice = mDeviceMap.get(device);
+            mutex.unlock((null == connectedDevice) ? null : connectedDevice.getStatistics());
+        });
         Log.vMethodOut();
+        return mutex.lock();
     }
 
     /**
@@ -260,46 +458,30 @@ public class BleDataCommunicationServer {
     }
 
     /**
-     * 現在接続している全ての端末の端末情報を返します。
+     * 現在接続している全ての端末の端末情報を返します。順序は接続順とは限りません。
      * @return  接続している全ての端末情報
      */
     @NonNull
     public ArrayList<BluetoothDevice> getAllDeviceInfo() {
-        Log.vMethodIn();
-        Mutex<ArrayList<BluetoothDevice>> mutex = new Mutex<>();
-        mHandler.post(() -> {
-            ArrayList<BluetoothDevice> deviceList = new ArrayList<>(mDeviceMap.keySet());
-            mutex.unlock(deviceList);
-        });
-        Log.vMethodOut();
-        return mutex.lock();
+        return new ArrayList<>(mQuotaMap.keySet());
     }
 
+    @NonNull
     private State getState() {
-        Log.vMethodIn();
-        State state;
-        if (Thread.currentThread() == mHandler.getLooper().getThread()) {
-            state = mState;
-        } else {
-            Mutex<State> mutex = new Mutex<>();
-            mHandler.post(() -> mutex.unlock(mState));
-            state = mutex.lock();
-        }
-        Log.vMethodOut(state.toString());
-        return state;
+        return mState.get();
     }
 
     private boolean isConnected(@NonNull BluetoothDevice device) {
-        Log.vMethodIn();
-        Mutex<Boolean> mutex = new Mutex<>();
-        mHandler.post(() -> mutex.unlock(mDeviceMap.containsKey(device)));
-        Log.vMethodOut();
-        return mutex.lock();
+        return mQuotaMap.containsKey(device);
     }
 
     private void _startWaiting() {
         Log.vMethodIn();
-        mState = State.Starting;
+        if (State.Stopped != getState()) {
+            Log.vMethodOut("Already started.");
+            return;
+        }
+        mState.moveTo(State.Starting);
         BluetoothGattServer server = mManager.openGattServer(mContext, mGattCallback);
         if (null == server) {
             return;
@@ -314,7 +496,8 @@ public class BleDataCommunicationServer {
                 UUID.fromString(Constants.Uuids.CHARACTERISTIC),
                 BluetoothGattCharacteristic.PROPERTY_NOTIFY |
                         BluetoothGattCharacteristic.PROPERTY_READ |
-                        BluetoothGattCharacteristic.PROPERTY_WRITE,
+                        BluetoothGattCharacteristic.PROPERTY_WRITE |
+                        BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
                 BluetoothGattDescriptor.PERMISSION_WRITE |
                         BluetoothGattCharacteristic.PERMISSION_READ);
         service.addCharacteristic(mCharacteristic);
@@ -332,7 +515,24 @@ public class BleDataCommunicationServer {
         }
         mServer.addService(service);
 
+        startAdvertising();
+        Log.vMethodOut();
+    }
+
+    /**
+     * 接続数と部屋名をスキャン応答に載せて広告します。
+     * 広告中の内容は変更できないため、内容が変わる度に広告し直します。
+     */
+    private void startAdvertising() {
+        Log.vMethodIn();
         BluetoothLeAdvertiser advertiser = mAdapter.getBluetoothLeAdvertiser();
+        if (null == advertiser) {
+            Log.vMethodOut("Advertiser is not available.");
+            return;
+        }
+        if (null != mAdvertiseCallback) {
+            advertiser.stopAdvertising(mAdvertiseCallback);
+        }
 
         AdvertiseSettings settings = new AdvertiseSettings.Builder()
                 .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED)
@@ -340,16 +540,26 @@ public class BleDataCommunicationServer {
                 .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
                 .build();
 
+        ParcelUuid uuid = new ParcelUuid(UUID.fromString(Constants.Uuids.ADVERTISE));
         AdvertiseData data = new AdvertiseData.Builder()
-                .addServiceUuid(new ParcelUuid(UUID.fromString(Constants.Uuids.ADVERTISE)))
+                .addServiceUuid(uuid)
+                .build();
+        LobbyInfo lobbyInfo = new LobbyInfo(Constants.PROTOCOL_VERSION, mDeviceMap.size(),
+                Constants.NUM_OF_CONNECTIBLE_DEVICE, LobbyInfo.hashRoomName(mRoomName));
+        AdvertiseData scanResponse = new AdvertiseData.Builder()
+                .addServiceData(uuid, lobbyInfo.encode())
                 .build();
 
-        advertiser.startAdvertising(settings, data, new AdvertiseCallback() {
+        mAdvertiseCallback = new AdvertiseCallback() {
             @Override
             public void onStartSuccess(AdvertiseSettings settingsInEffect) {
                 Log.vMethodIn();
                 mHandler.post(() -> {
-                    mState = State.ConnectWaiting;
+                    // 広告し直した場合は通知しない
+                    if (State.Starting != getState()) {
+                        return;
+                    }
+                    mState.moveTo(State.ConnectWaiting);
                     mCallback.onWaitingStarted();
                 });
                 Log.vMethodOut();
@@ -361,12 +571,22 @@ public class BleDataCommunicationServer {
                 // TODO
                 Log.vMethodOut();
             }
-        });
-        Log.vMethodOut();
+        };
+        advertiser.startAdvertising(settings, data, scanResponse, mAdvertiseCallback);
+        Log.vMethodOut("Lobby: " + lobbyInfo);
+    }
+
+    private void stopAdvertising() {
+        BluetoothLeAdvertiser advertiser = mAdapter.getBluetoothLeAdvertiser();
+        if ((null != advertiser) && (null != mAdvertiseCallback)) {
+            advertiser.stopAdvertising(mAdvertiseCallback);
+        }
+        mAdvertiseCallback = null;
     }
 
     private void _stopWaiting() {
         Log.vMethodIn();
+        stopAdvertising();
         for (BluetoothDevice device : mDeviceMap.keySet()) {
             if (null != device) {
                 mServer.cancelConnection(device);
@@ -380,22 +600,116 @@ public class BleDataCommunicationServer {
         Log.vMethodOut();
     }
 
+    /**
+     * 受信確認や挨拶の応答などの制御データを送信します。送信待ちの上限を超えていても積みます。<br>
+     * 受信確認を捨てるとクライアント側端末の送信中ブロック数が戻らず、送信が止まるためです。
+     * @param device    送信先クライアント側端末の端末情報
+     * @param data      送信データ
+     * @param channel   送信する論理チャネル
+     */
     private void  _sendData(
-            @NonNull BluetoothDevice device, @NonNull byte[] data) {
-        Log.vMethodIn("Device: " + device + " Data: " + new String(data));
+            @NonNull BluetoothDevice device, @NonNull byte[] data, @NonNull Channel channel) {
+        Log.vMethodIn("Device: " + device + " Length: " + data.length);
+        Objects.requireNonNull(mServer);
+        Objects.requireNonNull(mCharacteristic);
+        ConnectedDevice connectedDevice = mDeviceMap.get(device);
+        if (null == connectedDevice) {
+            Log.vMethodOut("Disconnected: " + device);
+            return;
+        }
+        connectedDevice.offerReserved(channel, data, 0);
+        sendNextBlock(device, connectedDevice);
+        Log.vMethodOut();
+    }
+
+    /**
+     * @param devices           送信先クライアント側端末の端末情報
+     * @param reservedBlocks    端末毎に呼び出し元スレッドで予約したブロック数
+     * @param data              送信データ
+     * @param channel           送信する論理チャネル
+     */
+    private void _sendToDevices(
+            @NonNull List<BluetoothDevice> devices,
+            @NonNull int[] reservedBlocks,
+            @NonNull byte[] data,
+            @NonNull Channel channel) {
+        Log.vMethodIn("Devices: " + devices);
         Objects.requireNonNull(mServer);
         Objects.requireNonNull(mCharacteristic);
-        // 1回の送信で送れるデータサイズのデフォルト値。
-        int mBlockSize = Constants.DEFAULT_BLOCK_SIZE;
-        LinkedList<byte[]> splitData = Constants.splitData(data, mBlockSize);
-        for (byte[] block : splitData) {
-            mCharacteristic.setValue(block);
-            boolean result = mServer.notifyCharacteristicChanged(
-                    device, mCharacteristic, false);
-            if (!result) {
-                // TODO エラー
+        // データは全端末で共有し、ブロックは端末毎に交渉したサイズで送信時に切り出す
+        for (int cnt = 0; devices.size() > cnt; cnt++) {
+            BluetoothDevice device = devices.get(cnt);
+            ConnectedDevice connectedDevice = mDeviceMap.get(device);
+            if (null == connectedDevice) {
+                // 投稿から実行までの間に切断した。予約は端末と共に破棄される
+                continue;
+            }
+            // 端末毎のキューはonNotificationSentで1ブロックずつ進むため、端末間で交互に送られる
+            connectedDevice.offerReserved(channel, data, reservedBlocks[cnt]);
+            sendNextBlock(device, connectedDevice);
+        }
+        Log.vMethodOut();
+    }
+
+    /**
+     * 送信中のブロックが無ければ、優先度の高いチャネルのキューの先頭のブロックを通知します。
+     * 次のブロックは{@link BluetoothGattServerCallback#onNotificationSent}を受けてから送ります。
+     */
+    private void sendNextBlock(
+            @NonNull BluetoothDevice device, @NonNull ConnectedDevice connectedDevice) {
+        Objects.requireNonNull(mServer);
+        Objects.requireNonNull(mCharacteristic);
+        if (connectedDevice.isNotifying) {
+            return;
+        }
+        byte[] block = connectedDevice.currentBlock();
+        if (null == block) {
+            return;
+        }
+        mCharacteristic.setValue(block);
+        if (mServer.notifyCharacteristicChanged(device, mCharacteristic, false)) {
+            connectedDevice.isNotifying = true;
+            return;
+        }
+        retrySendBlock(device, connectedDevice);
+    }
+
+    private void retrySendBlock(
+            @NonNull BluetoothDevice device, @NonNull ConnectedDevice connectedDevice) {
+        Objects.requireNonNull(mServer);
+        connectedDevice.mRetryCount++;
+        connectedDevice.mConsecutiveRetryCnt++;
+        if (Constants.MAX_NOTIFY_RETRY < connectedDevice.mConsecutiveRetryCnt) {
+            // ブロックを捨てると受信側の結合がずれるため、切断してやり直してもらう
+            Log.d("Failed to notify. Device: " + device);
+            mServer.cancelConnection(device);
+            return;
+        }
+        connectedDevice.isNotifying = true;
+        mHandler.postDelayed(() -> {
+            if (connectedDevice != mDeviceMap.get(device)) {
+                return;
             }
+            connectedDevice.isNotifying = false;
+            sendNextBlock(device, connectedDevice);
+        }, Constants.NOTIFY_RETRY_INTERVAL_MS);
+    }
+
+    private void _onNotificationSent(@NonNull BluetoothDevice device, int status) {
+        Log.vMethodIn("Device: " + device + " status: " + status);
+        ConnectedDevice connectedDevice = mDeviceMap.get(device);
+        if ((null == connectedDevice) || (!connectedDevice.isNotifying)) {
+            Log.vMethodOut("Not notifying.");
+            return;
+        }
+        connectedDevice.isNotifying = false;
+        if (BluetoothGatt.GATT_SUCCESS != status) {
+            retrySendBlock(device, connectedDevice);
+            Log.vMethodOut("Retry.");
+            return;
         }
+        connectedDevice.advance();
+        sendNextBlock(device, connectedDevice);
         Log.vMethodOut();
     }
 
@@ -414,7 +728,10 @@ public class BleDataCommunicationServer {
             mServer.cancelConnection(device);
             return;
         }
-        mDeviceMap.put(device, new ReceivePacketLinker());
+        // 登録簿へは挨拶を受けてから載せる。それまでは送信も接続の確認もできない
+        mDeviceMap.put(device, new ConnectedDevice());
+        // 接続数が変わったことを広告に反映する
+        startAdvertising();
         Log.vMethodOut();
     }
 
@@ -423,14 +740,33 @@ public class BleDataCommunicationServer {
         if (!mDeviceMap.containsKey(device)) {
             return;
         }
-        mDeviceMap.remove(device);
+        ConnectedDevice connectedDevice = mDeviceMap.remove(device);
+        connectedDevice.release();
+        mQuotaMap.remove(device);
+        if (null != mAdvertiseCallback) {
+            startAdvertising();
+        }
+        if (!connectedDevice.isWelcomed) {
+            // 接続を通知する前に切断した
+            Log.vMethodOut("Not welcomed: " + device);
+            return;
+        }
         mCallback.onDisconnected(device);
-        Log.vMethodOut();
+        Log.vMethodOut("Statistics: " + connectedDevice.getStatistics()
+                + " Pool: " + BufferPool.getSharedStatistics());
     }
 
-//    private void _onMtuChanged(@NonNull BluetoothDevice device, int mtu) {
-//
-//    }
+    private void _onMtuChanged(@NonNull BluetoothDevice device, int mtu) {
+        Log.vMethodIn("Device: " + device + " MTU: " + mtu);
+        ConnectedDevice connectedDevice = mDeviceMap.get(device);
+        if (null == connectedDevice) {
+            Log.vMethodOut("Not connected.");
+            return;
+        }
+        int blockSize = Constants.getBlockSize(mtu);
+        connectedDevice.setBlockSize(blockSize);
+        Log.vMethodOut("Block size: " + blockSize);
+    }
 
     private void _onDescriptorWriteRequest(
             @NonNull BluetoothDevice device, int requestId, int offset, @NonNull byte[] value) {
@@ -444,9 +780,10 @@ public class BleDataCommunicationServer {
             @NonNull BluetoothDevice device,
             @NonNull BluetoothGattCharacteristic characteristic,
             int requestId,
+            boolean responseNeeded,
             int offset,
             @NonNull byte[] value) {
-        Log.vMethodIn("Device: " + device);
+        Log.vMethodIn("Device: " + device + " responseNeeded: " + responseNeeded);
         Objects.requireNonNull(mServer);
         // Characteristicの確認
 //        if (checkCharacteristicInvalidity(characteristic)) {
@@ -455,41 +792,151 @@ public class BleDataCommunicationServer {
 //            return;
 //        }
         // 接続済み機器かどうか確認
-        ReceivePacketLinker linker = mDeviceMap.get(device);
-        if (null == linker) {
-            mServer.sendResponse(
-                    device, requestId, BluetoothGatt.GATT_FAILURE, offset, null);
-            Log.vMethodOut("null == linker");
+        ConnectedDevice connectedDevice = mDeviceMap.get(device);
+        if (null == connectedDevice) {
+            sendResponse(device, requestId, responseNeeded, BluetoothGatt.GATT_FAILURE, offset);
+            Log.vMethodOut("null == connectedDevice");
+            return;
+        }
+        boolean result = receiveBlock(device, connectedDevice, value, !responseNeeded);
+        // Client側に結果通知
+        sendResponse(device, requestId, responseNeeded,
+                result ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE, offset);
+        Log.vMethodOut();
+    }
+
+    private void _onPreparedWriteRequest(
+            @NonNull BluetoothDevice device, int requestId, int offset, @NonNull byte[] value) {
+        Log.vMethodIn("Device: " + device + " offset: " + offset);
+        Objects.requireNonNull(mServer);
+        ConnectedDevice connectedDevice = mDeviceMap.get(device);
+        if (null == connectedDevice) {
+            mServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, offset, null);
+            Log.vMethodOut("null == connectedDevice");
             return;
         }
+        if (!connectedDevice.prepareWrite(offset, value)) {
+            mServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+            Log.vMethodOut("Invalid offset.");
+            return;
+        }
+        // 信頼性のある書き込みではクライアントが照合するため、受け取った値をそのまま返す
+        mServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
+        Log.vMethodOut();
+    }
+
+    private void _onExecuteWrite(@NonNull BluetoothDevice device, int requestId, boolean execute) {
+        Log.vMethodIn("Device: " + device + " execute: " + execute);
+        Objects.requireNonNull(mServer);
+        ConnectedDevice connectedDevice = mDeviceMap.get(device);
+        if (null == connectedDevice) {
+            mServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+            Log.vMethodOut("null == connectedDevice");
+            return;
+        }
+        List<byte[]> preparedValues = connectedDevice.takePreparedValues();
+        boolean result = true;
+        if (execute) {
+            // 書き込まれた値を順にブロックとして結合する
+            for (byte[] value : preparedValues) {
+                if (!receiveBlock(device, connectedDevice, value, false)) {
+                    result = false;
+                    break;
+                }
+            }
+        }
+        mServer.sendResponse(device, requestId,
+                result ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE, 0, null);
+        Log.vMethodOut("result: " + result);
+    }
+
+    /**
+     * 受信したブロックを結合し、データが揃っていれば通知します。
+     * @param device            送信元クライアント側端末の端末情報
+     * @param connectedDevice   送信元クライアント側端末の状態
+     * @param value             受信したブロック
+     * @param isAckNeeded       データが揃った時に受信確認を返すかどうか
+     * @return  true: 結合できた false: 結合に失敗した
+     */
+    private boolean receiveBlock(
+            @NonNull BluetoothDevice device,
+            @NonNull ConnectedDevice connectedDevice,
+            @NonNull byte[] value,
+            boolean isAckNeeded) {
+        Log.vMethodIn("Device: " + device);
+        // 論理チャネル毎に結合する
+        Channel channel = (0 < value.length) ? Channel.valueOf(value[0] & 0xFF) : null;
+        if (null == channel) {
+            Log.vMethodOut("Bad channel.");
+            return false;
+        }
+        PacketReassembler reassembler = connectedDevice.mReassemblers[channel.getId()];
         // データ結合
         try {
-            linker.link(value);
+            if (!reassembler.append(value)) {
+                Log.vMethodOut("Packet has not linked.");
+                return true;
+            }
         } catch (IOException e) {
             e.printStackTrace();
-            mDeviceMap.put(device, new ReceivePacketLinker());
-            mServer.sendResponse(
-                    device, requestId, BluetoothGatt.GATT_FAILURE, offset, null);
-            return;
+            Log.vMethodOut("Failed to link.");
+            return false;
+        }
+        if (isAckNeeded) {
+            // 応答無し書き込みはデータ毎に長さ0のデータで受信確認を、受信したチャネルで返す
+            _sendData(device, ACK_DATA, channel);
         }
-        // Client側に成功通知
-        mServer.sendResponse(
-                device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
-        byte[] receivedPacket = linker.getLinkedPacket();
-        // 結合が完了していたら通知
-        if (null == receivedPacket) {
-            Log.vMethodOut("Packet has not linked.");
+        ByteBuffer payload = reassembler.getPayload();
+        if (!connectedDevice.isWelcomed) {
+            // 最初のデータは挨拶。以降のデータは比較せずに通知する
+            welcome(device, connectedDevice, payload);
+            return true;
+        }
+        // コールバックは別スレッドで実行されるため、使い回すバッファからプールの配列へ複製して渡す
+        mCallback.onDataReceived(device, reassembler.acquirePayload());
+        Log.vMethodOut("Data received: " + device + " Length: " + payload.remaining());
+        return true;
+    }
+
+    /**
+     * クライアント側端末の挨拶に応え、接続を通知します。通信方式の版が異なれば切断します。
+     * @param device            クライアント側端末の端末情報
+     * @param connectedDevice   クライアント側端末の状態
+     * @param payload           最初に受信したデータ
+     */
+    private void welcome(
+            @NonNull BluetoothDevice device,
+            @NonNull ConnectedDevice connectedDevice,
+            @NonNull ByteBuffer payload) {
+        Objects.requireNonNull(mServer);
+        Handshake hello = Handshake.decode(payload);
+        if ((null == hello) || (!hello.isAcceptable(Handshake.Kind.Hello))) {
+            Log.vMethodOut("Bad hello: " + device);
+            mServer.cancelConnection(device);
             return;
         }
-        mDeviceMap.put(device, new ReceivePacketLinker());
-        if (Constants.CONNECTED_SIGN.equals(new String(receivedPacket))) {
-            mCallback.onConnected(device);
-            Log.vMethodOut("Connected sign: " + device);
+        // 端末によってはサーバ側にMTU変更が通知されないため、クライアント側の交渉結果に合わせる
+        connectedDevice.setBlockSize(Constants.getBlockSize(hello.getMtu()));
+        connectedDevice.isWelcomed = true;
+        mQuotaMap.put(device, connectedDevice.mQuota);
+        _sendData(device, new Handshake(
+                Handshake.Kind.Welcome, Constants.PROTOCOL_VERSION, hello.getMtu()).encode(),
+                Channel.Control);
+        mCallback.onConnected(device);
+        Log.vMethodOut("Welcomed: " + device);
+    }
+
+    private void sendResponse(
+            @NonNull BluetoothDevice device,
+            int requestId,
+            boolean responseNeeded,
+            int status,
+            int offset) {
+        Objects.requireNonNull(mServer);
+        if (!responseNeeded) {
             return;
         }
-        mCallback.onDataReceived(device, receivedPacket);
-        Log.vMethodOut("Data received: " + device
-                + " Packet : " + new String(receivedPacket));
+        mServer.sendResponse(device, requestId, status, offset, null);
     }
 
     /**
@@ -553,8 +1000,14 @@ public class BleDataCommunicationServer {
         public void onDataReceived(
                 @NonNull final BluetoothDevice device,
                 @NonNull final byte[] data) {
-            Log.vMethodIn("Device: " + device + " Data: " + new String(data));
-            mHandler.post(() -> mCallback.onDataReceived(device, data));
+            Log.vMethodIn("Device: " + device + " Length: " + data.length);
+            mHandler.post(() -> {
+                try {
+                    mCallback.onDataReceived(device, data);
+                } finally {
+                    BufferPool.getShared().release(data);
+                }
+            });
             Log.vMethodOut();
         }
 
@@ -566,37 +1019,122 @@ public class BleDataCommunicationServer {
         }
     }
 
-    private static class ReceivePacketLinker {
-        @Nullable
-        private byte[] mLinkedPacket;
+    /**
+     * 接続中のクライアント側端末毎の状態
+     */
+    private static class ConnectedDevice {
+        // 論理チャネル毎の結合処理
+        @NonNull
+        private final PacketReassembler[] mReassemblers = new PacketReassembler[Channel.count()];
+        // 論理チャネル毎の送信待ちのデータ。ブロックサイズはMTU変更により更新される
+        @NonNull
+        private final ChannelScheduler mScheduler =
+                new ChannelScheduler(Constants.DEFAULT_BLOCK_SIZE);
+        // 送信待ちのブロック数と、呼び出し元スレッドでの予約
         @NonNull
-        private final ByteArrayOutputStream mStream = new ByteArrayOutputStream();
-        private int mDataLen;
-        private boolean mIsReceiving = false;
-
-        private static final int DATA_OFFSET = 4;
-
-        void link(@NonNull byte[] receivePacket) throws IOException {
-            Log.vMethodIn("Data: " + receivePacket);
-            if (!mIsReceiving) {
-                mIsReceiving = true;
-                byte[] dataLenByte = Arrays.copyOfRange(receivePacket, 0, DATA_OFFSET);
-                mDataLen = ByteBuffer.wrap(dataLenByte).getInt();
-                Log.d("Data length: " + mDataLen);
-                receivePacket = Arrays.copyOfRange(
-                        receivePacket, DATA_OFFSET, receivePacket.length);
+        private final SendQuota mQuota = new SendQuota(Constants.MAX_SEND_QUEUE_DEPTH);
+        private boolean isNotifying = false;
+        // 挨拶を受け、登録簿に載せて接続を通知したか
+        private boolean isWelcomed = false;
+        private int mConsecutiveRetryCnt = 0;
+        private int mMaxQueueDepth = 0;
+        private long mSentBlockCount = 0;
+        private long mRetryCount = 0;
+
+        // 準備書き込み(長い書き込み)で受け取り、実行待ちの値
+        @NonNull
+        private final ArrayList<ByteArrayOutputStream> mPreparedValues = new ArrayList<>();
+
+        ConnectedDevice() {
+            for (int cnt = 0; mReassemblers.length > cnt; cnt++) {
+                mReassemblers[cnt] = new PacketReassembler();
             }
-            mStream.write(receivePacket);
-            if (mDataLen == mStream.size()) {
-                mLinkedPacket = mStream.toByteArray();
+        }
+
+        void setBlockSize(int blockSize) {
+            mScheduler.setBlockSize(blockSize);
+            mQuota.setBlockSize(blockSize);
+        }
+
+        /**
+         * 準備書き込みの値を溜めます。オフセット0は新しい値の先頭、それ以外は直前の値の続きとして扱います。
+         * @param offset    値の中での位置
+         * @param value     書き込まれた値
+         * @return  true: 溜めた false: オフセットが直前の値の続きになっていない
+         */
+        boolean prepareWrite(int offset, @NonNull byte[] value) {
+            if (0 == offset) {
+                mPreparedValues.add(new ByteArrayOutputStream());
+            } else if (mPreparedValues.isEmpty()
+                    || (offset != mPreparedValues.get(mPreparedValues.size() - 1).size())) {
+                return false;
             }
-            Log.vMethodOut();
+            mPreparedValues.get(mPreparedValues.size() - 1).write(value, 0, value.length);
+            return true;
+        }
+
+        @NonNull
+        List<byte[]> takePreparedValues() {
+            ArrayList<byte[]> values = new ArrayList<>(mPreparedValues.size());
+            for (ByteArrayOutputStream stream : mPreparedValues) {
+                values.add(stream.toByteArray());
+            }
+            mPreparedValues.clear();
+            return values;
+        }
+
+        /**
+         * 呼び出し元スレッドで空きを予約したデータを送信キューに積み、予約を送信待ちブロック数へ移します。
+         * @param channel       送信する論理チャネル
+         * @param data          送信データ
+         * @param numOfBlock    予約したブロック数。予約せずに積む制御データは0
+         */
+        void offerReserved(@NonNull Channel channel, @NonNull byte[] data, int numOfBlock) {
+            mScheduler.offer(channel, data);
+            updateQueueDepth();
+            mQuota.release(numOfBlock);
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mQuota.getQueueDepth());
         }
 
+        /**
+         * 送信中のブロックを返します。送信中のブロックが無ければ、優先度の高いチャネルから選びます。
+         * @return  ブロック。送信待ちのデータが無い場合はnull
+         */
         @Nullable
-        byte[] getLinkedPacket() {
-            Log.vMethodIn("isPacketNull: " + String.valueOf(null == mLinkedPacket));
-            return mLinkedPacket;
+        byte[] currentBlock() {
+            if (null == mScheduler.select()) {
+                return null;
+            }
+            return mScheduler.current();
+        }
+
+        void advance() {
+            if (mScheduler.advance()) {
+                // ブロックサイズは送信中に変わることがあるため、データの区切りで数え直す
+                updateQueueDepth();
+            } else {
+                mQuota.decrementQueueDepth();
+            }
+            mConsecutiveRetryCnt = 0;
+            mSentBlockCount++;
+        }
+
+        private void updateQueueDepth() {
+            mQuota.setQueueDepth(mScheduler.getRemainingBlock());
+        }
+
+        // 切断時にプールから取得した配列を返却する
+        void release() {
+            mScheduler.clear();
+            for (PacketReassembler reassembler : mReassemblers) {
+                reassembler.release();
+            }
+        }
+
+        @NonNull
+        SendStatistics getStatistics() {
+            return new SendStatistics(mQuota.getQueueDepth(), mMaxQueueDepth, mSentBlockCount,
+                    mQuota.getRefusedDataCount(), mRetryCount);
         }
     }
 }
@@ -0,0 +1,162 @@
+package com.example.ble_communication_lib;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * 送受信で使うバイト配列を使い回すためのプールです。クライアント、サーバ、結合処理で1つを共有します。<br>
+ * 配列はブロックとしてそのまま送信できるよう、要求された長さ毎に保持します。
+ * {@link Constants#MAX_BLOCK_SIZE}を超える長さは保持せず、その都度確保します。
+ * {@link #acquire(int)}で取得した配列は、使い終わったら{@link #release(byte[])}で返してください。
+ * 複数のスレッドから使用できます。
+ */
+public class BufferPool {
+    private static final byte[] EMPTY = new byte[0];
+    @NonNull
+    private static final BufferPool sShared =
+            new BufferPool(BuildConfig.DEBUG, Constants.MAX_POOLED_BYTES);
+
+    // 長さ毎の返却済み配列。添字は配列の長さ
+    @NonNull
+    private final ArrayList<ArrayDeque<byte[]>> mFreeTable =
+            new ArrayList<>(Collections.nCopies(Constants.MAX_BLOCK_SIZE + 1, null));
+    private final int mMaxPooledBytes;
+    private int mPooledBytes = 0;
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private int mOutstandingCount = 0;
+
+    // デバッグビルドでのみ使う、返却されずに破棄された配列の検出用
+    private final boolean isLeakDetectionEnabled;
+    @NonNull
+    private final ArrayList<LeakTrace> mLeakTraceList = new ArrayList<>();
+    @NonNull
+    private final ReferenceQueue<byte[]> mLeakQueue = new ReferenceQueue<>();
+    private long mLeakCount = 0;
+
+    BufferPool(boolean isLeakDetectionEnabled, int maxPooledBytes) {
+        this.isLeakDetectionEnabled = isLeakDetectionEnabled;
+        mMaxPooledBytes = maxPooledBytes;
+    }
+
+    @NonNull
+    static BufferPool getShared() {
+        return sShared;
+    }
+
+    /**
+     * @return  共有プールの統計情報
+     */
+    @NonNull
+    public static BufferPoolStatistics getSharedStatistics() {
+        return sShared.getStatistics();
+    }
+
+    /**
+     * 指定した長さの配列を取得します。内容は前回の使用時のまま残っています。
+     * @param length    配列の長さ
+     * @return  配列
+     */
+    @NonNull
+    synchronized byte[] acquire(int length) {
+        if (0 == length) {
+            return EMPTY;
+        }
+        if (Constants.MAX_BLOCK_SIZE < length) {
+            mMissCount++;
+            return new byte[length];
+        }
+        byte[] buffer;
+        ArrayDeque<byte[]> freeList = mFreeTable.get(length);
+        if ((null != freeList) && !freeList.isEmpty()) {
+            buffer = freeList.pop();
+            mPooledBytes -= length;
+            mHitCount++;
+        } else {
+            buffer = new byte[length];
+            mMissCount++;
+        }
+        mOutstandingCount++;
+        if (isLeakDetectionEnabled) {
+            pollLeak();
+            mLeakTraceList.add(new LeakTrace(buffer, mLeakQueue));
+        }
+        return buffer;
+    }
+
+    /**
+     * 取得した配列を返却します。返却後は配列を使用しないでください。
+     * @param buffer    {@link #acquire(int)}で取得した配列
+     */
+    synchronized void release(@NonNull byte[] buffer) {
+        int length = buffer.length;
+        if ((0 == length) || (Constants.MAX_BLOCK_SIZE < length)) {
+            return;
+        }
+        if (isLeakDetectionEnabled && !removeLeakTrace(buffer)) {
+            // 二重返却、または取得していない配列の返却
+            throw new IllegalStateException("Bad state.");
+        }
+        mOutstandingCount--;
+        if (mMaxPooledBytes < (mPooledBytes + length)) {
+            return;
+        }
+        ArrayDeque<byte[]> freeList = mFreeTable.get(length);
+        if (null == freeList) {
+            freeList = new ArrayDeque<>();
+            mFreeTable.set(length, freeList);
+        }
+        freeList.push(buffer);
+        mPooledBytes += length;
+    }
+
+    @NonNull
+    synchronized BufferPoolStatistics getStatistics() {
+        if (isLeakDetectionEnabled) {
+            pollLeak();
+        }
+        return new BufferPoolStatistics(
+                mHitCount, mMissCount, mPooledBytes, mOutstandingCount, mLeakCount);
+    }
+
+    private boolean removeLeakTrace(@NonNull byte[] buffer) {
+        for (int cnt = mLeakTraceList.size() - 1; 0 <= cnt; cnt--) {
+            if (buffer == mLeakTraceList.get(cnt).get()) {
+                mLeakTraceList.remove(cnt);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 返却されないままGCされた配列を取得箇所と共に記録する
+    private void pollLeak() {
+        LeakTrace trace;
+        while (null != (trace = (LeakTrace) mLeakQueue.poll())) {
+            if (!mLeakTraceList.remove(trace)) {
+                continue;
+            }
+            mLeakCount++;
+            mOutstandingCount--;
+            Log.w(BufferPool.class.getSimpleName(),
+                    "Buffer leaked. Length: " + trace.mLength, trace.mAcquiredAt);
+        }
+    }
+
+    private static class LeakTrace extends WeakReference<byte[]> {
+        private final int mLength;
+        @NonNull
+        private final Throwable mAcquiredAt = new Throwable("Acquired at");
+
+        LeakTrace(@NonNull byte[] buffer, @NonNull ReferenceQueue<byte[]> queue) {
+            super(buffer, queue);
+            mLength = buffer.length;
+        }
+    }
+}
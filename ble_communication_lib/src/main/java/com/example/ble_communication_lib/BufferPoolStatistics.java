@@ -0,0 +1,77 @@
+package com.example.ble_communication_lib;
+
+import android.support.annotation.NonNull;
+
+/**
+ * {@link BufferPool}の統計情報です。取得した時点の値を保持します。
+ */
+public class BufferPoolStatistics {
+    private final long mHitCount;
+    private final long mMissCount;
+    private final int mPooledBytes;
+    private final int mOutstandingCount;
+    private final long mLeakCount;
+
+    BufferPoolStatistics(
+            long hitCount,
+            long missCount,
+            int pooledBytes,
+            int outstandingCount,
+            long leakCount) {
+        mHitCount = hitCount;
+        mMissCount = missCount;
+        mPooledBytes = pooledBytes;
+        mOutstandingCount = outstandingCount;
+        mLeakCount = leakCount;
+    }
+
+    /**
+     * @return  返却済みの配列を使い回せた回数
+     */
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return  新たに配列を確保した回数
+     */
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return  取得のうち使い回せた割合(0～1)。取得が無い場合は0
+     */
+    public double getHitRate() {
+        long total = mHitCount + mMissCount;
+        return (0 == total) ? 0 : ((double) mHitCount / total);
+    }
+
+    /**
+     * @return  プールが保持している配列の合計バイト数
+     */
+    public int getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    /**
+     * @return  取得されたまま返却されていない配列の数
+     */
+    public int getOutstandingCount() {
+        return mOutstandingCount;
+    }
+
+    /**
+     * @return  返却されないまま破棄された配列の数。デバッグビルドでのみ数えます
+     */
+    public long getLeakCount() {
+        return mLeakCount;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "hit: " + mHitCount + " miss: " + mMissCount + " pooled: " + mPooledBytes
+                + " outstanding: " + mOutstandingCount + " leak: " + mLeakCount;
+    }
+}
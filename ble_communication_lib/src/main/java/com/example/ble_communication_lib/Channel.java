@@ -0,0 +1,45 @@
+package com.example.ble_communication_lib;
+
+import android.support.annotation.Nullable;
+
+/**
+ * 1つのキャラクタリスティック上に多重化する論理チャネルです。<br>
+ * チャネル毎にデータの順序を保ち、送信待ちのブロックは定義順(優先度の高い順)に送ります。
+ * 優先度の高いチャネルのデータは、送信途中の低いチャネルのデータのブロックの間に割り込みます。
+ */
+public enum Channel {
+    /**
+     * 小さく、すぐに届けたい制御用のデータ
+     */
+    Control,
+    /**
+     * 大きく、遅れても構わないデータ
+     */
+    Bulk,
+    ;
+
+    private static final Channel[] VALUES = values();
+
+    /**
+     * @return  ブロックのヘッダに書くチャネル番号
+     */
+    int getId() {
+        return ordinal();
+    }
+
+    /**
+     * @param id    ブロックのヘッダから読んだチャネル番号
+     * @return  チャネル。不正な番号の場合はnull
+     */
+    @Nullable
+    static Channel valueOf(int id) {
+        if ((0 > id) || (VALUES.length <= id)) {
+            return null;
+        }
+        return VALUES[id];
+    }
+
+    static int count() {
+        return VALUES.length;
+    }
+}
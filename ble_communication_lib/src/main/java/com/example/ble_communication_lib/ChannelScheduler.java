@@ -0,0 +1,185 @@
+package com.example.ble_communication_lib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedList;
+import java.util.Objects;
+
+/**
+ * 論理チャネル毎の送信待ちデータを持ち、優先度の高いチャネルから順にブロックを切り出すクラスです。<br>
+ * ブロック単位でチャネルを選ぶため、優先度の高いデータは送信途中の低いデータのブロックの間に割り込みます。
+ * 選んだブロックの送信が完了({@link #advance()})するまでは、同じブロックを返します。
+ * 1つのスレッドから使用してください。
+ */
+class ChannelScheduler {
+    @NonNull
+    private final ChannelQueue[] mChannelQueues = new ChannelQueue[Channel.count()];
+    private int mBlockSize;
+    // 送信中のブロックのチャネル。送信完了まで切り替えない
+    @Nullable
+    private Channel mCurrentChannel;
+
+    ChannelScheduler(int blockSize) {
+        for (int cnt = 0; mChannelQueues.length > cnt; cnt++) {
+            mChannelQueues[cnt] = new ChannelQueue();
+        }
+        mBlockSize = blockSize;
+    }
+
+    /**
+     * 1回の送信で送れるデータサイズを変更します。次に切り出し始めるデータから反映されます。
+     * @param blockSize 1回の送信で送れるデータサイズ
+     */
+    void setBlockSize(int blockSize) {
+        mBlockSize = blockSize;
+    }
+
+    /**
+     * 送信待ちのデータを積みます。
+     * @param channel   送信する論理チャネル
+     * @param data      送信データ
+     */
+    void offer(@NonNull Channel channel, @NonNull byte[] data) {
+        mChannelQueues[channel.getId()].mQueue.add(data);
+    }
+
+    /**
+     * @return  true: 未送信のブロックがある
+     */
+    boolean hasRemaining() {
+        for (ChannelQueue channelQueue : mChannelQueues) {
+            if (channelQueue.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 次に送るブロックのチャネルを選びます。送信中のブロックがあればそのチャネルを返します。<br>
+     * 選んだチャネルに切り出し中のデータが無ければ、キューの先頭のデータから切り出しを始めます。
+     * @return  チャネル。未送信のブロックが無い場合はnull
+     */
+    @Nullable
+    Channel select() {
+        if (null != mCurrentChannel) {
+            return mCurrentChannel;
+        }
+        // チャネル番号の小さい順が優先度の高い順
+        for (int id = 0; mChannelQueues.length > id; id++) {
+            ChannelQueue channelQueue = mChannelQueues[id];
+            if (!channelQueue.hasRemaining()) {
+                continue;
+            }
+            mCurrentChannel = Objects.requireNonNull(Channel.valueOf(id));
+            Fragmenter fragmenter = channelQueue.mFragmenter;
+            if (!fragmenter.hasRemaining()) {
+                fragmenter.reset(channelQueue.mQueue.poll(), mCurrentChannel, mBlockSize);
+            }
+            return mCurrentChannel;
+        }
+        return null;
+    }
+
+    /**
+     * 選んだチャネルの送信するブロックを返します。
+     * @return  ブロック。プールの配列のため保持しないでください。
+     * @throws IllegalStateException    未送信のブロックが無い場合に投げられます。
+     */
+    @NonNull
+    byte[] current() throws IllegalStateException {
+        return getCurrentFragmenter().current();
+    }
+
+    /**
+     * @return  true: 選んだチャネルのブロックがデータの先頭
+     */
+    boolean isFirstBlock() {
+        return getCurrentFragmenter().isFirstBlock();
+    }
+
+    /**
+     * @return  選んだチャネルで切り出し中のデータ
+     */
+    @NonNull
+    byte[] getCurrentData() {
+        return Objects.requireNonNull(getCurrentFragmenter().getData());
+    }
+
+    /**
+     * 選んだチャネルの切り出し前のデータを取り出します。ブロックに分けずに別の方法で送る場合に使います。
+     * @return  送信データ
+     * @throws IllegalStateException    データの先頭ブロックで無い場合に投げられます。
+     */
+    @NonNull
+    byte[] takeCurrentData() throws IllegalStateException {
+        Fragmenter fragmenter = getCurrentFragmenter();
+        byte[] data = fragmenter.getData();
+        if ((!fragmenter.isFirstBlock()) || (null == data)) {
+            throw new IllegalStateException("Bad state.");
+        }
+        fragmenter.clear();
+        mCurrentChannel = null;
+        return data;
+    }
+
+    /**
+     * 選んだブロックの送信完了として次へ進め、次のブロックはチャネルを選び直します。
+     * @return  true: 1データの送信が完了した
+     */
+    boolean advance() {
+        Fragmenter fragmenter = getCurrentFragmenter();
+        fragmenter.advance();
+        mCurrentChannel = null;
+        if (fragmenter.hasRemaining()) {
+            return false;
+        }
+        fragmenter.clear();
+        return true;
+    }
+
+    /**
+     * @return  未送信のブロック数。切り出し中のデータの残りを含む
+     */
+    int getRemainingBlock() {
+        int numOfBlock = 0;
+        for (ChannelQueue channelQueue : mChannelQueues) {
+            numOfBlock += channelQueue.mFragmenter.getRemainingBlock();
+            for (byte[] data : channelQueue.mQueue) {
+                numOfBlock += Fragmenter.getNumOfBlock(data.length, mBlockSize);
+            }
+        }
+        return numOfBlock;
+    }
+
+    /**
+     * 全チャネルの送信待ちのデータを破棄します。
+     */
+    void clear() {
+        for (ChannelQueue channelQueue : mChannelQueues) {
+            channelQueue.mQueue.clear();
+            channelQueue.mFragmenter.clear();
+        }
+        mCurrentChannel = null;
+    }
+
+    @NonNull
+    private Fragmenter getCurrentFragmenter() {
+        if (null == mCurrentChannel) {
+            throw new IllegalStateException("Bad state.");
+        }
+        return mChannelQueues[mCurrentChannel.getId()].mFragmenter;
+    }
+
+    private static class ChannelQueue {
+        @NonNull
+        private final LinkedList<byte[]> mQueue = new LinkedList<>();
+        @NonNull
+        private final Fragmenter mFragmenter = new Fragmenter();
+
+        boolean hasRemaining() {
+            return mFragmenter.hasRemaining() || !mQueue.isEmpty();
+        }
+    }
+}
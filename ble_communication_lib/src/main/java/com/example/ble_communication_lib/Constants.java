@@ -1,11 +1,5 @@
 package com.example.ble_communication_lib;
 
-import android.support.annotation.NonNull;
-
-import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.LinkedList;
-
 class Constants {
 //    static class Uuids {
 //        static final UUID ADVERTISE = UUID.fromString("b5998ea7-407c-4827-8a18-b446d9a763da");
@@ -21,32 +15,45 @@ class Constants {
         static final String CCCD = "000002902-0000-1000-8000-00805f9b34fb";
     }
 
+    // 通信方式の版。ブロックや接続直後の挨拶の形式を変えたら上げる
+    final static int PROTOCOL_VERSION = 3;
+
     final static int SIZE_OF_INT = 4;
+    // 各ブロックの先頭に付ける論理チャネル番号
+    final static int SIZE_OF_CHANNEL_HEAD = 1;
 
     final static int SIZE_OF_PACKET_HEAD = 3;
     final static int DEFAULT_BLOCK_SIZE = 20;
+    // BLEの既定MTU
+    final static int DEFAULT_MTU = 23;
+    // 接続後に要求するMTU。実際の値は相手端末との交渉で決まる
+    final static int REQUEST_MTU = 517;
+    // 1つの属性値として送れる最大バイト数
+    final static int MAX_BLOCK_SIZE = 512;
 
     final static int NUM_OF_CONNECTIBLE_DEVICE = 3;
-    final static String CONNECTED_SIGN = "012345";
-
-    @NonNull
-    static LinkedList<byte[]> splitData(@NonNull byte[] data, int blockSize) {
-        LinkedList<byte[]> splitData = new LinkedList<>();
-        int dataLen = data.length;
-        ByteBuffer buffer = ByteBuffer.allocate(Constants.SIZE_OF_INT + dataLen);
-        buffer.put(ByteBuffer.allocate(Constants.SIZE_OF_INT).putInt(dataLen).array());
-        buffer.put(data);
-        data = buffer.array();
-        int writeData = 0;
-        int cnt = 0;
-        while (data.length > writeData) {
-            byte[] block = (blockSize >= (data.length - writeData)) ?
-                    Arrays.copyOfRange(data, blockSize * cnt, data.length) :
-                    Arrays.copyOfRange(data, blockSize * cnt, blockSize * (cnt + 1));
-            splitData.add(block);
-            writeData += block.length;
-            cnt++;
-        }
-        return splitData;
+    // 1つのデータの最大バイト数。受信側は長さヘッダがこれを超えるデータを結合しない
+    final static int MAX_DATA_SIZE = 64 * 1024;
+    // 端末毎に溜められる送信待ちのブロック数
+    final static int MAX_SEND_QUEUE_DEPTH = 256;
+    // 通知に失敗したブロックを再送するまでの時間(ms)と、連続で再送する上限
+    final static long NOTIFY_RETRY_INTERVAL_MS = 10;
+    final static int MAX_NOTIFY_RETRY = 5;
+    // 応答無し書き込みで受信確認を待たずに送れるブロック数
+    final static int WRITE_WINDOW_SIZE = 8;
+    // 応答有り書き込みで、このブロック数を超えるデータは信頼性のある書き込み(長い書き込み)で送る
+    final static int RELIABLE_WRITE_THRESHOLD = 2;
+    // 送受信用の配列プールが保持する合計バイト数の上限
+    final static int MAX_POOLED_BYTES = 64 * 1024;
+    // 探索で見つけた端末を、見つからなくなってから破棄するまでの時間(ms)
+    final static long DISCOVERY_EXPIRE_MS = 10 * 1000;
+
+    /**
+     * 交渉したMTUから1回の送信で送れるデータサイズを求めます。
+     * @param mtu   交渉したMTU
+     * @return  1回の送信で送れるデータサイズ
+     */
+    static int getBlockSize(int mtu) {
+        return Math.max(DEFAULT_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, mtu - SIZE_OF_PACKET_HEAD));
     }
 }
@@ -0,0 +1,151 @@
+package com.example.ble_communication_lib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 探索で見つかったサーバ側端末をアドレス毎に保持するクラスです。<br>
+ * 電波強度を指数移動平均で平滑化し、最後に見つけた時刻と待機状態を記録します。
+ * 一定時間見つからない端末は破棄します。時刻は呼び出し元から渡し、1つのスレッドから使用してください。
+ * @param <D>   端末情報の型
+ */
+class DiscoveryCache<D> {
+    /**
+     * 1台分の記録
+     * @param <D>   端末情報の型
+     */
+    static class Entry<D> {
+        @NonNull
+        private final D mDevice;
+        private double mSmoothedRssi;
+        private long mLastSeenMs;
+        @Nullable
+        private LobbyInfo mLobbyInfo;
+
+        Entry(@NonNull D device, int rssi, long nowMs, @Nullable LobbyInfo lobbyInfo) {
+            mDevice = device;
+            mSmoothedRssi = rssi;
+            mLastSeenMs = nowMs;
+            mLobbyInfo = lobbyInfo;
+        }
+
+        @NonNull
+        D getDevice() {
+            return mDevice;
+        }
+
+        int getSmoothedRssi() {
+            return (int) Math.round(mSmoothedRssi);
+        }
+
+        long getLastSeenMs() {
+            return mLastSeenMs;
+        }
+
+        @Nullable
+        LobbyInfo getLobbyInfo() {
+            return mLobbyInfo;
+        }
+
+        boolean isJoinable() {
+            return (null != mLobbyInfo) && mLobbyInfo.isJoinable();
+        }
+    }
+
+    // 新しい電波強度の重み
+    private static final double RSSI_SMOOTHING_FACTOR = 0.25;
+
+    @NonNull
+    private final HashMap<String, Entry<D>> mEntryMap = new HashMap<>();
+    private final long mExpireMs;
+
+    /**
+     * @param expireMs  見つからなくなってから破棄するまでの時間(ms)
+     */
+    DiscoveryCache(long expireMs) {
+        mExpireMs = expireMs;
+    }
+
+    /**
+     * スキャン結果を記録します。
+     * @param address   端末のアドレス
+     * @param device    端末情報
+     * @param rssi      受信した電波強度(dBm)
+     * @param lobbyInfo スキャン応答の待機状態
+     * @param nowMs     現在時刻(ms)
+     * @return  true: 初めて見つけたか、待機状態が変わった
+     */
+    boolean update(
+            @NonNull String address,
+            @NonNull D device,
+            int rssi,
+            @Nullable LobbyInfo lobbyInfo,
+            long nowMs) {
+        Entry<D> entry = mEntryMap.get(address);
+        if (null == entry) {
+            mEntryMap.put(address, new Entry<>(device, rssi, nowMs, lobbyInfo));
+            return true;
+        }
+        entry.mSmoothedRssi += RSSI_SMOOTHING_FACTOR * (rssi - entry.mSmoothedRssi);
+        entry.mLastSeenMs = nowMs;
+        if (Objects.equals(entry.mLobbyInfo, lobbyInfo)) {
+            return false;
+        }
+        entry.mLobbyInfo = lobbyInfo;
+        return true;
+    }
+
+    @Nullable
+    Entry<D> get(@NonNull String address) {
+        return mEntryMap.get(address);
+    }
+
+    /**
+     * 一定時間見つからない端末を破棄します。
+     * @param nowMs 現在時刻(ms)
+     */
+    void expire(long nowMs) {
+        Iterator<Entry<D>> iterator = mEntryMap.values().iterator();
+        while (iterator.hasNext()) {
+            if (mExpireMs < (nowMs - iterator.next().mLastSeenMs)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return  接続できる端末のうち、平滑化した電波強度が最も強い端末。無ければnull
+     */
+    @Nullable
+    Entry<D> getBest() {
+        Entry<D> best = null;
+        for (Entry<D> entry : mEntryMap.values()) {
+            if (entry.isJoinable()
+                    && ((null == best) || (best.mSmoothedRssi < entry.mSmoothedRssi))) {
+                best = entry;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return  全ての端末。平滑化した電波強度の強い順
+     */
+    @NonNull
+    List<Entry<D>> getRankedEntries() {
+        ArrayList<Entry<D>> entries = new ArrayList<>(mEntryMap.values());
+        Collections.sort(entries, (lhs, rhs) -> Double.compare(rhs.mSmoothedRssi, lhs.mSmoothedRssi));
+        return entries;
+    }
+
+    void clear() {
+        mEntryMap.clear();
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.ble_communication_lib;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * 探索で見つかったサーバ側端末の情報です。
+ */
+public class DiscoveryResult {
+    @NonNull
+    private final BluetoothDevice mDevice;
+    private final int mRssi;
+    @Nullable
+    private final LobbyInfo mLobbyInfo;
+
+    DiscoveryResult(@NonNull BluetoothDevice device, int rssi, @Nullable LobbyInfo lobbyInfo) {
+        mDevice = device;
+        mRssi = rssi;
+        mLobbyInfo = lobbyInfo;
+    }
+
+    /**
+     * @return  サーバ側端末の端末情報
+     */
+    @NonNull
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * @return  受信した電波強度(dBm)
+     */
+    public int getRssi() {
+        return mRssi;
+    }
+
+    /**
+     * @return  スキャン応答の待機状態。載っていない場合はnull
+     */
+    @Nullable
+    public LobbyInfo getLobbyInfo() {
+        return mLobbyInfo;
+    }
+
+    /**
+     * @return  true: 通信方式が同じで、空きがある
+     */
+    public boolean isJoinable() {
+        return (null != mLobbyInfo) && mLobbyInfo.isJoinable();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return mDevice.getAddress() + " rssi: " + mRssi + " " + mLobbyInfo;
+    }
+}
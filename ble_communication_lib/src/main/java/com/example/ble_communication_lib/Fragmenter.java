@@ -0,0 +1,168 @@
+package com.example.ble_communication_lib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Objects;
+
+/**
+ * 送信データを1回の送信で送れるサイズのブロックに順に切り出すクラスです。<br>
+ * 各ブロックの先頭に論理チャネル番号(1バイト)を付け、先頭ブロックにはさらにデータ長(4バイト)のヘッダを付けます。
+ * データは複製せず、ブロックは{@link BufferPool}から取得した配列へ書き込み、次のブロックへ進めた時に返却します。
+ * 返したブロックは{@link #advance()}または{@link #clear()}を呼ぶまで有効です。
+ * 1つのスレッドから使用してください。
+ */
+class Fragmenter {
+    private static final int SIZE_OF_FIRST_HEAD =
+            Constants.SIZE_OF_CHANNEL_HEAD + Constants.SIZE_OF_INT;
+
+    @NonNull
+    private final BufferPool mPool;
+    @Nullable
+    private byte[] mData;
+    @NonNull
+    private Channel mChannel = Channel.Bulk;
+    private int mBlockSize;
+    // 送信済みのデータのバイト数。-1は先頭ブロックが未送信
+    private int mSentLen;
+    // 切り出し済みの送信中のブロック
+    @Nullable
+    private byte[] mBlock;
+
+    Fragmenter() {
+        this(BufferPool.getShared());
+    }
+
+    Fragmenter(@NonNull BufferPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * データを分割した時のブロック数を返します。
+     * @param dataLen   データのバイト数
+     * @param blockSize 1回の送信で送れるデータサイズ
+     * @return  ブロック数
+     */
+    static int getNumOfBlock(int dataLen, int blockSize) {
+        int restLen = Math.max(0, dataLen - (blockSize - SIZE_OF_FIRST_HEAD));
+        int payloadSize = blockSize - Constants.SIZE_OF_CHANNEL_HEAD;
+        return 1 + ((restLen + payloadSize - 1) / payloadSize);
+    }
+
+    /**
+     * 切り出すデータを差し替えます。
+     * @param data      送信データ
+     * @param channel   送信する論理チャネル
+     * @param blockSize 1回の送信で送れるデータサイズ
+     */
+    void reset(@NonNull byte[] data, @NonNull Channel channel, int blockSize) {
+        if ((SIZE_OF_FIRST_HEAD >= blockSize) || (Constants.MAX_BLOCK_SIZE < blockSize)) {
+            throw new IllegalArgumentException("Bad block size: " + blockSize);
+        }
+        releaseBlock();
+        mData = data;
+        mChannel = channel;
+        mBlockSize = blockSize;
+        mSentLen = -1;
+    }
+
+    /**
+     * 切り出し中のデータを手放します。
+     */
+    void clear() {
+        releaseBlock();
+        mData = null;
+    }
+
+    /**
+     * @return  true: 未送信のブロックがある
+     */
+    boolean hasRemaining() {
+        return (null != mData) && ((0 > mSentLen) || (mData.length > mSentLen));
+    }
+
+    /**
+     * @return  true: 先頭ブロックが未送信
+     */
+    boolean isFirstBlock() {
+        return (null != mData) && (0 > mSentLen);
+    }
+
+    /**
+     * @return  切り出し中のデータ。無ければnull
+     */
+    @Nullable
+    byte[] getData() {
+        return mData;
+    }
+
+    @NonNull
+    Channel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * @return  未送信のブロック数
+     */
+    int getRemainingBlock() {
+        if (!hasRemaining()) {
+            return 0;
+        }
+        if (0 > mSentLen) {
+            return getNumOfBlock(mData.length, mBlockSize);
+        }
+        int payloadSize = mBlockSize - Constants.SIZE_OF_CHANNEL_HEAD;
+        return (mData.length - mSentLen + payloadSize - 1) / payloadSize;
+    }
+
+    /**
+     * 未送信の先頭ブロックを返します。送信が完了したら{@link #advance()}で次へ進めてください。
+     * 送信をやり直す場合は同じ配列を返します。
+     * @return  ブロック。プールの配列のため保持しないでください。
+     */
+    @NonNull
+    byte[] current() {
+        if (!hasRemaining()) {
+            throw new IllegalStateException("No remaining block.");
+        }
+        if (null != mBlock) {
+            return mBlock;
+        }
+        byte[] data = mData;
+        int headLen = (0 > mSentLen) ? SIZE_OF_FIRST_HEAD : Constants.SIZE_OF_CHANNEL_HEAD;
+        int dataOffset = Math.max(0, mSentLen);
+        int length = headLen + Math.min(mBlockSize - headLen, data.length - dataOffset);
+        byte[] block = mPool.acquire(length);
+        block[0] = (byte) mChannel.getId();
+        if (0 > mSentLen) {
+            // 先頭ブロックのみ長さのヘッダを書く
+            block[1] = (byte) (data.length >>> 24);
+            block[2] = (byte) (data.length >>> 16);
+            block[3] = (byte) (data.length >>> 8);
+            block[4] = (byte) data.length;
+        }
+        System.arraycopy(data, dataOffset, block, headLen, length - headLen);
+        mBlock = block;
+        return block;
+    }
+
+    /**
+     * 先頭ブロックの送信完了として次のブロックへ進めます。
+     */
+    void advance() {
+        if (!hasRemaining()) {
+            throw new IllegalStateException("No remaining block.");
+        }
+        Objects.requireNonNull(mData);
+        int headLen = (0 > mSentLen) ? SIZE_OF_FIRST_HEAD : Constants.SIZE_OF_CHANNEL_HEAD;
+        releaseBlock();
+        mSentLen = Math.min(mData.length, Math.max(0, mSentLen) + mBlockSize - headLen);
+    }
+
+    private void releaseBlock() {
+        if (null != mBlock) {
+            mPool.release(mBlock);
+            mBlock = null;
+        }
+    }
+}
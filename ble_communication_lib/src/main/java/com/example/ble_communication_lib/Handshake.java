@@ -0,0 +1,100 @@
+package com.example.ble_communication_lib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 接続直後に交換する挨拶です。<br>
+ * クライアント側端末は通知を有効にした直後に最初のデータとしてHELLOを送り、
+ * サーバ側端末は最初に受信したデータをHELLOとして読み、WELCOMEを返します。
+ * 通信方式の版が一致しなければ切断します。
+ */
+class Handshake {
+    enum Kind {
+        Hello((byte) 0x01),
+        Welcome((byte) 0x02),
+        ;
+        private final byte mByte;
+
+        Kind(byte kindByte) {
+            mByte = kindByte;
+        }
+
+        @Nullable
+        static Kind valueOf(byte kindByte) {
+            for (Kind kind : values()) {
+                if (kind.mByte == kindByte) {
+                    return kind;
+                }
+            }
+            return null;
+        }
+    }
+
+    // 種別(1) + 通信方式の版(1) + MTU(2)
+    static final int SIZE_OF_HANDSHAKE = 4;
+
+    @NonNull
+    private final Kind mKind;
+    private final int mProtocolVersion;
+    private final int mMtu;
+
+    Handshake(@NonNull Kind kind, int protocolVersion, int mtu) {
+        mKind = kind;
+        mProtocolVersion = protocolVersion;
+        mMtu = mtu;
+    }
+
+    /**
+     * 受信したデータから挨拶を読み出します。
+     * @param payload   受信したデータ。位置は変えない
+     * @return  挨拶。形式が不正な場合はnull
+     */
+    @Nullable
+    static Handshake decode(@NonNull ByteBuffer payload) {
+        if (SIZE_OF_HANDSHAKE > payload.remaining()) {
+            return null;
+        }
+        ByteBuffer buffer = payload.duplicate();
+        Kind kind = Kind.valueOf(buffer.get());
+        if (null == kind) {
+            return null;
+        }
+        return new Handshake(kind, buffer.get() & 0xFF, buffer.getShort() & 0xFFFF);
+    }
+
+    @NonNull
+    byte[] encode() {
+        return ByteBuffer.allocate(SIZE_OF_HANDSHAKE)
+                .put(mKind.mByte)
+                .put((byte) mProtocolVersion)
+                .putShort((short) mMtu)
+                .array();
+    }
+
+    @NonNull
+    Kind getKind() {
+        return mKind;
+    }
+
+    int getProtocolVersion() {
+        return mProtocolVersion;
+    }
+
+    /**
+     * @return  クライアント側端末が交渉したMTU
+     */
+    int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @param kind  期待する種別
+     * @return  true: 期待する種別で、通信方式の版が一致する
+     */
+    boolean isAcceptable(@NonNull Kind kind) {
+        return (kind == mKind) && (Constants.PROTOCOL_VERSION == mProtocolVersion);
+    }
+}
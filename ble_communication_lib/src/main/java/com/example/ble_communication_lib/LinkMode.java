@@ -0,0 +1,39 @@
+package com.example.ble_communication_lib;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * 接続の通信間隔とPHYの方針です。{@link BleDataCommunicationClient#setLinkMode(LinkMode)}で切り替えます。
+ */
+public enum LinkMode {
+    /**
+     * 通信間隔を短くし、2M PHYを優先します。応答の速さが必要な間に使います。
+     */
+    LowLatency(BluetoothGatt.CONNECTION_PRIORITY_HIGH, BluetoothDevice.PHY_LE_2M_MASK),
+    /**
+     * 既定の通信間隔と1M PHYを使います。
+     */
+    Balanced(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, BluetoothDevice.PHY_LE_1M_MASK),
+    /**
+     * 通信間隔を長くし、消費電力を抑えます。ほとんど通信しない間に使います。
+     */
+    LowPower(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, BluetoothDevice.PHY_LE_1M_MASK),
+    ;
+
+    private final int mConnectionPriority;
+    private final int mPhyMask;
+
+    LinkMode(int connectionPriority, int phyMask) {
+        mConnectionPriority = connectionPriority;
+        mPhyMask = phyMask;
+    }
+
+    int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    int getPhyMask() {
+        return mPhyMask;
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.ble_communication_lib;
+
+import android.support.annotation.NonNull;
+
+/**
+ * 接続の通信パラメータです。取得した時点の値を保持します。
+ */
+public class LinkParameters {
+    @NonNull
+    private final LinkMode mMode;
+    private final boolean isPriorityAccepted;
+    private final boolean isPhyRequested;
+    private final int mTxPhy;
+    private final int mRxPhy;
+
+    LinkParameters(
+            @NonNull LinkMode mode,
+            boolean isPriorityAccepted,
+            boolean isPhyRequested,
+            int txPhy,
+            int rxPhy) {
+        mMode = mode;
+        this.isPriorityAccepted = isPriorityAccepted;
+        this.isPhyRequested = isPhyRequested;
+        mTxPhy = txPhy;
+        mRxPhy = rxPhy;
+    }
+
+    /**
+     * @return  設定されている方針
+     */
+    @NonNull
+    public LinkMode getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return  true: 方針の通信間隔の要求が受け付けられた
+     */
+    public boolean isPriorityAccepted() {
+        return isPriorityAccepted;
+    }
+
+    /**
+     * @return  true: 方針のPHYを要求した false: 端末が対応していないため要求していない
+     */
+    public boolean isPhyRequested() {
+        return isPhyRequested;
+    }
+
+    /**
+     * @return  交渉結果の送信側PHY。{@link android.bluetooth.BluetoothDevice#PHY_LE_1M}など
+     */
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    /**
+     * @return  交渉結果の受信側PHY。{@link android.bluetooth.BluetoothDevice#PHY_LE_1M}など
+     */
+    public int getRxPhy() {
+        return mRxPhy;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "mode: " + mMode + " priority: " + isPriorityAccepted
+                + " phy: " + (isPhyRequested ? (mTxPhy + "/" + mRxPhy) : "-");
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.ble_communication_lib;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * {@link LinkMode}に従って接続の通信間隔とPHYを要求し、交渉結果を記録するクラスです。<br>
+ * 方針は接続前から設定でき、接続した時点と方針が変わった時点で要求します。
+ * 1つのスレッドから使用してください。
+ */
+class LinkPolicy {
+    /**
+     * 接続に通信パラメータを要求するインターフェースです。{@link BluetoothGatt}への要求を抽象化します。
+     */
+    interface LinkController {
+        /**
+         * @param connectionPriority    {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH}など
+         * @return  true: 要求を受け付けた
+         */
+        boolean requestConnectionPriority(int connectionPriority);
+
+        /**
+         * @param phyMask   {@link BluetoothDevice#PHY_LE_2M_MASK}など
+         * @return  true: 要求した false: 端末が対応していない
+         */
+        boolean setPreferredPhy(int phyMask);
+    }
+
+    @NonNull
+    private LinkMode mMode = LinkMode.Balanced;
+    @Nullable
+    private LinkController mController;
+    private boolean isPriorityAccepted = false;
+    private boolean isPhyRequested = false;
+    private int mTxPhy = BluetoothDevice.PHY_LE_1M;
+    private int mRxPhy = BluetoothDevice.PHY_LE_1M;
+
+    /**
+     * 接続した時に呼び、現在の方針を要求します。
+     * @param controller    接続への要求先
+     */
+    void attach(@NonNull LinkController controller) {
+        mController = controller;
+        apply();
+    }
+
+    /**
+     * 切断した時に呼びます。方針は保持し、交渉結果は接続直後の値に戻します。
+     */
+    void detach() {
+        mController = null;
+        isPriorityAccepted = false;
+        isPhyRequested = false;
+        mTxPhy = BluetoothDevice.PHY_LE_1M;
+        mRxPhy = BluetoothDevice.PHY_LE_1M;
+    }
+
+    /**
+     * 方針を変更します。接続中であれば変更した方針を要求します。
+     * @param mode  方針
+     */
+    void setMode(@NonNull LinkMode mode) {
+        if (mMode == mode) {
+            return;
+        }
+        mMode = mode;
+        apply();
+    }
+
+    /**
+     * PHYの交渉結果を記録します。
+     * @param txPhy     送信側PHY
+     * @param rxPhy     受信側PHY
+     * @param status    交渉結果
+     */
+    void onPhyUpdated(int txPhy, int rxPhy, int status) {
+        if (BluetoothGatt.GATT_SUCCESS != status) {
+            return;
+        }
+        mTxPhy = txPhy;
+        mRxPhy = rxPhy;
+    }
+
+    @NonNull
+    LinkMode getMode() {
+        return mMode;
+    }
+
+    @NonNull
+    LinkParameters getParameters() {
+        return new LinkParameters(mMode, isPriorityAccepted, isPhyRequested, mTxPhy, mRxPhy);
+    }
+
+    private void apply() {
+        if (null == mController) {
+            return;
+        }
+        isPriorityAccepted = mController.requestConnectionPriority(mMode.getConnectionPriority());
+        isPhyRequested = mController.setPreferredPhy(mMode.getPhyMask());
+    }
+}
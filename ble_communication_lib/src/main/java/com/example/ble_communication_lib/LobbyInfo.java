@@ -0,0 +1,120 @@
+package com.example.ble_communication_lib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * サーバ側端末がスキャン応答で公開する待機状態です。<br>
+ * 接続せずに、満員のサーバや通信方式の異なるサーバを見分けるために使います。
+ */
+public class LobbyInfo {
+    // 通信方式の版(1) + 接続数(1) + 最大接続数(1) + 部屋名のハッシュ値(4)
+    static final int SIZE_OF_LOBBY_INFO = 7;
+
+    private final int mProtocolVersion;
+    private final int mNumOfConnection;
+    private final int mCapacity;
+    private final int mRoomHash;
+
+    LobbyInfo(int protocolVersion, int numOfConnection, int capacity, int roomHash) {
+        mProtocolVersion = protocolVersion;
+        mNumOfConnection = numOfConnection;
+        mCapacity = capacity;
+        mRoomHash = roomHash;
+    }
+
+    /**
+     * 部屋名からスキャン応答に載せるハッシュ値を求めます。
+     * @param roomName  部屋名
+     * @return  ハッシュ値。部屋名が無い場合は0
+     */
+    public static int hashRoomName(@Nullable String roomName) {
+        return (null == roomName) ? 0 : roomName.hashCode();
+    }
+
+    /**
+     * スキャン応答のサービスデータから待機状態を読み出します。
+     * @param serviceData   サービスデータ
+     * @return  待機状態。形式が不正な場合はnull
+     */
+    @Nullable
+    static LobbyInfo decode(@Nullable byte[] serviceData) {
+        if ((null == serviceData) || (SIZE_OF_LOBBY_INFO > serviceData.length)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(serviceData);
+        return new LobbyInfo(
+                buffer.get() & 0xFF, buffer.get() & 0xFF, buffer.get() & 0xFF, buffer.getInt());
+    }
+
+    @NonNull
+    byte[] encode() {
+        return ByteBuffer.allocate(SIZE_OF_LOBBY_INFO)
+                .put((byte) mProtocolVersion)
+                .put((byte) mNumOfConnection)
+                .put((byte) mCapacity)
+                .putInt(mRoomHash)
+                .array();
+    }
+
+    /**
+     * @return  接続しているクライアント側端末の数
+     */
+    public int getNumOfConnection() {
+        return mNumOfConnection;
+    }
+
+    /**
+     * @return  接続できるクライアント側端末の最大数
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return  部屋名のハッシュ値。{@link #hashRoomName(String)}で求めた値と比較します
+     */
+    public int getRoomHash() {
+        return mRoomHash;
+    }
+
+    /**
+     * @return  true: 自身と同じ通信方式で通信できる
+     */
+    public boolean isCompatible() {
+        return Constants.PROTOCOL_VERSION == mProtocolVersion;
+    }
+
+    /**
+     * @return  true: 通信方式が同じで、空きがある
+     */
+    public boolean isJoinable() {
+        return isCompatible() && (mCapacity > mNumOfConnection);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof LobbyInfo)) {
+            return false;
+        }
+        LobbyInfo other = (LobbyInfo) obj;
+        return (mProtocolVersion == other.mProtocolVersion)
+                && (mNumOfConnection == other.mNumOfConnection)
+                && (mCapacity == other.mCapacity)
+                && (mRoomHash == other.mRoomHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return ((mProtocolVersion * 31 + mNumOfConnection) * 31 + mCapacity) * 31 + mRoomHash;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "version: " + mProtocolVersion + " connection: " + mNumOfConnection
+                + "/" + mCapacity + " room: " + Integer.toHexString(mRoomHash);
+    }
+}
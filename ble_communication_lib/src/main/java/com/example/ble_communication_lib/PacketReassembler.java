@@ -0,0 +1,129 @@
+package com.example.ble_communication_lib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * {@link Fragmenter}で切り出された1つの論理チャネルのブロックを1つのデータに結合するクラスです。<br>
+ * 各ブロック先頭のチャネル番号は読み飛ばすため、呼び出し元でチャネル毎に振り分けてください。
+ * 先頭ブロックの長さヘッダから必要なサイズを確保し、バッファは接続中のデータ間で使い回します。
+ * バッファは{@link BufferPool}から取得し、{@link #release()}で返却します。
+ * 接続毎に1つ生成し、1つのスレッドから使用してください。
+ */
+class PacketReassembler {
+    private static final int INITIAL_CAPACITY = 256;
+
+    @NonNull
+    private final BufferPool mPool;
+    @Nullable
+    private byte[] mBuffer;
+    private int mDataLen;
+    private int mReceivedLen;
+    private boolean isReceiving = false;
+
+    PacketReassembler() {
+        this(BufferPool.getShared());
+    }
+
+    PacketReassembler(@NonNull BufferPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * 受信したブロックを結合します。
+     * @param block 受信したブロック
+     * @return  true: データが揃った false: 続きのブロックを待っている
+     * @throws IOException  ヘッダが不正な場合、宣言された長さが{@link Constants#MAX_DATA_SIZE}を超える場合、
+     *                      または宣言された長さを超えて受信した場合に投げられます。
+     *                      この場合は結合途中のデータを破棄します。
+     */
+    boolean append(@NonNull byte[] block) throws IOException {
+        // 先頭ブロックのみチャネル番号に続いて長さのヘッダを持つ
+        int offset = isReceiving
+                ? Constants.SIZE_OF_CHANNEL_HEAD
+                : (Constants.SIZE_OF_CHANNEL_HEAD + Constants.SIZE_OF_INT);
+        if (offset > block.length) {
+            throw new IOException("Too short header: " + block.length);
+        }
+        if (!isReceiving) {
+            int dataLen = ((block[1] & 0xFF) << 24) | ((block[2] & 0xFF) << 16)
+                    | ((block[3] & 0xFF) << 8) | (block[4] & 0xFF);
+            if ((0 > dataLen) || (Constants.MAX_DATA_SIZE < dataLen)) {
+                throw new IOException("Bad data length: " + dataLen);
+            }
+            // 宣言された長さが今までで最大の場合のみ確保し直す
+            if ((null == mBuffer) || (mBuffer.length < dataLen)) {
+                if (null != mBuffer) {
+                    mPool.release(mBuffer);
+                }
+                mBuffer = mPool.acquire(Math.max(INITIAL_CAPACITY, dataLen));
+            }
+            mDataLen = dataLen;
+            mReceivedLen = 0;
+            isReceiving = true;
+        }
+        int length = block.length - offset;
+        if (mDataLen < (mReceivedLen + length)) {
+            reset();
+            throw new IOException("Data overflow: " + (mReceivedLen + length) + "/" + mDataLen);
+        }
+        Objects.requireNonNull(mBuffer);
+        System.arraycopy(block, offset, mBuffer, mReceivedLen, length);
+        mReceivedLen += length;
+        if (mDataLen != mReceivedLen) {
+            return false;
+        }
+        isReceiving = false;
+        return true;
+    }
+
+    /**
+     * 結合が完了したデータを読み取り専用で参照します。次に{@link #append(byte[])}を呼ぶまで有効です。
+     * @return  結合したデータ
+     */
+    @NonNull
+    ByteBuffer getPayload() {
+        if (null == mBuffer) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(mBuffer, 0, mDataLen).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * 結合が完了したデータをプールの配列へ複製して返します。別スレッドへ渡す場合に使います。
+     * @return  結合したデータの複製。使い終わったら{@link BufferPool#release(byte[])}で返却してください。
+     */
+    @NonNull
+    byte[] acquirePayload() {
+        byte[] payload = mPool.acquire(mDataLen);
+        if (0 < mDataLen) {
+            Objects.requireNonNull(mBuffer);
+            System.arraycopy(mBuffer, 0, payload, 0, mDataLen);
+        }
+        return payload;
+    }
+
+    /**
+     * 結合途中のデータを破棄します。確保済みのバッファは保持します。
+     */
+    void reset() {
+        isReceiving = false;
+        mDataLen = 0;
+        mReceivedLen = 0;
+    }
+
+    /**
+     * 結合途中のデータを破棄し、バッファをプールへ返却します。切断時に呼んでください。
+     */
+    void release() {
+        reset();
+        if (null != mBuffer) {
+            mPool.release(mBuffer);
+            mBuffer = null;
+        }
+    }
+}
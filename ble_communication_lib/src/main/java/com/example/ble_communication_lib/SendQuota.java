@@ -0,0 +1,84 @@
+package com.example.ble_communication_lib;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * クライアント側端末1台分の送信待ちブロック数と、上限までの空きの予約を管理するクラスです。<br>
+ * 呼び出し元スレッドは送信データのブロック数を予約してからハンドラスレッドへ送信を投稿し、
+ * ハンドラスレッドは送信キューに積んだ時点で予約を送信待ちブロック数へ移します。
+ * 予約と送信待ちの合計が上限を超えないため、受け付けたデータをハンドラスレッドで捨てることはありません。
+ * 予約はどのスレッドからでも行えます。送信待ちブロック数の更新はハンドラスレッドのみ行います。
+ */
+class SendQuota {
+    private final int mCapacity;
+    // 送信待ちのブロック数。送信中のデータの残りを含む
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    // 投稿済みで、まだ送信キューに積んでいないブロック数
+    private final AtomicInteger mReservedBlocks = new AtomicInteger();
+    // ブロック数を数えるためのブロックサイズ。MTU変更により更新される
+    private volatile int mBlockSize = Constants.DEFAULT_BLOCK_SIZE;
+    private final AtomicLong mRefusedDataCount = new AtomicLong();
+
+    SendQuota(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * 送信データのブロック数分の空きを予約します。
+     * @param dataLen   送信データのバイト数
+     * @return  予約したブロック数。送信待ちが一杯で予約できなかった場合は0
+     * @throws IllegalArgumentException 1つのデータで上限を超える場合、
+     *                                  または{@link Constants#MAX_DATA_SIZE}を超える場合に投げられます。送り直しても送れません。
+     */
+    int reserve(int dataLen) throws IllegalArgumentException {
+        if (Constants.MAX_DATA_SIZE < dataLen) {
+            throw new IllegalArgumentException("Data is too large. Length: " + dataLen);
+        }
+        int numOfBlock = Fragmenter.getNumOfBlock(dataLen, mBlockSize);
+        if (mCapacity < numOfBlock) {
+            throw new IllegalArgumentException("Data is too large. Blocks: " + numOfBlock);
+        }
+        while (true) {
+            int reservedBlocks = mReservedBlocks.get();
+            if (mCapacity < (mQueueDepth.get() + reservedBlocks + numOfBlock)) {
+                mRefusedDataCount.incrementAndGet();
+                return 0;
+            }
+            if (mReservedBlocks.compareAndSet(reservedBlocks, reservedBlocks + numOfBlock)) {
+                return numOfBlock;
+            }
+        }
+    }
+
+    /**
+     * 予約を解放します。データを送信キューに積み、送信待ちブロック数へ反映した後に呼び出します。
+     * @param numOfBlock    {@link #reserve(int)}で予約したブロック数
+     */
+    void release(int numOfBlock) {
+        mReservedBlocks.addAndGet(-numOfBlock);
+    }
+
+    void setQueueDepth(int queueDepth) {
+        mQueueDepth.set(queueDepth);
+    }
+
+    void decrementQueueDepth() {
+        mQueueDepth.decrementAndGet();
+    }
+
+    int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    void setBlockSize(int blockSize) {
+        mBlockSize = blockSize;
+    }
+
+    /**
+     * @return  送信待ちが一杯で予約できなかったデータ数
+     */
+    long getRefusedDataCount() {
+        return mRefusedDataCount.get();
+    }
+}
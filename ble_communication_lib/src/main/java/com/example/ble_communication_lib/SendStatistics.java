@@ -0,0 +1,69 @@
+package com.example.ble_communication_lib;
+
+import android.support.annotation.NonNull;
+
+/**
+ * クライアント側端末1台分の送信キューの統計情報です。取得した時点の値を保持します。
+ */
+public class SendStatistics {
+    private final int mQueueDepth;
+    private final int mMaxQueueDepth;
+    private final long mSentBlockCount;
+    private final long mDroppedDataCount;
+    private final long mRetryCount;
+
+    SendStatistics(
+            int queueDepth,
+            int maxQueueDepth,
+            long sentBlockCount,
+            long droppedDataCount,
+            long retryCount) {
+        mQueueDepth = queueDepth;
+        mMaxQueueDepth = maxQueueDepth;
+        mSentBlockCount = sentBlockCount;
+        mDroppedDataCount = droppedDataCount;
+        mRetryCount = retryCount;
+    }
+
+    /**
+     * @return  送信待ちのブロック数
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * @return  接続してからの送信待ちブロック数の最大値
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * @return  送信が完了したブロック数
+     */
+    public long getSentBlockCount() {
+        return mSentBlockCount;
+    }
+
+    /**
+     * @return  キューが一杯で送信できなかったデータ数
+     */
+    public long getDroppedDataCount() {
+        return mDroppedDataCount;
+    }
+
+    /**
+     * @return  ブロックの送信をやり直した回数
+     */
+    public long getRetryCount() {
+        return mRetryCount;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "depth: " + mQueueDepth + " max: " + mMaxQueueDepth + " sent: " + mSentBlockCount
+                + " dropped: " + mDroppedDataCount + " retry: " + mRetryCount;
+    }
+}
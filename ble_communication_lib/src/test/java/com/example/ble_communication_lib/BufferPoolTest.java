@@ -0,0 +1,48 @@
+package com.example.ble_communication_lib;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BufferPoolTest {
+    @Test
+    public void reuse() {
+        BufferPool pool = new BufferPool(true, 1024);
+        byte[] first = pool.acquire(20);
+        Assert.assertEquals(20, first.length);
+        pool.release(first);
+        Assert.assertSame(first, pool.acquire(20));
+        // 長さの異なる配列は使い回さない
+        Assert.assertEquals(21, pool.acquire(21).length);
+
+        BufferPoolStatistics statistics = pool.getStatistics();
+        Assert.assertEquals(1, statistics.getHitCount());
+        Assert.assertEquals(2, statistics.getMissCount());
+        Assert.assertEquals(2, statistics.getOutstandingCount());
+        Assert.assertEquals(1.0 / 3, statistics.getHitRate(), 0.001);
+    }
+
+    @Test
+    public void limit() {
+        BufferPool pool = new BufferPool(true, 30);
+        byte[] first = pool.acquire(20);
+        byte[] second = pool.acquire(20);
+        pool.release(first);
+        // 上限を超える分は保持しない
+        pool.release(second);
+        Assert.assertEquals(20, pool.getStatistics().getPooledBytes());
+        Assert.assertEquals(0, pool.getStatistics().getOutstandingCount());
+
+        // ブロックより長い配列は保持しない
+        byte[] large = pool.acquire(Constants.MAX_BLOCK_SIZE + 1);
+        pool.release(large);
+        Assert.assertNotSame(large, pool.acquire(Constants.MAX_BLOCK_SIZE + 1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleRelease() {
+        BufferPool pool = new BufferPool(true, 1024);
+        byte[] buffer = pool.acquire(20);
+        pool.release(buffer);
+        pool.release(buffer);
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.ble_communication_lib;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class ChannelSchedulerTest {
+    @Test
+    public void preempt() throws IOException {
+        ChannelScheduler scheduler = new ChannelScheduler(20);
+        byte[] bulk = new byte[100];
+        scheduler.offer(Channel.Bulk, bulk);
+        Assert.assertEquals(Channel.Bulk, scheduler.select());
+        Assert.assertTrue(scheduler.isFirstBlock());
+        scheduler.advance();
+
+        // 送信途中の大きいデータのブロックの間に割り込む
+        byte[] control = new byte[]{1, 2, 3};
+        scheduler.offer(Channel.Control, control);
+        Assert.assertEquals(Channel.Control, scheduler.select());
+        PacketReassembler reassembler = new PacketReassembler();
+        Assert.assertTrue(reassembler.append(scheduler.current()));
+        Assert.assertArrayEquals(control, reassembler.acquirePayload());
+        Assert.assertTrue(scheduler.advance());
+
+        Assert.assertEquals(Channel.Bulk, scheduler.select());
+        Assert.assertFalse(scheduler.isFirstBlock());
+        Assert.assertEquals(Fragmenter.getNumOfBlock(bulk.length, 20) - 1,
+                scheduler.getRemainingBlock());
+    }
+
+    @Test
+    public void keepBlockUntilAdvance() {
+        ChannelScheduler scheduler = new ChannelScheduler(20);
+        scheduler.offer(Channel.Bulk, new byte[100]);
+        Assert.assertEquals(Channel.Bulk, scheduler.select());
+        byte[] block = scheduler.current();
+        // 送信中のブロックは優先度の高いデータが来ても切り替えない
+        scheduler.offer(Channel.Control, new byte[1]);
+        Assert.assertEquals(Channel.Bulk, scheduler.select());
+        Assert.assertSame(block, scheduler.current());
+    }
+
+    @Test
+    public void takeCurrentData() {
+        ChannelScheduler scheduler = new ChannelScheduler(20);
+        byte[] data = new byte[100];
+        scheduler.offer(Channel.Bulk, data);
+        scheduler.select();
+        Assert.assertSame(data, scheduler.takeCurrentData());
+        Assert.assertFalse(scheduler.hasRemaining());
+        Assert.assertNull(scheduler.select());
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.ble_communication_lib;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class DiscoveryCacheTest {
+    private static final LobbyInfo JOINABLE = new LobbyInfo(Constants.PROTOCOL_VERSION, 0, 3, 0);
+    private static final LobbyInfo FULL = new LobbyInfo(Constants.PROTOCOL_VERSION, 3, 3, 0);
+
+    @Test
+    public void reportOnlyNewOrChanged() {
+        DiscoveryCache<String> cache = new DiscoveryCache<>(1000);
+        Assert.assertTrue(cache.update("A", "a", -60, JOINABLE, 0));
+        Assert.assertFalse(cache.update("A", "a", -62, JOINABLE, 10));
+        Assert.assertTrue(cache.update("A", "a", -62, FULL, 20));
+        Assert.assertEquals(20, cache.get("A").getLastSeenMs());
+    }
+
+    @Test
+    public void smoothRssi() {
+        DiscoveryCache<String> cache = new DiscoveryCache<>(1000);
+        cache.update("A", "a", -60, JOINABLE, 0);
+        // 1回だけ弱く受信しても、平滑値は大きく変わらない
+        cache.update("A", "a", -100, JOINABLE, 10);
+        Assert.assertEquals(-70, cache.get("A").getSmoothedRssi());
+    }
+
+    @Test
+    public void bestJoinable() {
+        DiscoveryCache<String> cache = new DiscoveryCache<>(1000);
+        Assert.assertNull(cache.getBest());
+        cache.update("A", "a", -70, JOINABLE, 0);
+        cache.update("B", "b", -50, FULL, 0);
+        cache.update("C", "c", -60, JOINABLE, 0);
+        cache.update("D", "d", -40, null, 0);
+        Assert.assertEquals("c", cache.getBest().getDevice());
+
+        List<DiscoveryCache.Entry<String>> entries = cache.getRankedEntries();
+        Assert.assertEquals(4, entries.size());
+        Assert.assertEquals("d", entries.get(0).getDevice());
+        Assert.assertEquals("b", entries.get(1).getDevice());
+        Assert.assertEquals("c", entries.get(2).getDevice());
+        Assert.assertEquals("a", entries.get(3).getDevice());
+    }
+
+    @Test
+    public void expire() {
+        DiscoveryCache<String> cache = new DiscoveryCache<>(1000);
+        cache.update("A", "a", -60, JOINABLE, 0);
+        cache.update("B", "b", -70, JOINABLE, 500);
+        cache.expire(1000);
+        Assert.assertNotNull(cache.get("A"));
+        cache.expire(1001);
+        Assert.assertNull(cache.get("A"));
+        Assert.assertEquals("b", cache.getBest().getDevice());
+        // 破棄後に再び見つけた場合は新しい端末として通知する
+        Assert.assertTrue(cache.update("A", "a", -60, JOINABLE, 1100));
+
+        cache.clear();
+        Assert.assertNull(cache.getBest());
+    }
+}
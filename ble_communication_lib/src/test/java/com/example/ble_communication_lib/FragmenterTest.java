@@ -0,0 +1,54 @@
+package com.example.ble_communication_lib;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class FragmenterTest {
+    @Test
+    public void fragment() {
+        byte[] data = new byte[40];
+        for (int cnt = 0; data.length > cnt; cnt++) {
+            data[cnt] = (byte) (cnt + 1);
+        }
+        Fragmenter fragmenter = new Fragmenter();
+        fragmenter.reset(data, Channel.Bulk, 20);
+        // チャネル1バイト + 長さ4バイト + 15バイト、以降はチャネル1バイト + 19バイト
+        Assert.assertEquals(3, Fragmenter.getNumOfBlock(data.length, 20));
+        Assert.assertEquals(3, fragmenter.getRemainingBlock());
+
+        byte[] first = fragmenter.current();
+        Assert.assertEquals(20, first.length);
+        Assert.assertArrayEquals(new byte[]{1, 0, 0, 0, 40, 1, 2}, Arrays.copyOf(first, 7));
+        fragmenter.advance();
+        byte[] second = fragmenter.current();
+        Assert.assertEquals(1, second[0]);
+        Assert.assertEquals(16, second[1]);
+        fragmenter.advance();
+        byte[] last = fragmenter.current();
+        Assert.assertEquals(7, last.length);
+        Assert.assertEquals(40, last[6]);
+        fragmenter.advance();
+        Assert.assertFalse(fragmenter.hasRemaining());
+    }
+
+    @Test
+    public void reuseBlock() {
+        Fragmenter fragmenter = new Fragmenter(new BufferPool(true, 1024));
+        fragmenter.reset(new byte[100], Channel.Bulk, 20);
+        fragmenter.advance();
+        byte[] second = fragmenter.current();
+        fragmenter.advance();
+        Assert.assertSame(second, fragmenter.current());
+    }
+
+    @Test
+    public void currentUntilAdvance() {
+        Fragmenter fragmenter = new Fragmenter();
+        fragmenter.reset(new byte[]{1, 2, 3}, Channel.Control, 20);
+        Assert.assertArrayEquals(new byte[]{0, 0, 0, 0, 3, 1, 2, 3}, fragmenter.current());
+        // 再送時は同じブロックを返す
+        Assert.assertArrayEquals(new byte[]{0, 0, 0, 0, 3, 1, 2, 3}, fragmenter.current());
+    }
+}
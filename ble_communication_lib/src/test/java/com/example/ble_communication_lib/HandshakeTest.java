@@ -0,0 +1,38 @@
+package com.example.ble_communication_lib;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class HandshakeTest {
+    @Test
+    public void encodeDecode() {
+        byte[] data = new Handshake(
+                Handshake.Kind.Hello, Constants.PROTOCOL_VERSION, 517).encode();
+        Assert.assertEquals(Handshake.SIZE_OF_HANDSHAKE, data.length);
+
+        ByteBuffer payload = ByteBuffer.wrap(data);
+        Handshake hello = Handshake.decode(payload);
+        Assert.assertNotNull(hello);
+        // 読み出しても受信データの位置は変わらない
+        Assert.assertEquals(0, payload.position());
+        Assert.assertTrue(Handshake.Kind.Hello == hello.getKind());
+        Assert.assertEquals(517, hello.getMtu());
+        Assert.assertTrue(hello.isAcceptable(Handshake.Kind.Hello));
+        Assert.assertFalse(hello.isAcceptable(Handshake.Kind.Welcome));
+    }
+
+    @Test
+    public void reject() {
+        byte[] data = new Handshake(
+                Handshake.Kind.Welcome, Constants.PROTOCOL_VERSION + 1, 23).encode();
+        Assert.assertFalse(Handshake.decode(ByteBuffer.wrap(data))
+                .isAcceptable(Handshake.Kind.Welcome));
+
+        Assert.assertNull(Handshake.decode(ByteBuffer.wrap(new byte[3])));
+        // 通常のデータを挨拶として受け取った場合
+        data[0] = 0x7F;
+        Assert.assertNull(Handshake.decode(ByteBuffer.wrap(data)));
+    }
+}
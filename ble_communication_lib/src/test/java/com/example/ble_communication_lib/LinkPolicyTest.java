@@ -0,0 +1,95 @@
+package com.example.ble_communication_lib;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+public class LinkPolicyTest {
+    private static class FakeLinkController implements LinkPolicy.LinkController {
+        private final ArrayList<Integer> mPriorityList = new ArrayList<>();
+        private final ArrayList<Integer> mPhyList = new ArrayList<>();
+        private boolean isPhySupported = true;
+
+        @Override
+        public boolean requestConnectionPriority(int connectionPriority) {
+            mPriorityList.add(connectionPriority);
+            return true;
+        }
+
+        @Override
+        public boolean setPreferredPhy(int phyMask) {
+            if (!isPhySupported) {
+                return false;
+            }
+            mPhyList.add(phyMask);
+            return true;
+        }
+    }
+
+    @Test
+    public void phaseTransition() {
+        LinkPolicy policy = new LinkPolicy();
+        FakeLinkController controller = new FakeLinkController();
+        // 待機中に接続
+        policy.attach(controller);
+        // 出題
+        policy.setMode(LinkMode.LowLatency);
+        // 同じ方針は要求し直さない
+        policy.setMode(LinkMode.LowLatency);
+        // 結果発表
+        policy.setMode(LinkMode.LowPower);
+
+        Assert.assertEquals(3, controller.mPriorityList.size());
+        Assert.assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED,
+                (int) controller.mPriorityList.get(0));
+        Assert.assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH,
+                (int) controller.mPriorityList.get(1));
+        Assert.assertEquals(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER,
+                (int) controller.mPriorityList.get(2));
+        Assert.assertEquals(BluetoothDevice.PHY_LE_2M_MASK, (int) controller.mPhyList.get(1));
+        Assert.assertEquals(LinkMode.LowPower, policy.getParameters().getMode());
+    }
+
+    @Test
+    public void modeBeforeConnection() {
+        LinkPolicy policy = new LinkPolicy();
+        policy.setMode(LinkMode.LowLatency);
+        FakeLinkController controller = new FakeLinkController();
+        policy.attach(controller);
+        Assert.assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH,
+                (int) controller.mPriorityList.get(0));
+        Assert.assertTrue(policy.getParameters().isPriorityAccepted());
+    }
+
+    @Test
+    public void recordPhy() {
+        LinkPolicy policy = new LinkPolicy();
+        policy.attach(new FakeLinkController());
+        policy.setMode(LinkMode.LowLatency);
+        policy.onPhyUpdated(BluetoothDevice.PHY_LE_2M, BluetoothDevice.PHY_LE_2M,
+                BluetoothGatt.GATT_FAILURE);
+        Assert.assertEquals(BluetoothDevice.PHY_LE_1M, policy.getParameters().getTxPhy());
+        policy.onPhyUpdated(BluetoothDevice.PHY_LE_2M, BluetoothDevice.PHY_LE_1M,
+                BluetoothGatt.GATT_SUCCESS);
+        Assert.assertEquals(BluetoothDevice.PHY_LE_2M, policy.getParameters().getTxPhy());
+        Assert.assertEquals(BluetoothDevice.PHY_LE_1M, policy.getParameters().getRxPhy());
+
+        // 切断すると交渉結果は戻り、方針は残る
+        policy.detach();
+        Assert.assertEquals(BluetoothDevice.PHY_LE_1M, policy.getParameters().getTxPhy());
+        Assert.assertEquals(LinkMode.LowLatency, policy.getParameters().getMode());
+    }
+
+    @Test
+    public void phyNotSupported() {
+        LinkPolicy policy = new LinkPolicy();
+        FakeLinkController controller = new FakeLinkController();
+        controller.isPhySupported = false;
+        policy.attach(controller);
+        Assert.assertFalse(policy.getParameters().isPhyRequested());
+    }
+}
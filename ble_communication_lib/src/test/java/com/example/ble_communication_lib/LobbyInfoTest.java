@@ -0,0 +1,37 @@
+package com.example.ble_communication_lib;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LobbyInfoTest {
+    @Test
+    public void encodeDecode() {
+        LobbyInfo lobbyInfo = new LobbyInfo(
+                Constants.PROTOCOL_VERSION, 2, 3, LobbyInfo.hashRoomName("room"));
+        byte[] serviceData = lobbyInfo.encode();
+        Assert.assertEquals(LobbyInfo.SIZE_OF_LOBBY_INFO, serviceData.length);
+
+        LobbyInfo decoded = LobbyInfo.decode(serviceData);
+        Assert.assertEquals(lobbyInfo, decoded);
+        Assert.assertEquals(2, decoded.getNumOfConnection());
+        Assert.assertEquals(3, decoded.getCapacity());
+        Assert.assertEquals(LobbyInfo.hashRoomName("room"), decoded.getRoomHash());
+        Assert.assertTrue(decoded.isJoinable());
+    }
+
+    @Test
+    public void notJoinable() {
+        // 満員
+        Assert.assertFalse(new LobbyInfo(Constants.PROTOCOL_VERSION, 3, 3, 0).isJoinable());
+        // 通信方式が異なる
+        LobbyInfo lobbyInfo = new LobbyInfo(Constants.PROTOCOL_VERSION + 1, 0, 3, 0);
+        Assert.assertFalse(lobbyInfo.isCompatible());
+        Assert.assertFalse(lobbyInfo.isJoinable());
+    }
+
+    @Test
+    public void badServiceData() {
+        Assert.assertNull(LobbyInfo.decode(null));
+        Assert.assertNull(LobbyInfo.decode(new byte[]{Constants.PROTOCOL_VERSION, 0}));
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.ble_communication_lib;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PacketReassemblerTest {
+    @Test
+    public void reassemble() throws IOException {
+        byte[] data = new byte[50];
+        for (int cnt = 0; data.length > cnt; cnt++) {
+            data[cnt] = (byte) cnt;
+        }
+        List<byte[]> blocks = split(data, Constants.DEFAULT_BLOCK_SIZE);
+        PacketReassembler reassembler = new PacketReassembler();
+        for (int cnt = 0; blocks.size() > cnt; cnt++) {
+            boolean isCompleted = reassembler.append(blocks.get(cnt));
+            Assert.assertEquals(blocks.size() - 1 == cnt, isCompleted);
+        }
+        Assert.assertArrayEquals(data, reassembler.acquirePayload());
+        ByteBuffer payload = reassembler.getPayload();
+        Assert.assertTrue(payload.isReadOnly());
+        Assert.assertEquals(data.length, payload.remaining());
+    }
+
+    @Test
+    public void reuseForNextData() throws IOException {
+        PacketReassembler reassembler = new PacketReassembler();
+        for (byte[] block : split(new byte[600], Constants.DEFAULT_BLOCK_SIZE)) {
+            reassembler.append(block);
+        }
+        byte[] data = new Handshake(
+                Handshake.Kind.Hello, Constants.PROTOCOL_VERSION, Constants.DEFAULT_MTU).encode();
+        Assert.assertTrue(reassembler.append(split(data, 20).get(0)));
+        Assert.assertArrayEquals(data, reassembler.acquirePayload());
+        Handshake hello = Handshake.decode(reassembler.getPayload());
+        Assert.assertNotNull(hello);
+        Assert.assertTrue(hello.isAcceptable(Handshake.Kind.Hello));
+    }
+
+    @Test
+    public void emptyData() throws IOException {
+        PacketReassembler reassembler = new PacketReassembler();
+        Assert.assertTrue(reassembler.append(split(new byte[0], 20).get(0)));
+        Assert.assertFalse(reassembler.getPayload().hasRemaining());
+    }
+
+    @Test(expected = IOException.class)
+    public void overflow() throws IOException {
+        PacketReassembler reassembler = new PacketReassembler();
+        reassembler.append(new byte[]{0, 0, 0, 0, 2, 1, 2, 3});
+    }
+
+    @Test(expected = IOException.class)
+    public void tooLargeDataLength() throws IOException {
+        PacketReassembler reassembler = new PacketReassembler();
+        // 約2GBを宣言するヘッダ。配列を確保する前に拒否する
+        reassembler.append(new byte[]{0, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1, 2, 3});
+    }
+
+    private static List<byte[]> split(byte[] data, int blockSize) {
+        ArrayList<byte[]> blocks = new ArrayList<>();
+        Fragmenter fragmenter = new Fragmenter();
+        fragmenter.reset(data, Channel.Bulk, blockSize);
+        while (fragmenter.hasRemaining()) {
+            blocks.add(fragmenter.current().clone());
+            fragmenter.advance();
+        }
+        return blocks;
+    }
+}
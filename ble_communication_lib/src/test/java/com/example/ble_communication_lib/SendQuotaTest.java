@@ -0,0 +1,30 @@
+package com.example.ble_communication_lib;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SendQuotaTest {
+    @Test
+    public void reserveUpToCapacity() {
+        SendQuota quota = new SendQuota(4);
+        // 既定のブロックサイズ(20)で、先頭ブロックに15バイト、以降は19バイトずつ
+        Assert.assertEquals(2, quota.reserve(30));
+        Assert.assertEquals(2, quota.reserve(30));
+        // 予約だけで上限に達しているため、積む前でも受け付けない
+        Assert.assertEquals(0, quota.reserve(1));
+        Assert.assertEquals(1, quota.getRefusedDataCount());
+
+        // ハンドラスレッドで積んだ後は送信待ちとして数える
+        quota.setQueueDepth(4);
+        quota.release(4);
+        Assert.assertEquals(0, quota.reserve(1));
+        quota.setQueueDepth(3);
+        Assert.assertEquals(1, quota.reserve(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectTooLargeData() {
+        // 送り直しても送れないデータは例外にする
+        new SendQuota(4).reserve(15 + (19 * 4));
+    }
+}
@@ -1,7 +1,27 @@
 package com.example.quiz_lib;
 
 public class Constants {
-    static final int MAX_NUM_OF_PLAYER = 4;
-    static final String PLAYER_ID_PREFIX = "player";
-    public static final int PLAYER_ID_LEN = PLAYER_ID_PREFIX.length() + 1;
+    // ホスト1 + 直接接続3 + 中継端末1段の先に3×3。回答状況のビット列は31人まで表せる
+    static final int MAX_NUM_OF_PLAYER = 13;
+    // 得点状況はこの回数毎に全員分(キーフレーム)を送り、それ以外は差分のみ送る
+    static final int KEYFRAME_INTERVAL = 4;
+    // 同じ端末宛のパケットをまとめて送るために待つ時間(ms)
+    static final long COALESCE_WINDOW_MS = 10;
+    // 送信キューが一杯で送れなかったパケットを送り直すまでの時間(ms)
+    static final long SEND_RETRY_INTERVAL_MS = 50;
+    // 1つのまとめ送りに収めるバイト数の上限。送り直しで溜まっても、送信側の送信キュー(256ブロック)に収まる大きさに抑える
+    static final int MAX_BATCH_BYTES = 1024;
+    // 待機中に問題集を1問ずつゲストへ事前配信する間隔(ms)。他のパケットを待たせないよう小分けにする
+    static final long QUESTION_PRELOAD_INTERVAL_MS = 50;
+    // ホストを探すとき、最も電波の強いホストを見比べる時間(ms)
+    static final long JOIN_WINDOW_MS = 1500;
+    // 出題中に切断したゲストの復帰を待つ時間(ms)。ゲストはこの時間だけ再接続を試みる
+    static final long RESUME_GRACE_MS = 5000;
+    // 再接続に失敗してから再度試みるまでの時間(ms)
+    static final long RECONNECT_INTERVAL_MS = 250;
+    // 中継端末の先のゲストの回答がホストに届くまでの遅延の目安(ms)
+    static final long RELAY_LATENCY_BUDGET_MS = 100;
+    // 中継端末が下流のゲストのパケットをまとめてホストへ送るために待つ時間(ms)。
+    // ホストのまとめ送り10msと、2回の通信間隔(出題中は約7.5ms〜15ms)を足しても目安に収まる。中継は1段まで
+    static final long RELAY_COALESCE_WINDOW_MS = 20;
 }
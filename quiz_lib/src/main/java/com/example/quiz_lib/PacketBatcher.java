@@ -0,0 +1,180 @@
+package com.example.quiz_lib;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+
+import com.example.quiz_lib.packet.QuizPacketEncoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 短時間に同じ宛先へ送られるパケットを1つのまとめ送り(Batch)パケットにまとめるクラスです。<br>
+ * 最初のパケットを受け付けてから一定時間後にまとめて送信します。ハンドラのスレッドからのみ呼び出してください。<br>
+ * 送信キューが一杯で送れなかった宛先のパケットは破棄せず、後から積まれたパケットと共に時間を置いて送り直します。
+ * @param <K>   宛先の型
+ */
+class PacketBatcher<K> {
+    interface Sender<K> {
+        /**
+         * 同じデータを複数の宛先へ送ります。
+         * @param destinations  宛先
+         * @param data          送信データ
+         * @return  送信キューが一杯で送れなかった宛先。全て送れた場合は空
+         */
+        @NonNull
+        List<K> send(@NonNull List<K> destinations, @NonNull byte[] data);
+    }
+
+    @NonNull
+    private final Handler mHandler;
+    private final long mWindowMs;
+    @NonNull
+    private final Sender<K> mSender;
+    @NonNull
+    private final LinkedHashMap<K, ArrayList<byte[]>> mPendingMap = new LinkedHashMap<>();
+    // 前回のまとめ送りで送れなかった宛先
+    @NonNull
+    private final HashSet<K> mBackedUpSet = new HashSet<>();
+    @NonNull
+    private final Runnable mFlushRunnable = this::flush;
+    private boolean isFlushScheduled = false;
+
+    PacketBatcher(@NonNull Handler handler, long windowMs, @NonNull Sender<K> sender) {
+        mHandler = handler;
+        mWindowMs = windowMs;
+        mSender = sender;
+    }
+
+    /**
+     * 送信するパケットを積みます。同じ符号化済みデータを複数の宛先に積むと、まとめ送りの符号化も共有されます。
+     * @param destination   宛先
+     * @param packet        符号化済みパケット
+     */
+    void add(@NonNull K destination, @NonNull byte[] packet) {
+        ArrayList<byte[]> pending = mPendingMap.get(destination);
+        if (null == pending) {
+            pending = new ArrayList<>();
+            mPendingMap.put(destination, pending);
+        }
+        pending.add(packet);
+        if (!isFlushScheduled) {
+            isFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, mWindowMs);
+        }
+    }
+
+    /**
+     * 宛先に積まれている未送信のパケットを破棄します。
+     * @param destination   宛先
+     */
+    void remove(@NonNull K destination) {
+        mPendingMap.remove(destination);
+        mBackedUpSet.remove(destination);
+    }
+
+    /**
+     * @param destination   宛先
+     * @return  true: 送信キューが一杯で送れなかったパケットが残っている
+     */
+    boolean isBackedUp(@NonNull K destination) {
+        return mBackedUpSet.contains(destination);
+    }
+
+    void flush() {
+        isFlushScheduled = false;
+        mHandler.removeCallbacks(mFlushRunnable);
+        mBackedUpSet.clear();
+        // 宛先毎に1回で送る分を切り出す。送り直しで溜まったパケットは何回かに分けて送る
+        LinkedHashMap<K, List<byte[]>> sendingMap = new LinkedHashMap<>();
+        LinkedHashMap<K, ArrayList<byte[]>> restMap = new LinkedHashMap<>();
+        for (Map.Entry<K, ArrayList<byte[]>> entry : mPendingMap.entrySet()) {
+            ArrayList<byte[]> pending = entry.getValue();
+            int count = countToSend(pending);
+            sendingMap.put(entry.getKey(), pending.subList(0, count));
+            if (pending.size() > count) {
+                restMap.put(entry.getKey(),
+                        new ArrayList<>(pending.subList(count, pending.size())));
+            }
+        }
+        mPendingMap.clear();
+        List<byte[]> previousPending = null;
+        byte[] previousData = null;
+        // 配列のequalsは同一性で比較されるため、同じ符号化結果を持つ宛先がまとまる
+        LinkedHashMap<byte[], ArrayList<K>> destinationMap = new LinkedHashMap<>();
+        for (Map.Entry<K, List<byte[]>> entry : sendingMap.entrySet()) {
+            List<byte[]> pending = entry.getValue();
+            byte[] data;
+            if (isSamePackets(previousPending, pending)) {
+                // 全員宛の送信は同じ配列が同じ順で積まれているので、符号化結果を使い回す
+                data = previousData;
+            } else if (1 == pending.size()) {
+                data = pending.get(0);
+            } else {
+                data = new byte[QuizPacketEncoder.sizeOfBatch(pending)];
+                QuizPacketEncoder.batch(ByteBuffer.wrap(data), pending);
+            }
+            ArrayList<K> destinations = destinationMap.get(data);
+            if (null == destinations) {
+                destinations = new ArrayList<>();
+                destinationMap.put(data, destinations);
+            }
+            destinations.add(entry.getKey());
+            previousPending = pending;
+            previousData = data;
+        }
+        // 同じデータは宛先をまとめて1度に渡し、分割を共有させる
+        for (Map.Entry<byte[], ArrayList<K>> entry : destinationMap.entrySet()) {
+            for (K destination : mSender.send(entry.getValue(), entry.getKey())) {
+                // 順序を保つため、送れなかったパケットの後ろに以後のパケットを積む
+                mPendingMap.put(destination, new ArrayList<>(sendingMap.get(destination)));
+                mBackedUpSet.add(destination);
+            }
+        }
+        for (Map.Entry<K, ArrayList<byte[]>> entry : restMap.entrySet()) {
+            ArrayList<byte[]> pending = mPendingMap.get(entry.getKey());
+            if (null == pending) {
+                mPendingMap.put(entry.getKey(), entry.getValue());
+            } else {
+                pending.addAll(entry.getValue());
+            }
+        }
+        if (!mPendingMap.isEmpty()) {
+            isFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable,
+                    mBackedUpSet.isEmpty() ? mWindowMs : Constants.SEND_RETRY_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * 1つのまとめ送りに収めるパケット数を返します。
+     * 送信側の送信キューに収まらないほど大きなデータにならないよう、先頭から上限のバイト数まで収めます。
+     * @param pending   宛先に積まれているパケット
+     * @return  パケット数。1つで上限を超える場合も1
+     */
+    private static int countToSend(@NonNull List<byte[]> pending) {
+        int count = 1;
+        while ((pending.size() > count) && (Constants.MAX_BATCH_BYTES
+                >= QuizPacketEncoder.sizeOfBatch(pending.subList(0, count + 1)))) {
+            count++;
+        }
+        return count;
+    }
+
+    private static boolean isSamePackets(
+            List<byte[]> previous, @NonNull List<byte[]> current) {
+        if ((null == previous) || (previous.size() != current.size())) {
+            return false;
+        }
+        for (int cnt = 0; current.size() > cnt; cnt++) {
+            if (previous.get(cnt) != current.get(cnt)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
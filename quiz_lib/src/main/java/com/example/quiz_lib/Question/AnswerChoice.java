@@ -9,6 +9,14 @@ public enum AnswerChoice {
     ;
 
     private final byte mChoice;
+    // values()は呼び出し毎に配列を複製するため、選択肢値をインデックスとした表を1度だけ作る
+    private static final AnswerChoice[] CHOICE_TABLE = new AnswerChoice[0x100];
+
+    static {
+        for (AnswerChoice choice : values()) {
+            CHOICE_TABLE[choice.mChoice & 0xFF] = choice;
+        }
+    }
 
     AnswerChoice(final byte choice) {
         this.mChoice = choice;
@@ -19,12 +27,11 @@ public enum AnswerChoice {
     }
 
     public static AnswerChoice getChoice(final byte value) throws IllegalArgumentException {
-        for (AnswerChoice choice : AnswerChoice.values()) {
-            if (choice.getByte() == value) {
-                return choice;
-            }
+        AnswerChoice choice = CHOICE_TABLE[value & 0xFF];
+        if (null == choice) {
+            throw new IllegalArgumentException("Bad value.");
         }
-        throw new IllegalArgumentException("Bad value.");
+        return choice;
     }
 
     @Override
@@ -1,20 +1,26 @@
 package com.example.quiz_lib;
 
-import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.example.ble_communication_lib.BleDataCommunicationClient;
 import com.example.ble_communication_lib.BleDataCommunicationException;
+import com.example.ble_communication_lib.Channel;
+import com.example.ble_communication_lib.DiscoveryResult;
+import com.example.ble_communication_lib.LinkMode;
 import com.example.quiz_lib.Question.AnswerChoice;
 import com.example.quiz_lib.Question.Question;
-import com.example.quiz_lib.packet.PayloadKey;
+import com.example.quiz_lib.packet.PacketType;
+import com.example.quiz_lib.packet.QuestionCompressor;
 import com.example.quiz_lib.packet.QuizPacket;
+import com.example.quiz_lib.packet.QuizPacketView;
+import com.sky.hori_t.util.EventLoopScheduler;
+import com.sky.hori_t.util.StateMachine;
 
 import java.util.ArrayList;
 
@@ -30,23 +36,34 @@ public class QuizGuestManager {
         void onStopped(@Nullable QuizException exception);
     }
 
+    private enum State {
+        Joining,
+        // 参加し、出題を待っている
+        Waiting,
+        Quiz,
+        // 再接続して途中経過を待っている
+        Resuming,
+        Finished,
+        // 復帰できなかった
+        ResumeFailed,
+    }
+
     @NonNull
     private final Handler mHandler;
+    // 遷移はハンドラスレッドのみ
+    @NonNull
+    private final StateMachine<State> mState;
     @NonNull
     private final CallbackExecutor mCallback;
     @NonNull
     private final BleDataCommunicationClient mClient;
-    private boolean isConnecting = false;
     @NonNull
     private final BleDataCommunicationClient.Callback mCommunicationCallback =
             new BleDataCommunicationClient.Callback() {
                 @Override
-                public void onDiscovered(@NonNull BluetoothDevice device) {
-                    Log.d(getClass().getSimpleName(), "Discoverd. " + device.getAddress());
-                    if (!isConnecting) {
-                        isConnecting = true;
-                        mClient.connect(device);
-                    }
+                public void onDiscovered(@NonNull DiscoveryResult result) {
+                    // 接続先は通信クラスが電波強度と待機状態から選ぶ
+                    Log.d(getClass().getSimpleName(), "Discoverd. " + result);
                 }
 
                 @Override
@@ -57,12 +74,20 @@ public class QuizGuestManager {
                 @Override
                 public void onConnected() {
                     Log.d("クイズLib", "-------------onConnected---------------");
+                    if (State.Resuming == mState.get()) {
+                        // 参加時のプレイヤーとして復帰を求める。問題集は受信済みの続きから送ってもらう
+                        mClient.sendData(
+                                QuizPacket.Creator.resume(mResumeToken, getCachedCount())
+                                        .getBytes(),
+                                Channel.Control);
+                    }
                 }
 
                 @Override
                 public void onDisconnected() {
-                    isConnecting = false;
-                    mCallback.onStopped(null);
+                    stopRelay();
+                    mCallback.onStopped(
+                            (State.ResumeFailed == mState.get()) ? new QuizException() : null);
                 }
 
                 @Override
@@ -74,36 +99,76 @@ public class QuizGuestManager {
                 public void onError(@NonNull BleDataCommunicationException exception) {
                     QuizException quizException = null;
                     if ((BleDataCommunicationException.ErrorCode.Disconnect ==
-                            exception.getmErrorCode()) && (!isFinished)) {
+                            exception.getmErrorCode()) && (State.Finished != mState.get())) {
+                        State state = mState.get();
+                        if ((State.Quiz == state) || (State.Resuming == state)) {
+                            // 出題中の一時的な切断は、探索せずにホストへ再接続して復帰する
+                            resume();
+                            return;
+                        }
                         quizException = new QuizException();
                     }
+                    stopRelay();
                     mCallback.onStopped(quizException);
                 }
             };
+    // 下流のゲストを中継する場合のみ生成する
+    @Nullable
+    private QuizRelay mRelay;
     @Nullable
     private QuizPlayer mMyPlayerInfo;
+    // 切断後に同じプレイヤーとして復帰するための再開トークン
+    private long mResumeToken;
+    // ホストに直接接続しており、下流のゲストを中継してよいか。中継端末の先のゲストは中継しない
+    private boolean isRelayable = false;
+    // ホストの部屋の識別子。中継端末として広告する部屋名に使う
+    private long mRoomId;
+    @NonNull
+    private final Runnable mResumeTimeoutTask = this::onResumeTimeout;
+    @NonNull
+    private final Runnable mReconnectTask = this::reconnect;
     @NonNull
     private ArrayList<QuizPlayer> mAllPlayerInfo = new ArrayList<>();
+    // 参加時に受け取る参加者表。得点系パケットのスロット番号はこの表の位置を指す
+    @NonNull
+    private ArrayList<QuizPlayer> mRoster = new ArrayList<>();
+    // 得点状況の通番。参加者表受信時の全員0点を通番0とする
+    private int mStateSequence;
+    private boolean isKeyframeRequested = false;
     @Nullable
     private AnswerChoice mAnswerChoice;
-    private boolean isFinished = false;
+    // 受信パケット読み出し用。ハンドラスレッドでのみ使う
+    @NonNull
+    private final QuizPacketView mPacketView = new QuizPacketView();
+    @NonNull
+    private final QuizPacketView mEntryView = new QuizPacketView();
+    @NonNull
+    private final QuizPacketView mQuestionView = new QuizPacketView();
+    // ホストから事前配信された問題集。キーは問題番号
+    @NonNull
+    private final SparseArray<String> mQuestionCache = new SparseArray<>();
+    @NonNull
+    private final QuestionCompressor mQuestionCompressor =
+            new QuestionCompressor(QuestionFactory.makeDictionary());
 
     public QuizGuestManager(
             @NonNull Context context,
             @Nullable Looper dispatchQueueLooper,
             @NonNull Callback callback) throws UnsupportedOperationException {
-        // 自スレッド生成
-        HandlerThread handlerThread = new HandlerThread(getClass().getSimpleName());
-        handlerThread.start();
-        mHandler = new android.os.Handler(handlerThread.getLooper());
+        // 部品毎にスレッドを作らず、共有のイベントループに割り当てる
+        Looper looper = EventLoopScheduler.getInstance().getLooper(EventLoopScheduler.Loop.Game);
+        mHandler = new android.os.Handler(looper);
+        mState = new StateMachine<>(State.class, State.Joining, looper.getThread())
+                .allow(State.Joining, State.Waiting)
+                .allow(State.Waiting, State.Quiz, State.Finished)
+                .allow(State.Quiz, State.Resuming, State.Finished)
+                .allow(State.Resuming, State.Quiz, State.ResumeFailed, State.Finished);
 
         // コールバックインスタンス生成
         Handler callbackHandler;
         if (dispatchQueueLooper == null) {
-            HandlerThread callbackThread =
-                    new HandlerThread(getClass().getSimpleName() + "Callback");
-            callbackThread.start();
-            callbackHandler = new Handler(callbackThread.getLooper());
+            callbackHandler = new Handler(EventLoopScheduler.getInstance()
+                    .getLooper(EventLoopScheduler.Loop.Callback));
         } else {
             callbackHandler = new Handler(dispatchQueueLooper);
         }
@@ -112,10 +177,24 @@ public class QuizGuestManager {
         // BLE通信クラス生成
         mClient = new BleDataCommunicationClient(
                 context, mHandler.getLooper(), mCommunicationCallback);
+        // 回答などは応答を待たずに書き込み、ホストからはデータ毎に受信確認を受け取る
+        mClient.setWriteMode(BleDataCommunicationClient.WriteMode.WithoutResponse);
     }
 
     public void discoverHost() {
-        mHandler.post(mClient::startDiscovery);
+        // 満員や通信方式の異なるホストを除き、最も電波の強いホストへ接続する
+        mHandler.post(() -> mClient.joinBest(Constants.JOIN_WINDOW_MS));
+    }
+
+    /**
+     * 下流のゲストを受け入れ、ホストとの間を中継します。<br>
+     * ホストが直接接続できる数を超えて参加者を受け入れるために使います。参加後、参加者表を受信してから受け入れを開始します。
+     * 中継端末を介して参加した場合は受け入れません。
+     * @param context   コンテキスト
+     */
+    public void enableRelay(@NonNull Context context) {
+        QuizRelay relay = new QuizRelay(context, mHandler, this::sendUpstream);
+        mHandler.post(() -> mRelay = relay);
     }
 
     @NonNull
@@ -134,7 +213,7 @@ public class QuizGuestManager {
 
     private void _answer(@NonNull AnswerChoice answer) {
         mAnswerChoice = answer;
-        mClient.sendData(QuizPacket.Creator.answer(answer).getBytes());
+        mClient.sendData(QuizPacket.Creator.answer(answer).getBytes(), Channel.Control);
     }
 
     public void stop() {
@@ -142,56 +221,264 @@ public class QuizGuestManager {
     }
 
     private void handlePacket(@NonNull byte[] data) {
-        QuizPacket packet = QuizPacket.Creator.parsePacket(data);
+        QuizPacketView packet = mPacketView.wrap(data);
+        if (PacketType.Batch == packet.getType()) {
+            // まとめ送りは中のパケットを順に処理する
+            int entryCount = packet.getEntryCount();
+            for (int cnt = 0; entryCount > cnt; cnt++) {
+                handlePacket(packet.wrapEntry(cnt, mEntryView));
+            }
+            return;
+        }
+        handlePacket(packet);
+    }
+
+    private void handlePacket(@NonNull QuizPacketView packet) {
         Log.d("クイズLib", "[receivedPacket] type: " + packet.getType());
+        if ((null != mRelay) && mRelay.forward(packet)) {
+            // 下流のゲスト宛
+            return;
+        }
         switch (packet.getType()) {
             case PlayerId:
-                String playerId = (String) packet.getPayload(PayloadKey.PlayerId);
-                mMyPlayerInfo = new QuizPlayer(playerId);
+                // 待機中は既定の通信間隔に戻す
+                mClient.setLinkMode(LinkMode.Balanced);
+                mQuestionCache.clear();
+                mMyPlayerInfo = new QuizPlayer(packet.getPlayerId());
+                mResumeToken = packet.getResumeToken();
+                mRoomId = packet.getRoomId();
+                isRelayable = packet.isRelayable();
+                if (State.Joining == mState.get()) {
+                    mState.moveTo(State.Waiting);
+                }
                 mCallback.onJoined(mMyPlayerInfo);
                 break;
+            case CatchUp: {
+                onCaughtUp(packet);
+                break;
+            }
             case PlayerChanged: {
-                mAllPlayerInfo =
-                        (ArrayList<QuizPlayer>) packet.getPayload(PayloadKey.PlayerList);
+                mRoster = QuizPacket.Creator.parsePacket(packet, null).getPlayerList();
+                mAllPlayerInfo = mRoster;
+                mStateSequence = 0;
+                isKeyframeRequested = false;
                 mCallback.onPlayerChanged(mAllPlayerInfo);
+                if ((null != mRelay) && isRelayable) {
+                    mRelay.start(mRoomId);
+                }
                 break;
             }
-            case Question: {
-                String questionText = (String) packet.getPayload(PayloadKey.QuestionText);
+            case Question:
+            case CompressedQuestion: {
+                // 出題中は回答を早く届けるため通信間隔を短くする
+                onQuizStarted();
+                mClient.setLinkMode(LinkMode.LowLatency);
+                mCallback.onQuestion(new Question(mQuestionCompressor.decode(packet)));
+                break;
+            }
+            case QuestionBankEntry: {
+                mQuestionCache.put(
+                        packet.getQuestionIndex(),
+                        mQuestionCompressor.decode(packet.wrapQuestion(mQuestionView)));
+                break;
+            }
+            case QuestionIndex: {
+                // 問題集は出題より先に届く。届いていない問題はホストが問題文で送ってくる
+                String questionText = mQuestionCache.get(packet.getQuestionIndex());
+                if (null == questionText) {
+                    Log.d("クイズLib", "Question is not cached: " + packet.getQuestionIndex());
+                    break;
+                }
+                onQuizStarted();
+                mClient.setLinkMode(LinkMode.LowLatency);
                 mCallback.onQuestion(new Question(questionText));
                 break;
             }
             case PlayerAnswered: {
-                int playerNum = (int) packet.getPayload(PayloadKey.PlayerNum);
-                mCallback.onPlayerAnswered(playerNum);
+                mCallback.onPlayerAnswered(packet.getPlayerNum());
                 break;
             }
             case CorrectAnswer: {
-                AnswerChoice choice = (AnswerChoice) packet.getPayload(PayloadKey.Choice);
+                AnswerChoice choice = packet.getChoice();
                 mCallback.onCorrectAnswer(choice == mAnswerChoice, choice);
                 break;
             }
             case PlayersState: {
-                ArrayList<QuizPlayer> playerList =
-                        (ArrayList<QuizPlayer>) packet.getPayload(PayloadKey.PlayerList);
-                mAllPlayerInfo = playerList;
+                applyPoints(packet);
+                mStateSequence = packet.getSequence();
+                isKeyframeRequested = false;
+                break;
+            }
+            case PlayersStateDelta: {
+                int sequence = packet.getSequence();
+                if ((mStateSequence + 1) != sequence) {
+                    // 欠落があれば差分は捨ててキーフレームを待つ
+                    requestKeyframe();
+                    break;
+                }
+                applyPoints(packet);
+                mStateSequence = sequence;
                 break;
             }
             case PlayerDisconnected: {
-                int playerNum = (int) packet.getPayload(PayloadKey.PlayerNum);
-                mCallback.onPlayerDisconnected(playerNum);
+                mCallback.onPlayerDisconnected(packet.getPlayerNum());
                 break;
             }
             case Result: {
-                isFinished = true;
-                ArrayList<QuizPlayer> playerList =
-                        (ArrayList<QuizPlayer>) packet.getPayload(PayloadKey.PlayerList);
-                mCallback.onResult(playerList);
+                if (mState.canMoveTo(State.Finished)) {
+                    mState.moveTo(State.Finished);
+                }
+                // 結果発表後はほとんど通信しない
+                mClient.setLinkMode(LinkMode.LowPower);
+                mCallback.onResult(
+                        QuizPacket.Creator.parsePacket(packet, mRoster).getPlayerList());
                 break;
             }
         }
     }
 
+    private void onQuizStarted() {
+        if (State.Waiting == mState.get()) {
+            mState.moveTo(State.Quiz);
+        }
+    }
+
+    private void resume() {
+        if (State.Quiz == mState.get()) {
+            mState.moveTo(State.Resuming);
+            mHandler.postDelayed(mResumeTimeoutTask, Constants.RESUME_GRACE_MS);
+            reconnect();
+            return;
+        }
+        // 再接続に失敗した。待ち時間の間は繰り返す
+        mHandler.postDelayed(mReconnectTask, Constants.RECONNECT_INTERVAL_MS);
+    }
+
+    private void sendUpstream(@NonNull byte[] data, @NonNull Channel channel) {
+        try {
+            mClient.sendData(data, channel);
+        } catch (IllegalStateException e) {
+            // 再接続の合間。ホストは復帰時に下流のゲストの状態を送り直す
+            Log.d(getClass().getSimpleName(), "Failed to relay. " + e.getMessage());
+        }
+    }
+
+    private void stopRelay() {
+        if (null != mRelay) {
+            mRelay.stop();
+        }
+    }
+
+    private void reconnect() {
+        if (State.Resuming != mState.get()) {
+            return;
+        }
+        mClient.reconnect();
+    }
+
+    private void onResumeTimeout() {
+        if (State.Resuming != mState.get()) {
+            return;
+        }
+        mState.moveTo(State.ResumeFailed);
+        mHandler.removeCallbacks(mReconnectTask);
+        try {
+            // 切断の完了を待ってから通知する
+            mClient.disconnect();
+        } catch (IllegalStateException e) {
+            // 再接続の合間で接続していない
+            mCallback.onStopped(new QuizException());
+        }
+    }
+
+    /**
+     * 復帰時に受け取った途中経過を反映します。<br>
+     * 回答受付中の問題に未回答であれば、事前配信済みの問題集から再度出題します。
+     * 問題集に無い問題は、ホストが続けて問題文を送ってきます。
+     * @param packet    途中経過
+     */
+    private void onCaughtUp(@NonNull QuizPacketView packet) {
+        if (State.Resuming != mState.get()) {
+            return;
+        }
+        mState.moveTo(State.Quiz);
+        mHandler.removeCallbacks(mResumeTimeoutTask);
+        if (null != mRelay) {
+            mRelay.onUpstreamResumed();
+        }
+        mStateSequence = packet.getSequence();
+        isKeyframeRequested = false;
+        ArrayList<QuizPlayer> playerList = new ArrayList<>(mAllPlayerInfo);
+        int playerNum = Math.min(packet.getPlayerCount(), playerList.size());
+        for (int slot = 0; playerNum > slot; slot++) {
+            playerList.set(slot,
+                    playerList.get(slot).withCorrectAnswerPoint(packet.getPoint(slot)));
+        }
+        mAllPlayerInfo = playerList;
+        int answeredMask = packet.getAnsweredMask();
+        int questionIndex = packet.getCurrentQuestionIndex();
+        if ((0 <= questionIndex) && (0 == (answeredMask & (1 << getMyPlayerNum())))) {
+            String questionText = mQuestionCache.get(questionIndex);
+            if (null != questionText) {
+                mCallback.onQuestion(new Question(questionText));
+            }
+        }
+        for (int slot = 0; mAllPlayerInfo.size() > slot; slot++) {
+            if (0 != (answeredMask & (1 << slot))) {
+                mCallback.onPlayerAnswered(slot);
+            }
+        }
+    }
+
+    /**
+     * 問題番号0から途切れずに受信済みの問題集の問題数を返します。<br>
+     * 切断で途中までしか届かなかった問題集は、ホストがこの問題番号から送り直します。
+     * @return  問題数
+     */
+    private int getCachedCount() {
+        int count = 0;
+        while (0 <= mQuestionCache.indexOfKey(count)) {
+            count++;
+        }
+        return count;
+    }
+
+    private int getMyPlayerNum() {
+        if (null == mMyPlayerInfo) {
+            return -1;
+        }
+        for (int slot = 0; mRoster.size() > slot; slot++) {
+            if (mRoster.get(slot).getId().equals(mMyPlayerInfo.getId())) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // 渡し済みの一覧はUIが保持しているため、得点を反映した新しい一覧に差し替える
+    private void applyPoints(@NonNull QuizPacketView packet) {
+        ArrayList<QuizPlayer> playerList = new ArrayList<>(mAllPlayerInfo);
+        int playerNum = packet.getPlayerCount();
+        for (int cnt = 0; playerNum > cnt; cnt++) {
+            int slot = packet.getSlot(cnt);
+            if (playerList.size() <= slot) {
+                Log.d("クイズLib", "Unknown slot: " + slot);
+                continue;
+            }
+            playerList.set(slot,
+                    playerList.get(slot).withCorrectAnswerPoint(packet.getCorrectAnswerPoint(cnt)));
+        }
+        mAllPlayerInfo = playerList;
+    }
+
+    private void requestKeyframe() {
+        if (isKeyframeRequested) {
+            return;
+        }
+        isKeyframeRequested = true;
+        mClient.sendData(QuizPacket.Creator.keyframeRequest().getBytes(), Channel.Control);
+    }
+
     private static class CallbackExecutor implements Callback {
         @NonNull
         private final Callback mCallback;
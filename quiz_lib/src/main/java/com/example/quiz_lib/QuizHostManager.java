@@ -3,7 +3,6 @@ package com.example.quiz_lib;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -11,21 +10,33 @@ import android.util.Log;
 
 import com.example.ble_communication_lib.BleDataCommunicationException;
 import com.example.ble_communication_lib.BleDataCommunicationServer;
+import com.example.ble_communication_lib.Channel;
 import com.example.quiz_lib.Question.AnswerChoice;
 import com.example.quiz_lib.Question.Question;
-import com.example.quiz_lib.packet.PayloadKey;
+import com.example.quiz_lib.packet.PacketType;
+import com.example.quiz_lib.packet.QuestionCompressor;
 import com.example.quiz_lib.packet.QuizPacket;
+import com.example.quiz_lib.packet.QuizPacketEncoder;
+import com.example.quiz_lib.packet.QuizPacketView;
+import com.sky.hori_t.util.EventLoopScheduler;
+import com.sky.hori_t.util.StateMachine;
 
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 public class QuizHostManager {
     private enum State {
+        Stopped,
         WaitingMember,
-        Quiz
+        Quiz,
+        Finished,
     }
 
     public interface Callback {
@@ -61,12 +72,26 @@ public class QuizHostManager {
                 @Override
                 public void onConnected(@NonNull BluetoothDevice device) {
                     Log.d(getClass().getSimpleName(), "Connected.");
-                    addPlayer(device);
+                    onRouteConnected(new Route(device));
                 }
 
                 @Override
                 public void onDisconnected(@NonNull BluetoothDevice device) {
-                    _onDisconnected(device);
+                    // 中継端末であれば、その先のゲストも切断したものとして扱う
+                    ArrayList<Route> routes = new ArrayList<>();
+                    for (Route route : mPlayerMap.keySet()) {
+                        if ((null != route) && route.getDevice().equals(device)) {
+                            routes.add(route);
+                        }
+                    }
+                    for (Route route : mPendingResumeMap.keySet()) {
+                        if (route.getDevice().equals(device)) {
+                            routes.add(route);
+                        }
+                    }
+                    for (Route route : routes) {
+                        _onDisconnected(route);
+                    }
                 }
 
                 @Override
@@ -80,15 +105,22 @@ public class QuizHostManager {
             };
     @NonNull
     private final CallbackExecutor mCallback;
-    @Nullable
-    private State mState;
+    // 遷移はハンドラスレッドのみ
+    @NonNull
+    private final StateMachine<State> mState;
 
     @NonNull
     private final QuizPlayer mMyPlayerInfo;
     @NonNull
-    private final LinkedHashMap<BluetoothDevice, QuizPlayer> mPlayerMap = new LinkedHashMap<>();
-    @Nullable
-    private QuestionFactory mQuestionFactory;
+    private final LinkedHashMap<Route, QuizPlayer> mPlayerMap = new LinkedHashMap<>();
+    // 待機開始時に選んだ出題順の問題集と、各ゲストへ事前配信済みの問題数
+    @NonNull
+    private ArrayList<HostQuestion> mQuestionSet = new ArrayList<>();
+    @NonNull
+    private ArrayList<byte[]> mQuestionBank = new ArrayList<>();
+    @NonNull
+    private final HashMap<Route, Integer> mPreloadedMap = new HashMap<>();
+    private int mQuestionIndex;
     @Nullable
     private HostQuestion mNowQuestion;
     private int mQuestionNum;
@@ -96,23 +128,61 @@ public class QuizHostManager {
     private HashMap<QuizPlayer, Boolean> mAnswerState = new HashMap<>();
     @Nullable
     private AnswerChoice mAnswerChoice;
+    // 出題してから全員の回答が揃うまでの間
+    private boolean isAnswering = false;
+    // 得点状況の通番と、直前に送った各スロットの得点
+    private int mStateSequence;
+    @Nullable
+    private int[] mSentPoints;
+    // ゲスト宛パケットのまとめ送り。宛先は接続している端末で、中継端末の先のゲスト宛は経路番号を付けて積む。
+    // ハンドラスレッドでのみ使う。
+    // 問題集と出題は大きいため、回答状況や得点などの制御パケットを待たせないよう別の論理チャネルで送る。
+    // 問題番号での出題が事前配信より先に届かないよう、出題と問題集は同じチャネルに載せる
+    @NonNull
+    private final PacketBatcher<BluetoothDevice> mBatcher;
+    @NonNull
+    private final PacketBatcher<BluetoothDevice> mBulkBatcher;
+    @NonNull
+    private final QuestionCompressor mQuestionCompressor =
+            new QuestionCompressor(QuestionFactory.makeDictionary());
+    // 受信パケット読み出し用。ハンドラスレッドでのみ使う
+    @NonNull
+    private final QuizPacketView mPacketView = new QuizPacketView();
+    // 出題中に切断したゲストが同じプレイヤーとして復帰するための再開トークン
+    @NonNull
+    private final SecureRandom mRandom = new SecureRandom();
+    // 部屋の識別子。プレイヤーIDはホスト毎に同じ値から振るため、部屋名には使えない
+    private final long mRoomId = mRandom.nextLong();
+    @NonNull
+    private final HashMap<Route, Long> mResumeTokenMap = new HashMap<>();
+    // 切断後、復帰を待っているゲストと、待ち切れずに切断扱いにする処理
+    @NonNull
+    private final HashMap<Route, Runnable> mSuspendedMap = new HashMap<>();
+    // 出題中に接続し、再開要求を待っているゲストと、待ち切れずに切断する処理
+    @NonNull
+    private final HashMap<Route, Runnable> mPendingResumeMap = new HashMap<>();
+    @NonNull
+    private final QuizPacketView mEntryView = new QuizPacketView();
+    @NonNull
+    private final QuizPacketView mRoutedView = new QuizPacketView();
 
     public QuizHostManager(
             @NonNull Context context,
             @Nullable Looper dispatchQueueLooper,
             @NonNull Callback callback) throws UnsupportedOperationException {
-        // 自スレッド生成
-        HandlerThread handlerThread = new HandlerThread(getClass().getSimpleName());
-        handlerThread.start();
-        mHandler = new android.os.Handler(handlerThread.getLooper());
+        // 部品毎にスレッドを作らず、共有のイベントループに割り当てる
+        Looper looper = EventLoopScheduler.getInstance().getLooper(EventLoopScheduler.Loop.Game);
+        mHandler = new android.os.Handler(looper);
+        mState = new StateMachine<>(State.class, State.Stopped, looper.getThread())
+                .allow(State.Stopped, State.WaitingMember)
+                .allow(State.WaitingMember, State.Quiz)
+                .allow(State.Quiz, State.Finished);
 
         // コールバックインスタンス生成
         Handler callbackHandler;
         if (dispatchQueueLooper == null) {
-            HandlerThread callbackThread =
-                    new HandlerThread(getClass().getSimpleName() + "Callback");
-            callbackThread.start();
-            callbackHandler = new Handler(callbackThread.getLooper());
+            callbackHandler = new Handler(EventLoopScheduler.getInstance()
+                    .getLooper(EventLoopScheduler.Loop.Callback));
         } else {
             callbackHandler = new Handler(dispatchQueueLooper);
         }
@@ -122,11 +192,18 @@ public class QuizHostManager {
         mServer = new BleDataCommunicationServer(
                 context, mHandler.getLooper(), mCommunicationCallback);
 
+        mBatcher = new PacketBatcher<>(mHandler, Constants.COALESCE_WINDOW_MS,
+                (devices, data) -> sendData(devices, data, Channel.Control));
+        mBulkBatcher = new PacketBatcher<>(mHandler, Constants.COALESCE_WINDOW_MS,
+                (devices, data) -> sendData(devices, data, Channel.Bulk));
+
         mMyPlayerInfo = new QuizPlayer(makePlayerId());
         mPlayerMap.put(null, mMyPlayerInfo);
     }
 
     public void startWaiting() {
+        // ゲストが部屋を見分けられるよう、部屋毎に生成した部屋名を広告する
+        mServer.setRoomName(QuizRelay.toRoomName(mRoomId));
         mServer.startWaiting();
     }
 
@@ -138,29 +215,89 @@ public class QuizHostManager {
     @NonNull
     public ArrayList<QuizPlayer> getAllPlayerInfo() {
         ArrayList<QuizPlayer> playerList = new ArrayList<>();
-        for (BluetoothDevice device : mPlayerMap.keySet()) {
-            playerList.add(mPlayerMap.get(device));
+        for (Route route : mPlayerMap.keySet()) {
+            playerList.add(mPlayerMap.get(route));
         }
         return playerList;
     }
 
     public void startQuiz(int questionNum) {
-        mState = State.Quiz;
-        mQuestionNum = questionNum;
         mHandler.post(() -> {
-            for (BluetoothDevice device : mPlayerMap.keySet()) {
-                mAnswerState.put(mPlayerMap.get(device), false);
+            if (State.WaitingMember != mState.get()) {
+                return;
             }
-            mQuestionFactory = new QuestionFactory();
+            mState.moveTo(State.Quiz);
+            mQuestionNum = questionNum;
+            for (Route route : mPlayerMap.keySet()) {
+                mAnswerState.put(mPlayerMap.get(route), false);
+            }
+            // 参加者表送信時の全員0点を通番0とする
+            mStateSequence = 0;
+            mSentPoints = new int[mPlayerMap.size()];
+            mQuestionIndex = 0;
             sendQuestion();
         });
     }
 
     private void sendQuestion() {
-        mNowQuestion = mQuestionFactory.getQuestion();
+        int index = mQuestionIndex++;
+        mNowQuestion = mQuestionSet.get(index);
+        isAnswering = true;
         mCallback.onQuestion(mNowQuestion);
-        QuizPacket packet = QuizPacket.Creator.question(mNowQuestion.getQuestionText());
-        sendAllGuestPlayers(packet);
+        byte[] indexData = QuizPacket.Creator.questionIndex(index).getBytes();
+        byte[] textData = null;
+        for (Route route : mPlayerMap.keySet()) {
+            if (!isReachable(route)) {
+                continue;
+            }
+            Integer preloaded = mPreloadedMap.get(route);
+            if ((null != preloaded) && (index < preloaded)) {
+                sendTo(route, indexData, mBulkBatcher);
+                continue;
+            }
+            // 事前配信が間に合っていないゲストには問題文を送る
+            if (null == textData) {
+                textData = mQuestionCompressor.encode(mNowQuestion.getQuestionText());
+            }
+            sendTo(route, textData, mBulkBatcher);
+        }
+    }
+
+    /**
+     * 問題集を1問分ゲストへ送り、残りがあれば次の1問を予約します。
+     * 送った順にゲストへ届くため、事前配信済みの問題番号より後に出題パケットが届くことはありません。
+     * @param route     送信先
+     */
+    private void preloadQuestion(@NonNull Route route) {
+        Integer preloaded = mPreloadedMap.get(route);
+        if (null == preloaded) {
+            // 切断済み
+            return;
+        }
+        // 出題済みの問題は送らない
+        int index = Math.max(preloaded, mQuestionIndex);
+        if (mQuestionBank.size() <= index) {
+            return;
+        }
+        // 送信待ちが溢れている間は積まず、配信済みの問題数も進めない
+        if (!mBulkBatcher.isBackedUp(route.getDevice())) {
+            sendTo(route, mQuestionBank.get(index), mBulkBatcher);
+            mPreloadedMap.put(route, index + 1);
+        }
+        mHandler.postDelayed(
+                () -> preloadQuestion(route), Constants.QUESTION_PRELOAD_INTERVAL_MS);
+    }
+
+    @NonNull
+    private ArrayList<byte[]> makeQuestionBank(@NonNull ArrayList<HostQuestion> questionSet) {
+        ArrayList<byte[]> questionBank = new ArrayList<>(questionSet.size());
+        for (int index = 0; questionSet.size() > index; index++) {
+            byte[] question = mQuestionCompressor.encode(questionSet.get(index).getQuestionText());
+            byte[] data = new byte[QuizPacketEncoder.sizeOfQuestionBankEntry(index, question)];
+            QuizPacketEncoder.questionBankEntry(ByteBuffer.wrap(data), index, question);
+            questionBank.add(data);
+        }
+        return questionBank;
     }
 
     public void answer(@NonNull AnswerChoice choice) {
@@ -177,79 +314,362 @@ public class QuizHostManager {
     }
 
     private void _onWaitingStarted() {
-        mState = State.WaitingMember;
+        if (State.Stopped != mState.get()) {
+            return;
+        }
+        mState.moveTo(State.WaitingMember);
+        // 出題順はここで決め、参加したゲストへ開始前に問題集を配っておく
+        mQuestionSet = new QuestionFactory().getQuestionList();
+        mQuestionBank = makeQuestionBank(mQuestionSet);
         mCallback.onWaitingStarted(mMyPlayerInfo);
         mCallback.onPlayerChanged(getAllPlayerInfo());
     }
 
-    private void _onDisconnected(@NonNull BluetoothDevice device) {
-        if (null == mState) {
+    private void onRouteConnected(@NonNull Route route) {
+        if (State.Quiz == mState.get()) {
+            // 出題中は新しい参加者を受け付けず、切断したゲストの復帰のみ待つ
+            waitResume(route);
             return;
         }
-        switch (mState) {
+        addPlayer(route);
+    }
+
+    private void _onDisconnected(@NonNull Route route) {
+        switch (mState.get()) {
             case WaitingMember: {
-                mPlayerMap.remove(device);
+                removeBatch(route);
+                mPreloadedMap.remove(route);
+                mResumeTokenMap.remove(route);
+                mPlayerMap.remove(route);
                 mCallback.onPlayerChanged(getAllPlayerInfo());
                 sendAllGuestPlayers(QuizPacket.Creator.playerChanged(getAllPlayerInfo()));
                 break;
             }
             case Quiz: {
-                if (mServer.getAllDeviceInfo().isEmpty()) {
-                    mCallback.onStopped(new QuizException());
+                Runnable pendingTask = mPendingResumeMap.remove(route);
+                if (null != pendingTask) {
+                    // 再開要求の前に切断した
+                    mHandler.removeCallbacks(pendingTask);
                     return;
                 }
-                QuizPlayer player = mPlayerMap.get(device);
-                player.disconnect();
-                int playerNum = getPlayerNum(player);
-                mCallback.onPlayerDisconnected(playerNum);
-                sendAllGuestPlayers(QuizPacket.Creator.playerDisconnected(playerNum));
+                if ((!mPlayerMap.containsKey(route)) || mSuspendedMap.containsKey(route)) {
+                    return;
+                }
+                removeBatch(route);
+                // 一時的な電波の途切れで抜けないよう、しばらくは復帰を待ってから切断扱いにする
+                Runnable graceTask = () -> onResumeExpired(route);
+                // 切断までに届いた問題集はゲストにしか分からないため、復帰時に再開要求で受け取る
+                mPreloadedMap.remove(route);
+                mSuspendedMap.put(route, graceTask);
+                mHandler.postDelayed(graceTask, Constants.RESUME_GRACE_MS);
                 break;
             }
         }
     }
 
+    private void onResumeExpired(@NonNull Route route) {
+        if (null == mSuspendedMap.remove(route)) {
+            return;
+        }
+        mResumeTokenMap.remove(route);
+        if (State.Quiz != mState.get()) {
+            return;
+        }
+        if (mServer.getAllDeviceInfo().isEmpty()) {
+            mCallback.onStopped(new QuizException());
+            return;
+        }
+        QuizPlayer player = mPlayerMap.get(route);
+        player.disconnect();
+        int playerNum = getPlayerNum(player);
+        mCallback.onPlayerDisconnected(playerNum);
+        sendAllGuestPlayers(QuizPacket.Creator.playerDisconnected(playerNum));
+        // 切断したプレイヤー以外が回答済みであれば次へ進める
+        if (isAnswering && isAnswerFinished()) {
+            finishQuestion();
+        }
+    }
+
+    /**
+     * 出題中に接続したゲストの再開要求を待ちます。来なければ切断します。
+     * @param route     接続したゲスト
+     */
+    private void waitResume(@NonNull Route route) {
+        Runnable pendingTask = () -> {
+            mPendingResumeMap.remove(route);
+            disconnect(route);
+        };
+        mPendingResumeMap.put(route, pendingTask);
+        mHandler.postDelayed(pendingTask, Constants.RESUME_GRACE_MS);
+    }
+
+    /**
+     * ゲストを切断します。中継端末の先のゲストは中継端末に切断させます。
+     * @param route     切断するゲスト
+     */
+    private void disconnect(@NonNull Route route) {
+        if (route.isDirect()) {
+            mServer.disconnect(route.getDevice());
+            return;
+        }
+        sendTo(route, QuizPacket.Creator.routeControl(
+                PacketType.Leave, route.getRouteId()).getBytes(), mBatcher);
+    }
+
+    /**
+     * 再開トークンが一致する切断中のプレイヤーを、新しい接続に付け替えて途中経過を送ります。
+     * 問題集の事前配信は、ゲストが受信済みの問題数からやり直します。
+     * @param route         再接続したゲスト
+     * @param resumeToken   受信した再開トークン
+     * @param cachedCount   ゲストが受信済みの問題集の問題数
+     */
+    private void resumePlayer(@NonNull Route route, long resumeToken, int cachedCount) {
+        Runnable pendingTask = mPendingResumeMap.remove(route);
+        if (null == pendingTask) {
+            return;
+        }
+        mHandler.removeCallbacks(pendingTask);
+        Route suspendedRoute = null;
+        for (Route key : mSuspendedMap.keySet()) {
+            Long token = mResumeTokenMap.get(key);
+            if ((null != token) && (resumeToken == token)) {
+                suspendedRoute = key;
+                break;
+            }
+        }
+        if (null == suspendedRoute) {
+            Log.d(getClass().getSimpleName(), "Unknown resume token.");
+            disconnect(route);
+            return;
+        }
+        mHandler.removeCallbacks(mSuspendedMap.remove(suspendedRoute));
+        replaceRoute(suspendedRoute, route);
+        Log.d(getClass().getSimpleName(), "Resumed. " + mPlayerMap.get(route).getId());
+        mPreloadedMap.put(route, cachedCount);
+        sendCatchUp(route);
+        preloadQuestion(route);
+    }
+
+    /**
+     * 参加者表の順序を保ったまま、プレイヤーの経路を付け替えます。
+     * @param oldRoute  切断した経路
+     * @param newRoute  再接続した経路
+     */
+    private void replaceRoute(@NonNull Route oldRoute, @NonNull Route newRoute) {
+        ArrayList<Map.Entry<Route, QuizPlayer>> entries = new ArrayList<>(mPlayerMap.entrySet());
+        mPlayerMap.clear();
+        for (Map.Entry<Route, QuizPlayer> entry : entries) {
+            Route key = entry.getKey();
+            mPlayerMap.put(oldRoute.equals(key) ? newRoute : key, entry.getValue());
+        }
+        mResumeTokenMap.put(newRoute, mResumeTokenMap.remove(oldRoute));
+    }
+
+    /**
+     * 復帰したゲストへ、回答受付中の問題・回答済みのプレイヤー・最後に送った得点状況を送ります。
+     * 事前配信が間に合っていない問題は問題文も送ります。
+     * @param route     復帰したゲスト
+     */
+    private void sendCatchUp(@NonNull Route route) {
+        Objects.requireNonNull(mSentPoints);
+        ArrayList<QuizPlayer> roster = getAllPlayerInfo();
+        int answeredMask = 0;
+        for (int slot = 0; roster.size() > slot; slot++) {
+            if (mAnswerState.get(roster.get(slot))) {
+                answeredMask |= 1 << slot;
+            }
+        }
+        int questionIndex = isAnswering ? (mQuestionIndex - 1) : -1;
+        sendTo(route, QuizPacket.Creator.catchUp(
+                mStateSequence, questionIndex, answeredMask, mSentPoints.clone()).getBytes(),
+                mBatcher);
+        if ((!isAnswering) || mAnswerState.get(mPlayerMap.get(route))) {
+            return;
+        }
+        Integer preloaded = mPreloadedMap.get(route);
+        if ((null == preloaded) || (questionIndex >= preloaded)) {
+            Objects.requireNonNull(mNowQuestion);
+            sendTo(route, mQuestionCompressor.encode(mNowQuestion.getQuestionText()),
+                    mBulkBatcher);
+        }
+    }
+
+    // 送信できるゲストか。自身と、切断したゲストと、復帰待ちのゲストは除く
+    private boolean isReachable(@Nullable Route route) {
+        return (null != route) && mPlayerMap.get(route).isConnect()
+                && !mSuspendedMap.containsKey(route);
+    }
+
+    /**
+     * ゲスト1人宛のパケットを積みます。中継端末の先のゲスト宛は経路番号を付けて中継端末へ積みます。
+     * @param route     宛先
+     * @param data      符号化済みパケット
+     * @param batcher   送る論理チャネルのまとめ送り
+     */
+    private void sendTo(
+            @NonNull Route route,
+            @NonNull byte[] data,
+            @NonNull PacketBatcher<BluetoothDevice> batcher) {
+        if (route.isDirect()) {
+            batcher.add(route.getDevice(), data);
+        } else {
+            batcher.add(route.getDevice(), Route.wrap(route.getRouteId(), data));
+        }
+    }
+
+    // 中継端末の先のゲストは、中継端末宛に積んだパケットに混ざっているため取り除かない
+    private void removeBatch(@NonNull Route route) {
+        if (route.isDirect()) {
+            mBatcher.remove(route.getDevice());
+            mBulkBatcher.remove(route.getDevice());
+        }
+    }
+
     private void sendAllGuestPlayers(@NonNull QuizPacket packet) {
-        for (BluetoothDevice device : mPlayerMap.keySet()) {
-            if ((null == device) || (!mPlayerMap.get(device).isConnect())) {
+        // 符号化は1度だけ行い、全ゲストで同じデータを共有する
+        sendAllGuestPlayers(packet.getBytes());
+    }
+
+    private void sendAllGuestPlayers(@NonNull byte[] data) {
+        // 中継端末の先のゲストへは中継端末が転送する
+        for (Route route : mPlayerMap.keySet()) {
+            if ((!isReachable(route)) || (!route.isDirect())) {
                 continue;
             }
-            mServer.sendData(device, packet.getBytes());
+            mBatcher.add(route.getDevice(), data);
+        }
+    }
+
+    @NonNull
+    private List<BluetoothDevice> sendData(
+            @NonNull List<BluetoothDevice> devices,
+            @NonNull byte[] data,
+            @NonNull Channel channel) {
+        try {
+            // 送信待ちが溢れた端末へは、まとめ送りが時間を置いて送り直す
+            return mServer.offerToDevices(devices, data, channel);
+        } catch (IllegalStateException e) {
+            // まとめ送りを待つ間に切断された場合
+            Log.d(getClass().getSimpleName(), "Failed to send. " + e.getMessage());
+            return Collections.emptyList();
         }
     }
 
     private void handlePacket(@NonNull BluetoothDevice device, @NonNull byte[] data) {
-        QuizPacket packet = QuizPacket.Creator.parsePacket(data);
+        QuizPacketView packet = mPacketView.wrap(data);
+        if (PacketType.Batch == packet.getType()) {
+            // 中継端末は下流のゲストのパケットをまとめて送ってくる
+            int entryCount = packet.getEntryCount();
+            for (int cnt = 0; entryCount > cnt; cnt++) {
+                handlePacket(device, packet.wrapEntry(cnt, mEntryView));
+            }
+            return;
+        }
+        handlePacket(device, packet);
+    }
+
+    private void handlePacket(@NonNull BluetoothDevice device, @NonNull QuizPacketView packet) {
+        Route route = new Route(device);
+        switch (packet.getType()) {
+            case Join:
+            case Leave:
+            case Routed: {
+                // 参加済みの中継端末からのみ受け付ける
+                if ((!mPlayerMap.containsKey(route)) || mPendingResumeMap.containsKey(route)) {
+                    return;
+                }
+                handleRoutePacket(device, packet);
+                return;
+            }
+        }
+        handlePacket(route, packet);
+    }
+
+    private void handleRoutePacket(
+            @NonNull BluetoothDevice device, @NonNull QuizPacketView packet) {
+        Route route = new Route(device, packet.getRouteId());
+        switch (packet.getType()) {
+            case Join: {
+                onRouteConnected(route);
+                break;
+            }
+            case Leave: {
+                _onDisconnected(route);
+                break;
+            }
+            case Routed: {
+                QuizPacketView routed = packet.wrapRouted(mRoutedView);
+                switch (routed.getType()) {
+                    case Join:
+                    case Leave:
+                    case Routed:
+                    case Batch: {
+                        Log.d(getClass().getSimpleName(), "Nested relay is not supported.");
+                        return;
+                    }
+                }
+                if (!mPlayerMap.containsKey(route) && !mPendingResumeMap.containsKey(route)) {
+                    return;
+                }
+                handlePacket(route, routed);
+                break;
+            }
+        }
+    }
+
+    private void handlePacket(@NonNull Route route, @NonNull QuizPacketView packet) {
         Log.d("クイズLib", "[receivedPacket] type: " + packet.getType());
+        if (mPendingResumeMap.containsKey(route)) {
+            // 復帰前のゲストは再開要求のみ受け付ける
+            if (PacketType.Resume == packet.getType()) {
+                resumePlayer(route, packet.getResumeToken(), packet.getCachedCount());
+            }
+            return;
+        }
         switch (packet.getType()) {
             case Answer: {
-                handleAnswer(
-                        mPlayerMap.get(device),
-                        (AnswerChoice) packet.getPayload(PayloadKey.Choice));
+                handleAnswer(mPlayerMap.get(route), packet.getChoice());
+                break;
+            }
+            case KeyframeRequest: {
+                // 通番の欠落を検知したゲストにのみ、最後に送った通番の全員分を送る。
+                // 採点済みで未送信の得点を載せると、次の差分と通番が食い違う
+                sendTo(route, QuizPacket.Creator.playersState(
+                        mStateSequence, getSentRoster()).getBytes(), mBatcher);
                 break;
             }
         }
     }
 
-    private void addPlayer(@NonNull BluetoothDevice device) {
-        // 4人以上なら切断
+    private void addPlayer(@NonNull Route route) {
+        // 上限を超えたら切断
         if (Constants.MAX_NUM_OF_PLAYER <= mPlayerMap.size()) {
-            mServer.disconnect(device);
+            disconnect(route);
             return;
         }
         String newPlayerId = makePlayerId();
-        mPlayerMap.put(device, new QuizPlayer(newPlayerId));
-        // プレイヤーID送信
-        mServer.sendData(device, QuizPacket.Creator.playerId(newPlayerId).getBytes());
+        mPlayerMap.put(route, new QuizPlayer(newPlayerId));
+        long resumeToken = mRandom.nextLong();
+        mResumeTokenMap.put(route, resumeToken);
+        // プレイヤーID送信。中継は1段までのため、中継端末の先のゲストには中継させない
+        sendTo(route, QuizPacket.Creator.playerId(
+                newPlayerId, resumeToken, mRoomId, route.isDirect()).getBytes(), mBatcher);
         ArrayList<QuizPlayer> playerList = new ArrayList<>();
-        for (BluetoothDevice key : mPlayerMap.keySet()) {
+        for (Route key : mPlayerMap.keySet()) {
             playerList.add(mPlayerMap.get(key));
         }
         sendAllGuestPlayers(QuizPacket.Creator.playerChanged(playerList));
+        mPreloadedMap.put(route, 0);
+        preloadQuestion(route);
         mCallback.onPlayerChanged(playerList);
         Log.d(getClass().getSimpleName(), "Player changed.");
     }
 
     private void handleAnswer(@NonNull QuizPlayer player, @NonNull AnswerChoice choice) {
+        // 復帰したゲストが同じ問題に答え直しても数えない
+        if ((!isAnswering) || mAnswerState.get(player)) {
+            return;
+        }
         mAnswerState.put(player, true);
         // 回答状況通知
         int playerNum = getPlayerNum(player);
@@ -264,6 +684,12 @@ public class QuizHostManager {
         if (!isAnswerFinished()) {
             return;
         }
+        finishQuestion();
+    }
+
+    private void finishQuestion() {
+        Objects.requireNonNull(mNowQuestion);
+        isAnswering = false;
         for (QuizPlayer playerKey : mAnswerState.keySet()) {
             mAnswerState.put(playerKey, false);
         }
@@ -271,7 +697,7 @@ public class QuizHostManager {
                 mNowQuestion.isCorrect(mAnswerChoice), mNowQuestion.getCorrectAnswer());
         sendAllGuestPlayers(QuizPacket.Creator.correctAnswer(mNowQuestion.getCorrectAnswer()));
         // 得点状況送信
-        sendAllGuestPlayers(QuizPacket.Creator.playersState(getAllPlayerInfo()));
+        sendPlayersState();
         // mQuestionNumが0になるまで出題繰り返し
         mQuestionNum--;
         Runnable runnable;
@@ -283,11 +709,50 @@ public class QuizHostManager {
         mHandler.postDelayed(runnable, 5000);
     }
 
+    private void sendPlayersState() {
+        Objects.requireNonNull(mSentPoints);
+        ArrayList<QuizPlayer> roster = getAllPlayerInfo();
+        mStateSequence++;
+        QuizPacket packet;
+        if (0 == (mStateSequence % Constants.KEYFRAME_INTERVAL)) {
+            packet = QuizPacket.Creator.playersState(mStateSequence, roster);
+        } else {
+            ArrayList<QuizPlayer> changed = new ArrayList<>();
+            for (int slot = 0; roster.size() > slot; slot++) {
+                if (roster.get(slot).getCorrectAnswerPoint() != mSentPoints[slot]) {
+                    changed.add(roster.get(slot));
+                }
+            }
+            packet = QuizPacket.Creator.playersStateDelta(mStateSequence, roster, changed);
+        }
+        for (int slot = 0; roster.size() > slot; slot++) {
+            mSentPoints[slot] = roster.get(slot).getCorrectAnswerPoint();
+        }
+        sendAllGuestPlayers(packet);
+    }
+
+    /**
+     * 最後に送った得点状況の参加者表を返します。
+     * @return  各スロットの得点を{@link #mSentPoints}にした参加者表。出題前は現在の参加者表
+     */
+    @NonNull
+    private ArrayList<QuizPlayer> getSentRoster() {
+        ArrayList<QuizPlayer> roster = getAllPlayerInfo();
+        if (null == mSentPoints) {
+            return roster;
+        }
+        ArrayList<QuizPlayer> sentRoster = new ArrayList<>(roster.size());
+        for (int slot = 0; roster.size() > slot; slot++) {
+            sentRoster.add(roster.get(slot).withCorrectAnswerPoint(mSentPoints[slot]));
+        }
+        return sentRoster;
+    }
+
     // TODO もっと簡単に取得する方法ありそう
     private int getPlayerNum(@NonNull QuizPlayer player) {
         int playerNum = 0;
-        for (BluetoothDevice device : mPlayerMap.keySet()) {
-            if (mPlayerMap.get(device).getId().equals(player.getId())) {
+        for (Route route : mPlayerMap.keySet()) {
+            if (mPlayerMap.get(route).getId().equals(player.getId())) {
                 break;
             }
             playerNum++;
@@ -296,12 +761,12 @@ public class QuizHostManager {
     }
 
     private void returnResult() {
-        mState = null;
+        mState.moveTo(State.Finished);
         ArrayList<QuizPlayer> result = new ArrayList<>();
         // プレイヤー情報抜出
-        for (BluetoothDevice device : mPlayerMap.keySet()) {
-            if (mPlayerMap.get(device).isConnect()) {
-                result.add(mPlayerMap.get(device));
+        for (Route route : mPlayerMap.keySet()) {
+            if (mPlayerMap.get(route).isConnect()) {
+                result.add(mPlayerMap.get(route));
             }
         }
         // 得点順にソート
@@ -309,13 +774,13 @@ public class QuizHostManager {
                 result,
                 (o1, o2) -> o2.getCorrectAnswerPoint() - o1.getCorrectAnswerPoint());
         mCallback.onResult(result);
-        sendAllGuestPlayers(QuizPacket.Creator.result(result));
+        sendAllGuestPlayers(QuizPacket.Creator.result(getAllPlayerInfo(), result));
     }
 
     private boolean isAnswerFinished() {
-        for (BluetoothDevice device : mPlayerMap.keySet()) {
-            boolean answerState = mAnswerState.get(mPlayerMap.get(device));
-            if ((!answerState) && (mPlayerMap.get(device).isConnect())) {
+        for (Route route : mPlayerMap.keySet()) {
+            boolean answerState = mAnswerState.get(mPlayerMap.get(route));
+            if ((!answerState) && (mPlayerMap.get(route).isConnect())) {
                 return false;
             }
         }
@@ -29,6 +29,19 @@ public class QuizPlayer implements Serializable {
         mCorrectAnswerPoint++;
     }
 
+    /**
+     * 得点のみ異なる新しいインスタンスを返します。渡し済みのインスタンスはUIが保持しているため書き換えません。
+     * @param correctAnswerPoint    得点
+     * @return  新しいインスタンス
+     */
+    @NonNull
+    QuizPlayer withCorrectAnswerPoint(int correctAnswerPoint) {
+        QuizPlayer player = new QuizPlayer(mId, correctAnswerPoint);
+        player.isMe = isMe;
+        player.isConnect = isConnect;
+        return player;
+    }
+
     public int getCorrectAnswerPoint() {
         return mCorrectAnswerPoint;
     }
@@ -0,0 +1,295 @@
+package com.example.quiz_lib;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.example.ble_communication_lib.BleDataCommunicationException;
+import com.example.ble_communication_lib.BleDataCommunicationServer;
+import com.example.ble_communication_lib.Channel;
+import com.example.quiz_lib.packet.PacketType;
+import com.example.quiz_lib.packet.QuizPacket;
+import com.example.quiz_lib.packet.QuizPacketView;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * ゲストが下流のゲストを受け入れ、ホストとの間を中継するクラスです。<br>
+ * ホストからの全員宛のパケットは下流の全ゲストへ転送し、経路番号付きのパケットは宛先のゲストへ転送します。
+ * 下流のゲストからのパケットは経路番号を付け、まとめてホストへ送ります。
+ * 中継は1段までで、中継端末の下流のゲストはさらに中継できません。
+ * ゲストのハンドラスレッドからのみ呼び出してください。
+ */
+class QuizRelay {
+    interface Upstream {
+        /**
+         * ホストへデータを送ります。
+         * @param data      送信データ
+         * @param channel   送信する論理チャネル
+         */
+        void send(@NonNull byte[] data, @NonNull Channel channel);
+    }
+
+    @NonNull
+    private final Handler mHandler;
+    @NonNull
+    private final BleDataCommunicationServer mServer;
+    @NonNull
+    private final BleDataCommunicationServer.Callback mCommunicationCallback =
+            new BleDataCommunicationServer.Callback() {
+                @Override
+                public void onWaitingStarted() {
+                    Log.d(getClass().getSimpleName(), "Relay started.");
+                }
+
+                @Override
+                public void onWaitingStopped() {
+                    Log.d(getClass().getSimpleName(), "Relay stopped.");
+                }
+
+                @Override
+                public void onConnected(@NonNull BluetoothDevice device) {
+                    addRoute(device);
+                }
+
+                @Override
+                public void onDisconnected(@NonNull BluetoothDevice device) {
+                    removeRoute(device);
+                }
+
+                @Override
+                public void onDataReceived(@NonNull BluetoothDevice device, @NonNull byte[] data) {
+                    Integer routeId = mRouteMap.get(device);
+                    if (null == routeId) {
+                        return;
+                    }
+                    // 受信データはコールバック内でのみ有効なため、経路番号を付ける際に複製される
+                    mUpstreamBatcher.add(Channel.Control, Route.wrap(routeId, data));
+                }
+
+                @Override
+                public void onError(@NonNull BleDataCommunicationException exception) {
+                    Log.d(getClass().getSimpleName(), "Relay error. " + exception.getmErrorCode());
+                }
+            };
+    @NonNull
+    private final Upstream mUpstream;
+    // 下流のゲストと経路番号
+    @NonNull
+    private final HashMap<BluetoothDevice, Integer> mRouteMap = new HashMap<>();
+    @NonNull
+    private final SparseArray<BluetoothDevice> mDeviceMap = new SparseArray<>();
+    // 下流のゲストの再開トークン。ホストとの接続が切れて復帰した際に、下流のゲストの分も復帰させる
+    @NonNull
+    private final HashMap<BluetoothDevice, Long> mResumeTokenMap = new HashMap<>();
+    // 下流のゲストへ問題番号0から途切れずに転送した問題集の問題数。下流との接続は切れていないため、
+    // 復帰時にゲストに代わってホストへ伝える
+    @NonNull
+    private final HashMap<BluetoothDevice, Integer> mCachedCountMap = new HashMap<>();
+    private int mNextRouteId = Route.DIRECT + 1;
+    private boolean isStarted = false;
+    // ホストへは下流の回答をまとめて送る。下流へはホストからのまとめ送りを受けた直後にまとめて送る
+    @NonNull
+    private final PacketBatcher<Channel> mUpstreamBatcher;
+    @NonNull
+    private final PacketBatcher<BluetoothDevice> mBatcher;
+    @NonNull
+    private final PacketBatcher<BluetoothDevice> mBulkBatcher;
+    @NonNull
+    private final QuizPacketView mRoutedView = new QuizPacketView();
+
+    QuizRelay(@NonNull Context context, @NonNull Handler handler, @NonNull Upstream upstream) {
+        mHandler = handler;
+        mUpstream = upstream;
+        mServer = new BleDataCommunicationServer(
+                context, mHandler.getLooper(), mCommunicationCallback);
+        mUpstreamBatcher = new PacketBatcher<>(mHandler, Constants.RELAY_COALESCE_WINDOW_MS,
+                (channels, data) -> send(channels, data));
+        mBatcher = new PacketBatcher<>(mHandler, 0,
+                (devices, data) -> sendData(devices, data, Channel.Control));
+        mBulkBatcher = new PacketBatcher<>(mHandler, 0,
+                (devices, data) -> sendData(devices, data, Channel.Bulk));
+    }
+
+    /**
+     * 部屋の識別子から、スキャン応答で広告する部屋名を求めます。ホストと中継端末で同じ部屋名になります。
+     * @param roomId    ホストが部屋毎に生成した識別子
+     * @return  部屋名
+     */
+    @NonNull
+    static String toRoomName(long roomId) {
+        return Long.toHexString(roomId);
+    }
+
+    /**
+     * 下流のゲストの受け入れを開始します。既に開始していれば何もしません。
+     * @param roomId    ホストの部屋の識別子。下流のゲストがホストと同じ部屋として見分けられるよう広告する
+     */
+    void start(long roomId) {
+        if (isStarted) {
+            return;
+        }
+        isStarted = true;
+        mServer.setRoomName(toRoomName(roomId));
+        mServer.startWaiting();
+    }
+
+    void stop() {
+        if (!isStarted) {
+            return;
+        }
+        isStarted = false;
+        mServer.stopWaiting();
+    }
+
+    /**
+     * ホストから受信したパケットを下流のゲストへ転送します。
+     * @param packet    ホストから受信したパケット。まとめ送りは展開済みであること
+     * @return  true: 下流のゲスト宛のパケットで、中継端末自身では処理しない
+     */
+    boolean forward(@NonNull QuizPacketView packet) {
+        switch (packet.getType()) {
+            case Routed: {
+                forwardRouted(packet);
+                return true;
+            }
+            case PlayerChanged:
+            case PlayerAnswered:
+            case CorrectAnswer:
+            case PlayersState:
+            case PlayersStateDelta:
+            case PlayerDisconnected:
+            case Result: {
+                // 全員宛のパケット。中継端末も処理する
+                if (0 == mRouteMap.size()) {
+                    return false;
+                }
+                byte[] data = packet.toBytes();
+                for (BluetoothDevice device : mRouteMap.keySet()) {
+                    mBatcher.add(device, data);
+                }
+                return false;
+            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * ホストとの接続が復帰した際に、下流のゲストの経路と再開要求をホストへ送り直します。<br>
+     * 中継端末が切断している間、ホストは下流のゲストも切断したものとして復帰を待っています。
+     */
+    void onUpstreamResumed() {
+        for (BluetoothDevice device : mRouteMap.keySet()) {
+            int routeId = mRouteMap.get(device);
+            mUpstreamBatcher.add(Channel.Control,
+                    QuizPacket.Creator.routeControl(PacketType.Join, routeId).getBytes());
+            Long resumeToken = mResumeTokenMap.get(device);
+            if (null != resumeToken) {
+                mUpstreamBatcher.add(Channel.Control, Route.wrap(routeId, QuizPacket.Creator
+                        .resume(resumeToken, mCachedCountMap.get(device)).getBytes()));
+            }
+        }
+    }
+
+    private void forwardRouted(@NonNull QuizPacketView packet) {
+        BluetoothDevice device = mDeviceMap.get(packet.getRouteId());
+        if (null == device) {
+            // 転送前に切断した
+            return;
+        }
+        QuizPacketView routed = packet.wrapRouted(mRoutedView);
+        switch (routed.getType()) {
+            case Leave: {
+                // ホストが受け入れなかったゲスト
+                mServer.disconnect(device);
+                return;
+            }
+            case PlayerId: {
+                mResumeTokenMap.put(device, routed.getResumeToken());
+                mCachedCountMap.put(device, 0);
+                break;
+            }
+            case QuestionBankEntry: {
+                Integer cachedCount = mCachedCountMap.get(device);
+                if ((null != cachedCount) && (cachedCount == routed.getQuestionIndex())) {
+                    mCachedCountMap.put(device, cachedCount + 1);
+                }
+                break;
+            }
+            case Routed:
+            case Join: {
+                Log.d(getClass().getSimpleName(), "Nested relay is not supported.");
+                return;
+            }
+        }
+        if (isBulk(routed.getType())) {
+            mBulkBatcher.add(device, routed.toBytes());
+        } else {
+            mBatcher.add(device, routed.toBytes());
+        }
+    }
+
+    private void addRoute(@NonNull BluetoothDevice device) {
+        int routeId = mNextRouteId++;
+        mRouteMap.put(device, routeId);
+        mDeviceMap.put(routeId, device);
+        mUpstreamBatcher.add(Channel.Control,
+                QuizPacket.Creator.routeControl(PacketType.Join, routeId).getBytes());
+    }
+
+    private void removeRoute(@NonNull BluetoothDevice device) {
+        Integer routeId = mRouteMap.remove(device);
+        if (null == routeId) {
+            return;
+        }
+        mDeviceMap.remove(routeId);
+        mResumeTokenMap.remove(device);
+        mCachedCountMap.remove(device);
+        mBatcher.remove(device);
+        mBulkBatcher.remove(device);
+        mUpstreamBatcher.add(Channel.Control,
+                QuizPacket.Creator.routeControl(PacketType.Leave, routeId).getBytes());
+    }
+
+    @NonNull
+    private List<Channel> send(@NonNull List<Channel> channels, @NonNull byte[] data) {
+        for (Channel channel : channels) {
+            mUpstream.send(data, channel);
+        }
+        return Collections.emptyList();
+    }
+
+    @NonNull
+    private List<BluetoothDevice> sendData(
+            @NonNull List<BluetoothDevice> devices,
+            @NonNull byte[] data,
+            @NonNull Channel channel) {
+        try {
+            // 送信待ちが溢れた下流のゲストへは、まとめ送りが時間を置いて送り直す
+            return mServer.offerToDevices(devices, data, channel);
+        } catch (IllegalStateException e) {
+            // まとめ送りを待つ間に切断された場合
+            Log.d(getClass().getSimpleName(), "Failed to send. " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    // ホストが問題集用の論理チャネルで送るパケット。問題番号が問題集を追い越さないよう同じチャネルで転送する
+    private static boolean isBulk(@NonNull PacketType type) {
+        switch (type) {
+            case Question:
+            case CompressedQuestion:
+            case QuestionBankEntry:
+            case QuestionIndex:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.quiz_lib;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+
+import com.example.quiz_lib.packet.QuizPacketEncoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ホストから見たゲストへの経路です。<br>
+ * 直接接続したゲストは接続した端末のみで表し、中継端末の先のゲストは中継端末と、
+ * 中継端末が下流のゲストに振った経路番号で表します。
+ */
+final class Route {
+    // 直接接続したゲストの経路番号。中継端末は1から振る
+    static final int DIRECT = 0;
+
+    @NonNull
+    private final BluetoothDevice mDevice;
+    private final int mRouteId;
+
+    Route(@NonNull BluetoothDevice device) {
+        this(device, DIRECT);
+    }
+
+    Route(@NonNull BluetoothDevice device, int routeId) {
+        mDevice = device;
+        mRouteId = routeId;
+    }
+
+    /**
+     * @return  ホストと接続している端末。中継端末の先のゲストの場合は中継端末
+     */
+    @NonNull
+    BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    int getRouteId() {
+        return mRouteId;
+    }
+
+    boolean isDirect() {
+        return DIRECT == mRouteId;
+    }
+
+    /**
+     * 経路番号を付けた中継パケットを生成します。
+     * @param routeId   経路番号
+     * @param packet    符号化済みパケット
+     * @return  中継パケット
+     */
+    @NonNull
+    static byte[] wrap(int routeId, @NonNull byte[] packet) {
+        byte[] data = new byte[QuizPacketEncoder.sizeOfRouted(routeId, packet)];
+        QuizPacketEncoder.routed(ByteBuffer.wrap(data), routeId, packet);
+        return data;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Route)) {
+            return false;
+        }
+        Route route = (Route) obj;
+        return (mRouteId == route.mRouteId) && mDevice.equals(route.mDevice);
+    }
+
+    @Override
+    public int hashCode() {
+        return (31 * mDevice.hashCode()) + mRouteId;
+    }
+
+    @Override
+    public String toString() {
+        return mDevice.getAddress() + "/" + mRouteId;
+    }
+}
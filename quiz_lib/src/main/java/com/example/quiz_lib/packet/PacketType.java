@@ -9,10 +9,29 @@ public enum PacketType {
     CorrectAnswer((byte) 0x06),
     PlayersState((byte) 0x07),
     PlayerDisconnected((byte) 0x08),
-    Result((byte) 0x09)
+    Result((byte) 0x09),
+    PlayersStateDelta((byte) 0x0A),
+    KeyframeRequest((byte) 0x0B),
+    Batch((byte) 0x0C),
+    CompressedQuestion((byte) 0x0D),
+    QuestionBankEntry((byte) 0x0E),
+    QuestionIndex((byte) 0x0F),
+    Resume((byte) 0x10),
+    CatchUp((byte) 0x11),
+    Join((byte) 0x12),
+    Leave((byte) 0x13),
+    Routed((byte) 0x14),
     ;
 
     private final byte mType;
+    // values()は呼び出し毎に配列を複製するため、種別値をインデックスとした表を1度だけ作る
+    private static final PacketType[] TYPE_TABLE = new PacketType[0x100];
+
+    static {
+        for (PacketType type : values()) {
+            TYPE_TABLE[type.mType & 0xFF] = type;
+        }
+    }
 
     PacketType(final byte type) {
         this.mType = type;
@@ -23,12 +42,11 @@ public enum PacketType {
     }
 
     public static PacketType getType(final byte value) throws IllegalArgumentException {
-        for (PacketType type : PacketType.values()) {
-            if (type.getByte() == value) {
-                return type;
-            }
+        PacketType type = TYPE_TABLE[value & 0xFF];
+        if (null == type) {
+            throw new IllegalArgumentException("Bad value.");
         }
-        throw new IllegalArgumentException("Bad value.");
+        return type;
     }
 
 }
@@ -6,5 +6,6 @@ public enum PayloadKey {
     QuestionText,
     Choice,
     PlayerList,
+    ResumeToken,
     ;
 }
@@ -0,0 +1,142 @@
+package com.example.quiz_lib.packet;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 問題文を事前共有辞書付きのDEFLATEで圧縮/展開するクラスです。<br>
+ * 辞書はホストとゲストで同じものを指定する必要があります。閾値未満の問題文や、
+ * 圧縮しても小さくならない問題文は通常のQuestionパケットのまま送ります。<br>
+ * スレッドセーフではありません。1つのスレッドから使用してください。
+ */
+public final class QuestionCompressor {
+    // これ未満のバイト数の問題文は圧縮しない
+    public static final int DEFAULT_THRESHOLD = 32;
+    // ヘッダ無しDEFLATEの展開時にzlibが要求することがある末尾のダミーバイト
+    private static final byte[] DUMMY_INPUT = new byte[1];
+
+    @NonNull
+    private final byte[] mDictionary;
+    private final int mThreshold;
+    @NonNull
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    @NonNull
+    private final Inflater mInflater = new Inflater(true);
+    @NonNull
+    private byte[] mScratch = new byte[256];
+
+    public QuestionCompressor(@NonNull byte[] dictionary) {
+        this(dictionary, DEFAULT_THRESHOLD);
+    }
+
+    public QuestionCompressor(@NonNull byte[] dictionary, int threshold) {
+        mDictionary = dictionary;
+        mThreshold = threshold;
+    }
+
+    /**
+     * 問題文をパケットに符号化します。
+     * @param questionText  問題文
+     * @return  CompressedQuestionまたはQuestionパケット
+     */
+    @NonNull
+    public byte[] encode(@NonNull String questionText) {
+        int rawLength = Utf8.encodedLength(questionText);
+        if (mThreshold > rawLength) {
+            return QuizPacket.Creator.question(questionText).getBytes();
+        }
+        byte[] raw = questionText.getBytes(Utf8.CHARSET);
+        int compressedLength = deflate(raw);
+        int size = QuizPacketEncoder.sizeOfCompressedQuestion(rawLength, compressedLength);
+        if (QuizPacketEncoder.sizeOfQuestion(questionText) <= size) {
+            return QuizPacket.Creator.question(questionText).getBytes();
+        }
+        byte[] data = new byte[size];
+        QuizPacketEncoder.compressedQuestion(
+                ByteBuffer.wrap(data), rawLength, mScratch, 0, compressedLength);
+        return data;
+    }
+
+    /**
+     * Question/CompressedQuestionパケットから問題文を取り出します。
+     * @param view  パケットを参照しているビュー
+     * @return  問題文
+     * @throws IllegalArgumentException 問題文のパケットでない場合、または展開に失敗した場合に投げられます。
+     */
+    @NonNull
+    public String decode(@NonNull QuizPacketView view) throws IllegalArgumentException {
+        switch (view.getType()) {
+            case Question:
+                return view.getQuestionText();
+            case CompressedQuestion:
+                return inflate(view);
+            default:
+                throw new IllegalArgumentException("Bad type: " + view.getType());
+        }
+    }
+
+    private int deflate(@NonNull byte[] raw) {
+        mDeflater.reset();
+        mDeflater.setDictionary(mDictionary);
+        mDeflater.setInput(raw);
+        mDeflater.finish();
+        int length = 0;
+        while (!mDeflater.finished()) {
+            if (mScratch.length == length) {
+                byte[] scratch = new byte[mScratch.length * 2];
+                System.arraycopy(mScratch, 0, scratch, 0, length);
+                mScratch = scratch;
+            }
+            length += mDeflater.deflate(mScratch, length, mScratch.length - length);
+        }
+        return length;
+    }
+
+    @NonNull
+    private String inflate(@NonNull QuizPacketView view) throws IllegalArgumentException {
+        ByteBuffer buffer = view.getBuffer();
+        int offset = view.getCompressedOffset();
+        int length = view.getCompressedLength();
+        byte[] input;
+        int inputOffset;
+        if (buffer.hasArray()) {
+            input = buffer.array();
+            inputOffset = buffer.arrayOffset() + offset;
+        } else {
+            input = new byte[length];
+            for (int cnt = 0; length > cnt; cnt++) {
+                input[cnt] = buffer.get(offset + cnt);
+            }
+            inputOffset = 0;
+        }
+        byte[] raw = new byte[view.getRawLength()];
+        mInflater.reset();
+        mInflater.setDictionary(mDictionary);
+        mInflater.setInput(input, inputOffset, length);
+        try {
+            int written = 0;
+            boolean isDummyFed = false;
+            while (raw.length > written) {
+                int inflated = mInflater.inflate(raw, written, raw.length - written);
+                if (0 == inflated) {
+                    if (isDummyFed || mInflater.finished() || !mInflater.needsInput()) {
+                        break;
+                    }
+                    isDummyFed = true;
+                    mInflater.setInput(DUMMY_INPUT);
+                }
+                written += inflated;
+            }
+            if (raw.length != written) {
+                throw new IllegalArgumentException("Truncated question");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return new String(raw, Utf8.CHARSET);
+    }
+}
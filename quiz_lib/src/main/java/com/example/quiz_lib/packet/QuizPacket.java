@@ -3,217 +3,557 @@ package com.example.quiz_lib.packet;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.example.quiz_lib.Constants;
 import com.example.quiz_lib.Question.AnswerChoice;
 import com.example.quiz_lib.QuizPlayer;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
+/**
+ * パケット1件分の内容を保持するクラスです。<br>
+ * 符号化/復号は{@link QuizPacketEncoder}/{@link QuizPacketView}に委譲します。
+ */
 public class QuizPacket {
     @NonNull
     private final PacketType mType;
-    @NonNull
-    private final HashMap<PayloadKey, Object> mPayloads = new HashMap<>();
-
-    private static final int TYPE_OFFSET = 0;
-    private static final int SIZE_OF_TYPE = 1;
-    private static final int SIZE_OF_ANSWER_POINT = 1;
+    @Nullable
+    private String mPlayerId;
+    private long mResumeToken;
+    private long mRoomId;
+    private boolean isRelayable;
+    private int mRouteId;
+    private int mPlayerNum;
+    private int mSequence;
+    private int mQuestionIndex;
+    private int mCachedCount;
+    @Nullable
+    private String mQuestionText;
+    @Nullable
+    private AnswerChoice mChoice;
+    // 途中経過(CatchUp)の回答済みのスロットと、スロット順の得点
+    private int mAnsweredMask;
+    @Nullable
+    private int[] mPoints;
+    @Nullable
+    private ArrayList<QuizPlayer> mPlayerList;
+    // 得点系パケットでスロット番号を引くための参加者表
+    @Nullable
+    private List<QuizPlayer> mRoster;
+    // 圧縮済み問題文(CompressedQuestion)の展開後のバイト数と、圧縮済みデータ
+    private int mRawLength;
+    @Nullable
+    private byte[] mCompressed;
+    // 問題集(QuestionBankEntry)・中継(Routed)に埋め込まれた符号化済みパケット
+    @Nullable
+    private byte[] mInnerPacket;
+    // まとめ送り(Batch)の符号化済みパケット
+    @Nullable
+    private List<byte[]> mPackets;
 
     private QuizPacket(@NonNull PacketType type) {
         mType = type;
     }
 
     public static class Creator {
+        // 配列から解析する際のビュー。ハンドラスレッド毎に1つを使い回す
+        private static final ThreadLocal<QuizPacketView> VIEW = new ThreadLocal<QuizPacketView>() {
+            @Override
+            protected QuizPacketView initialValue() {
+                return new QuizPacketView();
+            }
+        };
+
         @NonNull
         public static QuizPacket parsePacket(@NonNull byte[] data)
                 throws IllegalArgumentException {
-            PacketType type = PacketType.getType(data[TYPE_OFFSET]);
-            QuizPacket packet = new QuizPacket(type);
-            switch (type) {
+            return parsePacket(data, null);
+        }
+
+        /**
+         * パケットを解析します。
+         * @param data      受信データ
+         * @param roster    PlayersState/Resultのスロット番号を解決するための参加者表
+         * @return  解析したパケット
+         * @throws IllegalArgumentException データが不正な場合、
+         *                                  または参加者表が必要なのに指定されていない場合に投げられます。
+         */
+        @NonNull
+        public static QuizPacket parsePacket(
+                @NonNull byte[] data, @Nullable List<QuizPlayer> roster)
+                throws IllegalArgumentException {
+            return parsePacket(VIEW.get().wrap(data), roster);
+        }
+
+        @NonNull
+        public static QuizPacket parsePacket(
+                @NonNull QuizPacketView view, @Nullable List<QuizPlayer> roster)
+                throws IllegalArgumentException {
+            QuizPacket packet = new QuizPacket(view.getType());
+            switch (view.getType()) {
                 case PlayerId: {
-                    if ((SIZE_OF_TYPE + Constants.PLAYER_ID_LEN) != data.length) {
-                        throw new IllegalArgumentException("Invalid num of characters");
+                    packet.mPlayerId = view.getPlayerId();
+                    packet.mResumeToken = view.getResumeToken();
+                    packet.mRoomId = view.getRoomId();
+                    packet.isRelayable = view.isRelayable();
+                    break;
+                }
+                case Resume: {
+                    packet.mResumeToken = view.getResumeToken();
+                    packet.mCachedCount = view.getCachedCount();
+                    break;
+                }
+                case Join:
+                case Leave: {
+                    packet.mRouteId = view.getRouteId();
+                    break;
+                }
+                case CatchUp: {
+                    packet.mSequence = view.getSequence();
+                    packet.mQuestionIndex = view.getCurrentQuestionIndex();
+                    packet.mAnsweredMask = view.getAnsweredMask();
+                    int[] points = new int[view.getPlayerCount()];
+                    for (int slot = 0; points.length > slot; slot++) {
+                        points[slot] = view.getPoint(slot);
                     }
-                    String id = new String(
-                            Arrays.copyOfRange(data, TYPE_OFFSET + 1 , data.length));
-                    packet.mPayloads.put(PayloadKey.PlayerId, id);
+                    packet.mPoints = points;
+                    break;
+                }
+                case Routed: {
+                    packet.mRouteId = view.getRouteId();
+                    packet.mInnerPacket = view.wrapRouted(new QuizPacketView()).toBytes();
+                    break;
+                }
+                case Batch: {
+                    int entryCount = view.getEntryCount();
+                    ArrayList<byte[]> packets = new ArrayList<>(entryCount);
+                    QuizPacketView entry = new QuizPacketView();
+                    for (int cnt = 0; entryCount > cnt; cnt++) {
+                        packets.add(view.wrapEntry(cnt, entry).toBytes());
+                    }
+                    packet.mPackets = packets;
                     break;
                 }
                 case PlayerChanged: {
-                    // プレイヤー数算出
-                    int playerNum = (data.length - SIZE_OF_TYPE) / Constants.PLAYER_ID_LEN;
-                    ArrayList<QuizPlayer> playerList = new ArrayList<>();
+                    int playerNum = view.getPlayerCount();
+                    ArrayList<QuizPlayer> playerList = new ArrayList<>(playerNum);
                     for (int cnt = 0; playerNum > cnt; cnt++) {
-                        int from = (TYPE_OFFSET + 1) + (Constants.PLAYER_ID_LEN * cnt);
-                        byte[] idByte = Arrays.copyOfRange(
-                                data, from, from + Constants.PLAYER_ID_LEN);
-                        playerList.add(new QuizPlayer(new String(idByte)));
+                        playerList.add(new QuizPlayer(view.getPlayerId(cnt)));
                     }
-                    packet.mPayloads.put(PayloadKey.PlayerList, playerList);
+                    packet.mPlayerList = playerList;
                     break;
                 }
                 case Question: {
-                    String questionText = new String(
-                            Arrays.copyOfRange(data, TYPE_OFFSET + 1 , data.length));
-                    packet.mPayloads.put(PayloadKey.QuestionText, questionText);
+                    packet.mQuestionText = view.getQuestionText();
+                    break;
+                }
+                case CompressedQuestion: {
+                    packet.mRawLength = view.getRawLength();
+                    packet.mCompressed = view.toCompressedBytes();
+                    break;
+                }
+                case QuestionBankEntry: {
+                    packet.mQuestionIndex = view.getQuestionIndex();
+                    packet.mInnerPacket = view.wrapQuestion(new QuizPacketView()).toBytes();
                     break;
                 }
                 case Answer:
                 case CorrectAnswer: {
-                    AnswerChoice choice = AnswerChoice.getChoice(data[TYPE_OFFSET + 1]);
-                    packet.mPayloads.put(PayloadKey.Choice, choice);
+                    packet.mChoice = view.getChoice();
                     break;
                 }
                 case PlayerAnswered:
                 case PlayerDisconnected: {
-                    packet.mPayloads.put(PayloadKey.PlayerNum, (int) data[TYPE_OFFSET + 1]);
+                    packet.mPlayerNum = view.getPlayerNum();
                     break;
                 }
                 case PlayersState:
+                case PlayersStateDelta:
                 case Result: {
-                    // プレイヤー数算出
-                    int sizeOfPlayer = (Constants.PLAYER_ID_LEN + SIZE_OF_ANSWER_POINT);
-                    int playerNum = (data.length - SIZE_OF_TYPE) / sizeOfPlayer;
-                    ArrayList<QuizPlayer> playerList = new ArrayList<>();
+                    if (null == roster) {
+                        throw new IllegalArgumentException("Roster is required");
+                    }
+                    int playerNum = view.getPlayerCount();
+                    ArrayList<QuizPlayer> playerList = new ArrayList<>(playerNum);
                     for (int cnt = 0; playerNum > cnt; cnt++) {
-                        int from = (SIZE_OF_TYPE) + (sizeOfPlayer * cnt);
-                        // ID抜出
-                        byte[] idByte = Arrays.copyOfRange(
-                                data, from, from + Constants.PLAYER_ID_LEN);
-                        byte correctPoint =
-                                data[from + Constants.PLAYER_ID_LEN];
-                        // リストにプレイヤー追加
-                        playerList.add(new QuizPlayer(new String(idByte), correctPoint));
+                        int slot = view.getSlot(cnt);
+                        if (roster.size() <= slot) {
+                            throw new IllegalArgumentException("Unknown slot: " + slot);
+                        }
+                        playerList.add(new QuizPlayer(
+                                roster.get(slot).getId(), view.getCorrectAnswerPoint(cnt)));
                     }
-                    packet.mPayloads.put(PayloadKey.PlayerList, playerList);
+                    packet.mPlayerList = playerList;
+                    packet.mRoster = roster;
+                    if (PacketType.Result != view.getType()) {
+                        packet.mSequence = view.getSequence();
+                    }
+                    break;
+                }
+                case QuestionIndex: {
+                    packet.mQuestionIndex = view.getQuestionIndex();
+                    break;
+                }
+                case KeyframeRequest: {
                     break;
                 }
             }
             return packet;
         }
 
+        /**
+         * 参加したゲストへプレイヤーIDを通知するパケットを生成します。
+         * @param playerId      プレイヤーID
+         * @param resumeToken   切断後に同じプレイヤーとして復帰するための再開トークン
+         * @param roomId        ホストが部屋毎に生成した識別子。中継端末は部屋名をこれから求める
+         * @param isRelayable   true: ホストに直接接続しており、下流のゲストを中継してよい
+         * @return  パケット
+         * @throws IllegalArgumentException プレイヤーIDが空の場合に投げられます。
+         */
         @NonNull
-        public static QuizPacket playerId(@NonNull String playerId)
+        public static QuizPacket playerId(
+                @NonNull String playerId, long resumeToken, long roomId, boolean isRelayable)
                 throws IllegalArgumentException {
-            if (playerId.length() != Constants.PLAYER_ID_LEN) {
+            if (playerId.isEmpty()) {
                 throw new IllegalArgumentException("Invalid num of characters");
             }
             QuizPacket packet = new QuizPacket(PacketType.PlayerId);
-            packet.mPayloads.put(PayloadKey.PlayerId, playerId);
+            packet.mPlayerId = playerId;
+            packet.mResumeToken = resumeToken;
+            packet.mRoomId = roomId;
+            packet.isRelayable = isRelayable;
+            return packet;
+        }
+
+        /**
+         * 再接続したゲストが同じプレイヤーとしての復帰を求めるパケットを生成します。
+         * @param resumeToken   参加時に受け取った再開トークン
+         * @param cachedCount   受信済みの問題集の問題数。ホストはこの問題番号から事前配信をやり直す
+         * @return  パケット
+         */
+        @NonNull
+        public static QuizPacket resume(long resumeToken, int cachedCount) {
+            QuizPacket packet = new QuizPacket(PacketType.Resume);
+            packet.mResumeToken = resumeToken;
+            packet.mCachedCount = cachedCount;
+            return packet;
+        }
+
+        /**
+         * 再接続したゲストへ途中経過を送るパケットを生成します。
+         * @param sequence      得点状況の通番
+         * @param questionIndex 回答受付中の問題番号。受付中で無ければ-1
+         * @param answeredMask  回答済みのスロットのビット
+         * @param points        通番の時点でのスロット順の得点
+         * @return  パケット
+         */
+        @NonNull
+        public static QuizPacket catchUp(
+                int sequence, int questionIndex, int answeredMask, @NonNull int[] points) {
+            QuizPacket packet = new QuizPacket(PacketType.CatchUp);
+            packet.mSequence = sequence;
+            packet.mQuestionIndex = questionIndex;
+            packet.mAnsweredMask = answeredMask;
+            packet.mPoints = points;
             return packet;
         }
 
         @NonNull
         public static QuizPacket playerChanged(@NonNull ArrayList<QuizPlayer> playerList) {
             QuizPacket packet = new QuizPacket(PacketType.PlayerChanged);
-            packet.mPayloads.put(PayloadKey.PlayerList, playerList);
+            packet.mPlayerList = playerList;
             return packet;
         }
 
         @NonNull
         public static QuizPacket question(@NonNull String questionText) {
             QuizPacket packet = new QuizPacket(PacketType.Question);
-            packet.mPayloads.put(PayloadKey.QuestionText, questionText);
+            packet.mQuestionText = questionText;
+            return packet;
+        }
+
+        /**
+         * 圧縮済みの問題文パケットを生成します。圧縮は{@link QuestionCompressor}で行います。
+         * @param rawLength     圧縮前のUTF-8のバイト数
+         * @param compressed    圧縮済みデータ
+         * @return  パケット
+         */
+        @NonNull
+        public static QuizPacket compressedQuestion(int rawLength, @NonNull byte[] compressed) {
+            QuizPacket packet = new QuizPacket(PacketType.CompressedQuestion);
+            packet.mRawLength = rawLength;
+            packet.mCompressed = compressed;
+            return packet;
+        }
+
+        /**
+         * 事前配信する問題集の1問分のパケットを生成します。
+         * @param index     問題番号
+         * @param question  符号化済みのQuestion/CompressedQuestionパケット
+         * @return  パケット
+         * @throws IllegalArgumentException 問題文のパケットでない場合に投げられます。
+         */
+        @NonNull
+        public static QuizPacket questionBankEntry(int index, @NonNull byte[] question)
+                throws IllegalArgumentException {
+            if ((0 == question.length)
+                    || ((PacketType.Question.getByte() != question[0])
+                    && (PacketType.CompressedQuestion.getByte() != question[0]))) {
+                throw new IllegalArgumentException("Not a question");
+            }
+            QuizPacket packet = new QuizPacket(PacketType.QuestionBankEntry);
+            packet.mQuestionIndex = index;
+            packet.mInnerPacket = question;
+            return packet;
+        }
+
+        /**
+         * 事前配信済みの問題集から出題するパケットを生成します。
+         * @param index 問題番号
+         * @return  パケット
+         */
+        @NonNull
+        public static QuizPacket questionIndex(int index) {
+            QuizPacket packet = new QuizPacket(PacketType.QuestionIndex);
+            packet.mQuestionIndex = index;
             return packet;
         }
 
         @NonNull
         public static QuizPacket answer(@NonNull AnswerChoice choice) {
             QuizPacket packet = new QuizPacket(PacketType.Answer);
-            packet.mPayloads.put(PayloadKey.Choice, choice);
+            packet.mChoice = choice;
             return packet;
         }
 
         @NonNull
         public static QuizPacket playerAnswered(int playerNum) {
             QuizPacket packet = new QuizPacket(PacketType.PlayerAnswered);
-            packet.mPayloads.put(PayloadKey.PlayerNum, playerNum);
+            packet.mPlayerNum = playerNum;
             return packet;
         }
 
         @NonNull
         public static QuizPacket correctAnswer(@NonNull AnswerChoice choice) {
             QuizPacket packet = new QuizPacket(PacketType.CorrectAnswer);
-            packet.mPayloads.put(PayloadKey.Choice, choice);
+            packet.mChoice = choice;
             return packet;
         }
 
+        /**
+         * 得点状況のキーフレームを生成します。
+         * @param sequence  得点状況の通番
+         * @param roster    参加者表。全員の得点を参加者表の順で送ります。
+         * @return  パケット
+         */
         @NonNull
-        public static QuizPacket playersState(@NonNull ArrayList<QuizPlayer> playerList) {
+        public static QuizPacket playersState(
+                int sequence, @NonNull ArrayList<QuizPlayer> roster) {
             QuizPacket packet = new QuizPacket(PacketType.PlayersState);
-            packet.mPayloads.put(PayloadKey.PlayerList, playerList);
+            packet.mSequence = sequence;
+            packet.mPlayerList = roster;
+            packet.mRoster = roster;
+            return packet;
+        }
+
+        /**
+         * 得点状況の差分を生成します。
+         * @param sequence  得点状況の通番。直前の通番+1である必要があります。
+         * @param roster    参加者表
+         * @param changed   直前の通番から得点が変わったプレイヤー
+         * @return  パケット
+         */
+        @NonNull
+        public static QuizPacket playersStateDelta(
+                int sequence,
+                @NonNull List<QuizPlayer> roster,
+                @NonNull ArrayList<QuizPlayer> changed) {
+            QuizPacket packet = new QuizPacket(PacketType.PlayersStateDelta);
+            packet.mSequence = sequence;
+            packet.mPlayerList = changed;
+            packet.mRoster = roster;
+            return packet;
+        }
+
+        /**
+         * 経路制御パケットを生成します。
+         * @param type      {@link PacketType#Join}または{@link PacketType#Leave}
+         * @param routeId   経路番号
+         * @return  パケット
+         */
+        @NonNull
+        public static QuizPacket routeControl(@NonNull PacketType type, int routeId) {
+            if ((PacketType.Join != type) && (PacketType.Leave != type)) {
+                throw new IllegalArgumentException("Bad type.");
+            }
+            QuizPacket packet = new QuizPacket(type);
+            packet.mRouteId = routeId;
+            return packet;
+        }
+
+        /**
+         * 中継端末を経由するパケットを生成します。
+         * @param routeId   経路番号
+         * @param packet    符号化済みパケット
+         * @return  パケット
+         */
+        @NonNull
+        public static QuizPacket routed(int routeId, @NonNull byte[] packet) {
+            QuizPacket routed = new QuizPacket(PacketType.Routed);
+            routed.mRouteId = routeId;
+            routed.mInnerPacket = packet;
+            return routed;
+        }
+
+        /**
+         * まとめ送りパケットを生成します。
+         * @param packets   符号化済みパケット。まとめ送りパケット自体は含められません。
+         * @return  パケット
+         */
+        @NonNull
+        public static QuizPacket batch(@NonNull List<byte[]> packets) {
+            QuizPacket packet = new QuizPacket(PacketType.Batch);
+            packet.mPackets = packets;
             return packet;
         }
 
+        @NonNull
+        public static QuizPacket keyframeRequest() {
+            return new QuizPacket(PacketType.KeyframeRequest);
+        }
+
         @NonNull
         public static QuizPacket playerDisconnected(int playerNum) {
             QuizPacket packet = new QuizPacket(PacketType.PlayerDisconnected);
-            packet.mPayloads.put(PayloadKey.PlayerNum, playerNum);
+            packet.mPlayerNum = playerNum;
             return packet;
         }
 
+        /**
+         * 結果パケットを生成します。
+         * @param roster    参加者表
+         * @param ranking   順位順に並べたプレイヤー。参加者表に含まれている必要があります。
+         * @return  パケット
+         */
         @NonNull
-        public static QuizPacket result(@NonNull ArrayList<QuizPlayer> playerList) {
+        public static QuizPacket result(
+                @NonNull List<QuizPlayer> roster, @NonNull ArrayList<QuizPlayer> ranking) {
             QuizPacket packet = new QuizPacket(PacketType.Result);
-            packet.mPayloads.put(PayloadKey.PlayerList, playerList);
+            packet.mPlayerList = ranking;
+            packet.mRoster = roster;
             return packet;
         }
     }
 
+    /**
+     * 符号化後のバイト数を返します。
+     * @return  符号化後のバイト数
+     */
+    public int getEncodedSize() {
+        switch (mType) {
+            case PlayerId:
+                return QuizPacketEncoder.sizeOfPlayerId(mPlayerId);
+            case Resume:
+                return QuizPacketEncoder.sizeOfResume(mCachedCount);
+            case Join:
+            case Leave:
+                return QuizPacketEncoder.sizeOfRouteControl(mRouteId);
+            case CatchUp:
+                return QuizPacketEncoder.sizeOfCatchUp(
+                        mSequence, mQuestionIndex, mAnsweredMask, mPoints);
+            case PlayerChanged:
+                return QuizPacketEncoder.sizeOfPlayerChanged(mPlayerList);
+            case PlayersState:
+            case PlayersStateDelta:
+                return QuizPacketEncoder.sizeOfPlayerPoints(mSequence, mRoster, mPlayerList);
+            case Result:
+                return QuizPacketEncoder.sizeOfPlayerPoints(mRoster, mPlayerList);
+            case KeyframeRequest:
+                return QuizPacketEncoder.sizeOfKeyframeRequest();
+            case Question:
+                return QuizPacketEncoder.sizeOfQuestion(mQuestionText);
+            case QuestionIndex:
+                return QuizPacketEncoder.sizeOfQuestionIndex(mQuestionIndex);
+            case CompressedQuestion:
+                return QuizPacketEncoder.sizeOfCompressedQuestion(mRawLength, mCompressed.length);
+            case QuestionBankEntry:
+                return QuizPacketEncoder.sizeOfQuestionBankEntry(mQuestionIndex, mInnerPacket);
+            case Routed:
+                return QuizPacketEncoder.sizeOfRouted(mRouteId, mInnerPacket);
+            case Batch:
+                return QuizPacketEncoder.sizeOfBatch(mPackets);
+            case Answer:
+            case CorrectAnswer:
+                return QuizPacketEncoder.sizeOfChoice();
+            case PlayerAnswered:
+            case PlayerDisconnected:
+                return QuizPacketEncoder.sizeOfPlayerNum();
+            default:
+                throw new IllegalStateException("Bad type.");
+        }
+    }
+
+    /**
+     * 引数のバッファの現在位置へ符号化したパケットを書き込みます。
+     * @param dst   書き込み先バッファ
+     * @return  書き込んだバイト数
+     */
+    public int encodeTo(@NonNull ByteBuffer dst) {
+        switch (mType) {
+            case PlayerId:
+                return QuizPacketEncoder.playerId(
+                        dst, mPlayerId, mResumeToken, mRoomId, isRelayable);
+            case Resume:
+                return QuizPacketEncoder.resume(dst, mResumeToken, mCachedCount);
+            case Join:
+                return QuizPacketEncoder.join(dst, mRouteId);
+            case Leave:
+                return QuizPacketEncoder.leave(dst, mRouteId);
+            case CatchUp:
+                return QuizPacketEncoder.catchUp(
+                        dst, mSequence, mQuestionIndex, mAnsweredMask, mPoints);
+            case PlayerChanged:
+                return QuizPacketEncoder.playerChanged(dst, mPlayerList);
+            case Question:
+                return QuizPacketEncoder.question(dst, mQuestionText);
+            case CompressedQuestion:
+                return QuizPacketEncoder.compressedQuestion(
+                        dst, mRawLength, mCompressed, 0, mCompressed.length);
+            case QuestionBankEntry:
+                return QuizPacketEncoder.questionBankEntry(dst, mQuestionIndex, mInnerPacket);
+            case Routed:
+                return QuizPacketEncoder.routed(dst, mRouteId, mInnerPacket);
+            case Batch:
+                return QuizPacketEncoder.batch(dst, mPackets);
+            case QuestionIndex:
+                return QuizPacketEncoder.questionIndex(dst, mQuestionIndex);
+            case Answer:
+                return QuizPacketEncoder.answer(dst, mChoice);
+            case CorrectAnswer:
+                return QuizPacketEncoder.correctAnswer(dst, mChoice);
+            case PlayerAnswered:
+                return QuizPacketEncoder.playerAnswered(dst, mPlayerNum);
+            case PlayerDisconnected:
+                return QuizPacketEncoder.playerDisconnected(dst, mPlayerNum);
+            case PlayersState:
+                return QuizPacketEncoder.playersState(dst, mSequence, mRoster, mPlayerList);
+            case PlayersStateDelta:
+                return QuizPacketEncoder.playersStateDelta(dst, mSequence, mRoster, mPlayerList);
+            case KeyframeRequest:
+                return QuizPacketEncoder.keyframeRequest(dst);
+            case Result:
+                return QuizPacketEncoder.result(dst, mRoster, mPlayerList);
+            default:
+                throw new IllegalStateException("Bad type.");
+        }
+    }
+
     @NonNull
     public byte[] getBytes() {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        stream.write(mType.getByte());
-        try {
-            switch (mType) {
-                case PlayerId: {
-                    String id = (String) mPayloads.get(PayloadKey.PlayerId);
-                    stream.write(id.getBytes());
-                    break;
-                }
-                case PlayerChanged: {
-                    ArrayList playerList = (ArrayList) mPayloads.get(PayloadKey.PlayerList);
-                    for (Object player : playerList) {
-                        QuizPlayer quizPlayer = (QuizPlayer) player;
-                        stream.write(quizPlayer.getId().getBytes());
-                    }
-                    break;
-                }
-                case Question: {
-                    String questionText = (String) mPayloads.get(PayloadKey.QuestionText);
-                    stream.write(questionText.getBytes());
-                    break;
-                }
-                case Answer:
-                case CorrectAnswer: {
-                    AnswerChoice choice = (AnswerChoice) mPayloads.get(PayloadKey.Choice);
-                    stream.write(choice.getByte());
-                    break;
-                }
-                case PlayerAnswered:
-                case PlayerDisconnected: {
-                    stream.write((int) mPayloads.get(PayloadKey.PlayerNum));
-                    break;
-                }
-                case PlayersState:
-                case Result: {
-                    ArrayList playerList = (ArrayList) mPayloads.get(PayloadKey.PlayerList);
-                    for (Object player : playerList) {
-                        QuizPlayer quizPlayer = (QuizPlayer) player;
-                        stream.write(quizPlayer.getId().getBytes());
-                        stream.write((byte) quizPlayer.getCorrectAnswerPoint());
-                    }
-                    break;
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return stream.toByteArray();
+        byte[] bytes = new byte[getEncodedSize()];
+        encodeTo(ByteBuffer.wrap(bytes));
+        return bytes;
     }
 
     @NonNull
@@ -221,13 +561,102 @@ public class QuizPacket {
         return mType;
     }
 
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public int getQuestionIndex() {
+        return mQuestionIndex;
+    }
+
+    public long getResumeToken() {
+        return mResumeToken;
+    }
+
+    public int getCachedCount() {
+        return mCachedCount;
+    }
+
+    public long getRoomId() {
+        return mRoomId;
+    }
+
+    public boolean isRelayable() {
+        return isRelayable;
+    }
+
+    public int getRouteId() {
+        return mRouteId;
+    }
+
+    public int getAnsweredMask() {
+        return mAnsweredMask;
+    }
+
+    @Nullable
+    public int[] getPoints() {
+        return mPoints;
+    }
+
+    public int getRawLength() {
+        return mRawLength;
+    }
+
+    @Nullable
+    public byte[] getCompressed() {
+        return mCompressed;
+    }
+
+    /**
+     * 問題集(QuestionBankEntry)・中継(Routed)に埋め込まれたパケットを返します。
+     * @return  符号化済みパケット
+     */
+    @Nullable
+    public byte[] getInnerPacket() {
+        return mInnerPacket;
+    }
+
+    @Nullable
+    public List<byte[]> getPackets() {
+        return mPackets;
+    }
+
+    @Nullable
+    public ArrayList<QuizPlayer> getPlayerList() {
+        return mPlayerList;
+    }
+
     @NonNull
     public HashMap getPayloads() {
-        return mPayloads;
+        HashMap<PayloadKey, Object> payloads = new HashMap<>();
+        for (PayloadKey key : PayloadKey.values()) {
+            Object payload = getPayload(key);
+            if (null != payload) {
+                payloads.put(key, payload);
+            }
+        }
+        return payloads;
     }
 
     @Nullable
     public Object getPayload(PayloadKey key) {
-        return mPayloads.get(key);
+        switch (key) {
+            case PlayerId:
+                return mPlayerId;
+            case PlayerNum:
+                return ((PacketType.PlayerAnswered == mType)
+                        || (PacketType.PlayerDisconnected == mType)) ? mPlayerNum : null;
+            case QuestionText:
+                return mQuestionText;
+            case Choice:
+                return mChoice;
+            case PlayerList:
+                return mPlayerList;
+            case ResumeToken:
+                return ((PacketType.PlayerId == mType)
+                        || (PacketType.Resume == mType)) ? mResumeToken : null;
+            default:
+                return null;
+        }
     }
 }
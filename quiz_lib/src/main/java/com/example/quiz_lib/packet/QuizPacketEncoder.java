@@ -0,0 +1,468 @@
+package com.example.quiz_lib.packet;
+
+import android.support.annotation.NonNull;
+
+import com.example.quiz_lib.Question.AnswerChoice;
+import com.example.quiz_lib.QuizPlayer;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 呼び出し元が用意した{@link ByteBuffer}へパケットを直接書き込むエンコーダです。<br>
+ * 書き込みはバッファの現在位置から行い、書き込んだバイト数を返します。中間オブジェクトは生成しません。
+ */
+public final class QuizPacketEncoder {
+    static final int SIZE_OF_TYPE = 1;
+    static final int SIZE_OF_RESUME_TOKEN = 8;
+    static final int SIZE_OF_ROOM_ID = 8;
+    static final int SIZE_OF_RELAYABLE = 1;
+
+    private QuizPacketEncoder() {
+    }
+
+    public static int sizeOfPlayerId(@NonNull String playerId) {
+        return SIZE_OF_TYPE + SIZE_OF_RESUME_TOKEN + SIZE_OF_ROOM_ID + SIZE_OF_RELAYABLE
+                + Utf8.encodedLength(playerId);
+    }
+
+    public static int sizeOfResume(int cachedCount) {
+        return SIZE_OF_TYPE + SIZE_OF_RESUME_TOKEN + Varint.sizeOf(cachedCount);
+    }
+
+    /**
+     * 再接続したゲストへの途中経過(CatchUp)のバイト数を返します。
+     * @param sequence      得点状況の通番
+     * @param questionIndex 回答受付中の問題番号。受付中で無ければ-1
+     * @param answeredMask  回答済みのスロットのビット
+     * @param points        スロット順の得点
+     * @return  バイト数
+     */
+    public static int sizeOfCatchUp(
+            int sequence, int questionIndex, int answeredMask, @NonNull int[] points) {
+        int size = SIZE_OF_TYPE + Varint.sizeOf(sequence) + Varint.sizeOf(questionIndex + 1)
+                + Varint.sizeOf(answeredMask) + Varint.sizeOf(points.length);
+        for (int point : points) {
+            size += Varint.sizeOf(point);
+        }
+        return size;
+    }
+
+    public static int sizeOfPlayerChanged(@NonNull List<QuizPlayer> roster) {
+        int size = SIZE_OF_TYPE + Varint.sizeOf(roster.size());
+        for (int cnt = 0; roster.size() > cnt; cnt++) {
+            int idLen = Utf8.encodedLength(roster.get(cnt).getId());
+            size += Varint.sizeOf(idLen) + idLen;
+        }
+        return size;
+    }
+
+    public static int sizeOfPlayerPoints(
+            @NonNull List<QuizPlayer> roster, @NonNull List<QuizPlayer> playerList) {
+        return sizeOfPlayerPoints(-1, roster, playerList);
+    }
+
+    /**
+     * 通番付きの得点系パケット(PlayersState/PlayersStateDelta)のバイト数を返します。
+     * @param sequence      通番
+     * @param roster        参加者表
+     * @param playerList    送るプレイヤー
+     * @return  バイト数
+     */
+    public static int sizeOfPlayerPoints(
+            int sequence,
+            @NonNull List<QuizPlayer> roster,
+            @NonNull List<QuizPlayer> playerList) {
+        int size = SIZE_OF_TYPE + Varint.sizeOf(playerList.size());
+        if (0 <= sequence) {
+            size += Varint.sizeOf(sequence);
+        }
+        for (int cnt = 0; playerList.size() > cnt; cnt++) {
+            QuizPlayer player = playerList.get(cnt);
+            size += Varint.sizeOf(slotOf(roster, player))
+                    + Varint.sizeOf(player.getCorrectAnswerPoint());
+        }
+        return size;
+    }
+
+    public static int sizeOfQuestion(@NonNull CharSequence questionText) {
+        return SIZE_OF_TYPE + Utf8.encodedLength(questionText);
+    }
+
+    public static int sizeOfCompressedQuestion(int rawLength, int compressedLength) {
+        return SIZE_OF_TYPE + Varint.sizeOf(rawLength) + compressedLength;
+    }
+
+    /**
+     * 問題集の1問分(QuestionBankEntry)のバイト数を返します。
+     * @param index     問題番号
+     * @param question  符号化済みのQuestion/CompressedQuestionパケット
+     * @return  バイト数
+     */
+    public static int sizeOfQuestionBankEntry(int index, @NonNull byte[] question) {
+        return SIZE_OF_TYPE + Varint.sizeOf(index) + question.length;
+    }
+
+    public static int sizeOfQuestionIndex(int index) {
+        return SIZE_OF_TYPE + Varint.sizeOf(index);
+    }
+
+    public static int sizeOfChoice() {
+        return SIZE_OF_TYPE + 1;
+    }
+
+    public static int sizeOfPlayerNum() {
+        return SIZE_OF_TYPE + 1;
+    }
+
+    public static int sizeOfKeyframeRequest() {
+        return SIZE_OF_TYPE;
+    }
+
+    public static int sizeOfRouteControl(int routeId) {
+        return SIZE_OF_TYPE + Varint.sizeOf(routeId);
+    }
+
+    /**
+     * 中継端末を経由するパケット(Routed)のバイト数を返します。
+     * @param routeId   中継端末が下流のゲストに振った経路番号
+     * @param packet    符号化済みパケット
+     * @return  バイト数
+     */
+    public static int sizeOfRouted(int routeId, @NonNull byte[] packet) {
+        return SIZE_OF_TYPE + Varint.sizeOf(routeId) + packet.length;
+    }
+
+    public static int sizeOfBatch(@NonNull List<byte[]> packets) {
+        int size = SIZE_OF_TYPE + Varint.sizeOf(packets.size());
+        for (int cnt = 0; packets.size() > cnt; cnt++) {
+            int length = packets.get(cnt).length;
+            size += Varint.sizeOf(length) + length;
+        }
+        return size;
+    }
+
+    /**
+     * プレイヤーIDと、切断後に同じプレイヤーとして復帰するための再開トークンと、
+     * 部屋の識別子と、中継の可否を書き込みます。
+     * @param dst           書き込み先バッファ
+     * @param playerId      プレイヤーID
+     * @param resumeToken   再開トークン
+     * @param roomId        ホストが部屋毎に生成した識別子
+     * @param isRelayable   true: 下流のゲストを中継してよい
+     * @return  書き込んだバイト数
+     */
+    public static int playerId(@NonNull ByteBuffer dst,
+            @NonNull String playerId, long resumeToken, long roomId, boolean isRelayable) {
+        int start = dst.position();
+        dst.put(PacketType.PlayerId.getByte());
+        dst.putLong(resumeToken);
+        dst.putLong(roomId);
+        dst.put((byte) (isRelayable ? 1 : 0));
+        Utf8.encode(playerId, dst);
+        return dst.position() - start;
+    }
+
+    /**
+     * 再接続したゲストが、参加時に受け取った再開トークンと受信済みの問題集の問題数を書き込みます。
+     * @param dst           書き込み先バッファ
+     * @param resumeToken   再開トークン
+     * @param cachedCount   受信済みの問題集の問題数
+     * @return  書き込んだバイト数
+     */
+    public static int resume(@NonNull ByteBuffer dst, long resumeToken, int cachedCount) {
+        int start = dst.position();
+        dst.put(PacketType.Resume.getByte());
+        dst.putLong(resumeToken);
+        Varint.write(dst, cachedCount);
+        return dst.position() - start;
+    }
+
+    /**
+     * 再接続したゲストへ、出題中の問題番号・回答済みのスロット・全員の得点をまとめて書き込みます。
+     * 得点はスロット順に並べ、スロット番号は省きます。
+     * @param dst           書き込み先バッファ
+     * @param sequence      得点状況の通番
+     * @param questionIndex 回答受付中の問題番号。受付中で無ければ-1
+     * @param answeredMask  回答済みのスロットのビット
+     * @param points        スロット順の得点
+     * @return  書き込んだバイト数
+     */
+    public static int catchUp(
+            @NonNull ByteBuffer dst,
+            int sequence,
+            int questionIndex,
+            int answeredMask,
+            @NonNull int[] points) {
+        int start = dst.position();
+        dst.put(PacketType.CatchUp.getByte());
+        Varint.write(dst, sequence);
+        Varint.write(dst, questionIndex + 1);
+        Varint.write(dst, answeredMask);
+        Varint.write(dst, points.length);
+        for (int point : points) {
+            Varint.write(dst, point);
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * 参加者表を書き込みます。以降の得点系パケットは表中の位置(スロット番号)でプレイヤーを表します。
+     * @param dst       書き込み先バッファ
+     * @param roster    参加者表
+     * @return  書き込んだバイト数
+     */
+    public static int playerChanged(@NonNull ByteBuffer dst, @NonNull List<QuizPlayer> roster) {
+        int start = dst.position();
+        dst.put(PacketType.PlayerChanged.getByte());
+        Varint.write(dst, roster.size());
+        for (int cnt = 0; roster.size() > cnt; cnt++) {
+            String id = roster.get(cnt).getId();
+            Varint.write(dst, Utf8.encodedLength(id));
+            Utf8.encode(id, dst);
+        }
+        return dst.position() - start;
+    }
+
+    public static int question(@NonNull ByteBuffer dst, @NonNull CharSequence questionText) {
+        int start = dst.position();
+        dst.put(PacketType.Question.getByte());
+        Utf8.encode(questionText, dst);
+        return dst.position() - start;
+    }
+
+    /**
+     * 圧縮済みの問題文を書き込みます。圧縮は{@link QuestionCompressor}で行います。
+     * @param dst           書き込み先バッファ
+     * @param rawLength     圧縮前のUTF-8のバイト数
+     * @param compressed    圧縮済みデータ
+     * @param offset        圧縮済みデータの開始位置
+     * @param length        圧縮済みデータのバイト数
+     * @return  書き込んだバイト数
+     */
+    public static int compressedQuestion(
+            @NonNull ByteBuffer dst,
+            int rawLength,
+            @NonNull byte[] compressed,
+            int offset,
+            int length) {
+        int start = dst.position();
+        dst.put(PacketType.CompressedQuestion.getByte());
+        Varint.write(dst, rawLength);
+        dst.put(compressed, offset, length);
+        return dst.position() - start;
+    }
+
+    /**
+     * 事前配信する問題集の1問分を書き込みます。問題文はQuestion/CompressedQuestionパケットをそのまま埋め込みます。
+     * @param dst       書き込み先バッファ
+     * @param index     問題番号
+     * @param question  符号化済みのQuestion/CompressedQuestionパケット
+     * @return  書き込んだバイト数
+     */
+    public static int questionBankEntry(
+            @NonNull ByteBuffer dst, int index, @NonNull byte[] question) {
+        if ((PacketType.Question.getByte() != question[0])
+                && (PacketType.CompressedQuestion.getByte() != question[0])) {
+            throw new IllegalArgumentException("Not a question");
+        }
+        int start = dst.position();
+        dst.put(PacketType.QuestionBankEntry.getByte());
+        Varint.write(dst, index);
+        dst.put(question);
+        return dst.position() - start;
+    }
+
+    /**
+     * 事前配信済みの問題集から出題する問題番号を書き込みます。
+     * @param dst   書き込み先バッファ
+     * @param index 問題番号
+     * @return  書き込んだバイト数
+     */
+    public static int questionIndex(@NonNull ByteBuffer dst, int index) {
+        int start = dst.position();
+        dst.put(PacketType.QuestionIndex.getByte());
+        Varint.write(dst, index);
+        return dst.position() - start;
+    }
+
+    public static int answer(@NonNull ByteBuffer dst, @NonNull AnswerChoice choice) {
+        return choice(dst, PacketType.Answer, choice);
+    }
+
+    public static int correctAnswer(@NonNull ByteBuffer dst, @NonNull AnswerChoice choice) {
+        return choice(dst, PacketType.CorrectAnswer, choice);
+    }
+
+    public static int playerAnswered(@NonNull ByteBuffer dst, int playerNum) {
+        return playerNum(dst, PacketType.PlayerAnswered, playerNum);
+    }
+
+    public static int playerDisconnected(@NonNull ByteBuffer dst, int playerNum) {
+        return playerNum(dst, PacketType.PlayerDisconnected, playerNum);
+    }
+
+    /**
+     * 全員の得点(キーフレーム)を書き込みます。
+     * @param dst       書き込み先バッファ
+     * @param sequence  得点状況の通番
+     * @param roster    参加者表
+     * @return  書き込んだバイト数
+     */
+    public static int playersState(
+            @NonNull ByteBuffer dst, int sequence, @NonNull List<QuizPlayer> roster) {
+        return playerPoints(dst, PacketType.PlayersState, sequence, roster, roster);
+    }
+
+    /**
+     * 全員の得点(キーフレーム)を、参加者表とは別に持つ得点で書き込みます。
+     * @param dst       書き込み先バッファ
+     * @param sequence  得点状況の通番
+     * @param roster    参加者表
+     * @param players   参加者表と同じIDのプレイヤー。得点はこちらを書き込みます。
+     * @return  書き込んだバイト数
+     */
+    public static int playersState(
+            @NonNull ByteBuffer dst,
+            int sequence,
+            @NonNull List<QuizPlayer> roster,
+            @NonNull List<QuizPlayer> players) {
+        return playerPoints(dst, PacketType.PlayersState, sequence, roster, players);
+    }
+
+    /**
+     * 前回の通番から得点が変わったプレイヤーのみを書き込みます。
+     * @param dst       書き込み先バッファ
+     * @param sequence  得点状況の通番
+     * @param roster    参加者表
+     * @param changed   得点が変わったプレイヤー
+     * @return  書き込んだバイト数
+     */
+    public static int playersStateDelta(
+            @NonNull ByteBuffer dst,
+            int sequence,
+            @NonNull List<QuizPlayer> roster,
+            @NonNull List<QuizPlayer> changed) {
+        return playerPoints(dst, PacketType.PlayersStateDelta, sequence, roster, changed);
+    }
+
+    public static int keyframeRequest(@NonNull ByteBuffer dst) {
+        dst.put(PacketType.KeyframeRequest.getByte());
+        return sizeOfKeyframeRequest();
+    }
+
+    public static int result(
+            @NonNull ByteBuffer dst,
+            @NonNull List<QuizPlayer> roster,
+            @NonNull List<QuizPlayer> ranking) {
+        return playerPoints(dst, PacketType.Result, -1, roster, ranking);
+    }
+
+    /**
+     * 中継端末に下流のゲストが接続したことをホストへ伝えるパケットを書き込みます。
+     * @param dst       書き込み先バッファ
+     * @param routeId   中継端末が下流のゲストに振った経路番号
+     * @return  書き込んだバイト数
+     */
+    public static int join(@NonNull ByteBuffer dst, int routeId) {
+        return routeControl(dst, PacketType.Join, routeId);
+    }
+
+    /**
+     * 下流のゲストの切断をホストへ伝える、またはホストから中継端末へ切断を求めるパケットを書き込みます。
+     * @param dst       書き込み先バッファ
+     * @param routeId   経路番号
+     * @return  書き込んだバイト数
+     */
+    public static int leave(@NonNull ByteBuffer dst, int routeId) {
+        return routeControl(dst, PacketType.Leave, routeId);
+    }
+
+    /**
+     * 中継端末と下流のゲストの間でやり取りするパケットに経路番号を付けて書き込みます。<br>
+     * ホストから中継端末へは宛先、中継端末からホストへは送信元の経路番号を表します。
+     * @param dst       書き込み先バッファ
+     * @param routeId   経路番号
+     * @param packet    符号化済みパケット
+     * @return  書き込んだバイト数
+     */
+    public static int routed(@NonNull ByteBuffer dst, int routeId, @NonNull byte[] packet) {
+        int start = dst.position();
+        dst.put(PacketType.Routed.getByte());
+        Varint.write(dst, routeId);
+        dst.put(packet);
+        return dst.position() - start;
+    }
+
+    /**
+     * 符号化済みの複数パケットを1つにまとめて書き込みます。
+     * @param dst       書き込み先バッファ
+     * @param packets   符号化済みパケット。まとめ送りパケット自体は含められません。
+     * @return  書き込んだバイト数
+     */
+    public static int batch(@NonNull ByteBuffer dst, @NonNull List<byte[]> packets) {
+        int start = dst.position();
+        dst.put(PacketType.Batch.getByte());
+        Varint.write(dst, packets.size());
+        for (int cnt = 0; packets.size() > cnt; cnt++) {
+            byte[] packet = packets.get(cnt);
+            if (PacketType.Batch.getByte() == packet[0]) {
+                throw new IllegalArgumentException("Nested batch");
+            }
+            Varint.write(dst, packet.length);
+            dst.put(packet);
+        }
+        return dst.position() - start;
+    }
+
+    private static int routeControl(@NonNull ByteBuffer dst, @NonNull PacketType type, int routeId) {
+        int start = dst.position();
+        dst.put(type.getByte());
+        Varint.write(dst, routeId);
+        return dst.position() - start;
+    }
+
+    private static int choice(
+            @NonNull ByteBuffer dst, @NonNull PacketType type, @NonNull AnswerChoice choice) {
+        dst.put(type.getByte());
+        dst.put(choice.getByte());
+        return sizeOfChoice();
+    }
+
+    private static int playerNum(@NonNull ByteBuffer dst, @NonNull PacketType type, int playerNum) {
+        dst.put(type.getByte());
+        dst.put((byte) playerNum);
+        return sizeOfPlayerNum();
+    }
+
+    private static int playerPoints(
+            @NonNull ByteBuffer dst,
+            @NonNull PacketType type,
+            int sequence,
+            @NonNull List<QuizPlayer> roster,
+            @NonNull List<QuizPlayer> playerList) {
+        int start = dst.position();
+        dst.put(type.getByte());
+        if (0 <= sequence) {
+            Varint.write(dst, sequence);
+        }
+        Varint.write(dst, playerList.size());
+        for (int cnt = 0; playerList.size() > cnt; cnt++) {
+            QuizPlayer player = playerList.get(cnt);
+            Varint.write(dst, slotOf(roster, player));
+            Varint.write(dst, player.getCorrectAnswerPoint());
+        }
+        return dst.position() - start;
+    }
+
+    // 解析したパケットのプレイヤーは参加者表と別のインスタンスのため、IDで照合する
+    private static int slotOf(@NonNull List<QuizPlayer> roster, @NonNull QuizPlayer player)
+            throws IllegalArgumentException {
+        for (int slot = 0; roster.size() > slot; slot++) {
+            if (roster.get(slot).getId().equals(player.getId())) {
+                return slot;
+            }
+        }
+        throw new IllegalArgumentException("Player is not in roster: " + player.getId());
+    }
+}
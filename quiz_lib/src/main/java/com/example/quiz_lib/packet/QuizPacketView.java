@@ -0,0 +1,405 @@
+package com.example.quiz_lib.packet;
+
+import android.support.annotation.NonNull;
+
+import com.example.quiz_lib.Question.AnswerChoice;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 受信データを複製せずに読み出すためのフライウェイトです。<br>
+ * {@link #wrap(ByteBuffer)}でバッファの現在位置から上限までを1パケットとして参照し、
+ * 型付きのアクセサで各フィールドを読み出します。インスタンスは使い回すことを想定しています。
+ */
+public final class QuizPacketView {
+    private static final int TYPE_OFFSET = 0;
+    private static final int PAYLOAD_OFFSET = TYPE_OFFSET + QuizPacketEncoder.SIZE_OF_TYPE;
+
+    private ByteBuffer mBuffer;
+    private int mOffset;
+    private int mLength;
+    private PacketType mType;
+    // wrap(byte[])で包んだ配列。受信データの配列はプールから使い回されるため、同じ配列なら包み直さない
+    private ByteBuffer mArrayBuffer;
+    // 可変長の並び(参加者表・得点・まとめ送りの中身)を先頭から順に読む際、読み飛ばしを繰り返さないよう
+    // 直前に求めた要素の位置を覚えておく。-1は未計算
+    private int mCursorIndex;
+    private int mCursorOffset = -1;
+
+    /**
+     * 配列全体を1パケットとして参照します。同じ配列を続けて参照する場合はバッファを生成しません。
+     * @param data  受信データ
+     * @return  このインスタンス
+     * @throws IllegalArgumentException 種別が不正な場合に投げられます。
+     */
+    @NonNull
+    public QuizPacketView wrap(@NonNull byte[] data) throws IllegalArgumentException {
+        if ((null == mArrayBuffer) || (mArrayBuffer.array() != data)) {
+            mArrayBuffer = ByteBuffer.wrap(data);
+        }
+        return wrap(mArrayBuffer, 0, data.length);
+    }
+
+    /**
+     * 参照するバッファを差し替えます。バッファの位置は変更しません。
+     * @param buffer    参照するバッファ
+     * @return  このインスタンス
+     * @throws IllegalArgumentException 種別が不正な場合に投げられます。
+     */
+    @NonNull
+    public QuizPacketView wrap(@NonNull ByteBuffer buffer) throws IllegalArgumentException {
+        return wrap(buffer, buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * バッファの絶対位置offsetからlengthバイトを1パケットとして参照します。バッファの位置は変更しません。
+     * @param buffer    参照するバッファ
+     * @param offset    パケット先頭の絶対位置
+     * @param length    パケットのバイト数
+     * @return  このインスタンス
+     * @throws IllegalArgumentException 種別が不正な場合に投げられます。
+     */
+    @NonNull
+    public QuizPacketView wrap(@NonNull ByteBuffer buffer, int offset, int length)
+            throws IllegalArgumentException {
+        if ((QuizPacketEncoder.SIZE_OF_TYPE > length) || (buffer.limit() < (offset + length))) {
+            throw new IllegalArgumentException("Invalid packet length");
+        }
+        mBuffer = buffer;
+        mOffset = offset;
+        mLength = length;
+        mType = PacketType.getType(buffer.get(mOffset + TYPE_OFFSET));
+        mCursorOffset = -1;
+        return this;
+    }
+
+    @NonNull
+    public PacketType getType() {
+        return mType;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    @NonNull
+    public AnswerChoice getChoice() {
+        return AnswerChoice.getChoice(getPayloadByte(0));
+    }
+
+    public int getPlayerNum() {
+        return getPayloadByte(0);
+    }
+
+    @NonNull
+    public String getPlayerId() {
+        int offset = payloadOffset() + QuizPacketEncoder.SIZE_OF_RESUME_TOKEN
+                + QuizPacketEncoder.SIZE_OF_ROOM_ID + QuizPacketEncoder.SIZE_OF_RELAYABLE;
+        if (limit() < offset) {
+            throw new IllegalArgumentException("Truncated room id");
+        }
+        return Utf8.decode(mBuffer, offset, limit() - offset);
+    }
+
+    /**
+     * プレイヤーID(PlayerId)の中継の可否を返します。
+     * @return  true: ホストに直接接続しており、下流のゲストを中継してよい
+     */
+    public boolean isRelayable() {
+        return 0 != getPayloadByte(
+                QuizPacketEncoder.SIZE_OF_RESUME_TOKEN + QuizPacketEncoder.SIZE_OF_ROOM_ID);
+    }
+
+    /**
+     * プレイヤーID(PlayerId)の部屋の識別子を返します。
+     * @return  ホストが部屋毎に生成した識別子
+     */
+    public long getRoomId() {
+        int offset = payloadOffset() + QuizPacketEncoder.SIZE_OF_RESUME_TOKEN;
+        if (limit() < (offset + QuizPacketEncoder.SIZE_OF_ROOM_ID)) {
+            throw new IllegalArgumentException("Truncated room id");
+        }
+        return mBuffer.getLong(offset);
+    }
+
+    /**
+     * プレイヤーID(PlayerId)・再開要求(Resume)の再開トークンを返します。
+     * @return  再開トークン
+     */
+    public long getResumeToken() {
+        if (limit() < (payloadOffset() + QuizPacketEncoder.SIZE_OF_RESUME_TOKEN)) {
+            throw new IllegalArgumentException("Truncated resume token");
+        }
+        return mBuffer.getLong(payloadOffset());
+    }
+
+    /**
+     * 再開要求(Resume)の、ゲストが受信済みの問題集の問題数を返します。
+     * @return  問題数
+     */
+    public int getCachedCount() {
+        return Varint.read(
+                mBuffer, payloadOffset() + QuizPacketEncoder.SIZE_OF_RESUME_TOKEN, limit());
+    }
+
+    /**
+     * 途中経過(CatchUp)の回答受付中の問題番号を返します。
+     * @return  問題番号。受付中で無ければ-1
+     */
+    public int getCurrentQuestionIndex() {
+        return Varint.read(mBuffer, catchUpOffset(1), limit()) - 1;
+    }
+
+    /**
+     * 途中経過(CatchUp)の回答済みのスロットを返します。
+     * @return  スロット番号の位置のビットが立っていれば回答済み
+     */
+    public int getAnsweredMask() {
+        return Varint.read(mBuffer, catchUpOffset(2), limit());
+    }
+
+    /**
+     * 途中経過(CatchUp)の得点を返します。
+     * @param slot  参加者表中の位置
+     * @return  得点
+     */
+    public int getPoint(int slot) {
+        if (PacketType.CatchUp != mType) {
+            throw new IllegalStateException("Not a catch up: " + mType);
+        }
+        return Varint.read(mBuffer, entryOffset(slot), limit());
+    }
+
+    /**
+     * 得点状況(PlayersState/PlayersStateDelta/CatchUp)の通番を返します。
+     * @return  通番
+     */
+    public int getSequence() {
+        if (!hasSequence()) {
+            throw new IllegalStateException("No sequence: " + mType);
+        }
+        return Varint.read(mBuffer, payloadOffset(), limit());
+    }
+
+    /**
+     * 参加者表(PlayerChanged)・得点(PlayersState/PlayersStateDelta/Result/CatchUp)の件数を返します。
+     * @return  件数
+     */
+    public int getPlayerCount() {
+        return Varint.read(mBuffer, countOffset(), limit());
+    }
+
+    /**
+     * 参加者表(PlayerChanged)のindex番目のプレイヤーIDを返します。
+     * @param index 参加者表中の位置(スロット番号)
+     * @return  プレイヤーID
+     */
+    @NonNull
+    public String getPlayerId(int index) {
+        int offset = entryOffset(index);
+        int idLen = Varint.read(mBuffer, offset, limit());
+        offset += Varint.sizeOf(idLen);
+        if (limit() < (offset + idLen)) {
+            throw new IllegalArgumentException("Truncated player id");
+        }
+        return Utf8.decode(mBuffer, offset, idLen);
+    }
+
+    /**
+     * 得点(PlayersState/PlayersStateDelta/Result)のindex番目のプレイヤーのスロット番号を返します。
+     * @param index 得点の並び順
+     * @return  参加者表中の位置
+     */
+    public int getSlot(int index) {
+        return Varint.read(mBuffer, entryOffset(index), limit());
+    }
+
+    public int getCorrectAnswerPoint(int index) {
+        int offset = entryOffset(index);
+        offset += Varint.sizeOf(Varint.read(mBuffer, offset, limit()));
+        return Varint.read(mBuffer, offset, limit());
+    }
+
+    /**
+     * まとめ送り(Batch)に含まれるパケット数を返します。
+     * @return  パケット数
+     */
+    public int getEntryCount() {
+        if (PacketType.Batch != mType) {
+            throw new IllegalStateException("Not a batch: " + mType);
+        }
+        return Varint.read(mBuffer, payloadOffset(), limit());
+    }
+
+    /**
+     * まとめ送り(Batch)のindex番目のパケットを引数のビューで参照します。
+     * @param index 取り出すパケットの位置
+     * @param entry 参照させるビュー。このインスタンス以外を指定してください。
+     * @return  entry
+     */
+    @NonNull
+    public QuizPacketView wrapEntry(int index, @NonNull QuizPacketView entry) {
+        int offset = entryOffset(index);
+        int length = Varint.read(mBuffer, offset, limit());
+        return entry.wrap(mBuffer, offset + Varint.sizeOf(length), length);
+    }
+
+    @NonNull
+    public String getQuestionText() {
+        return Utf8.decode(mBuffer, payloadOffset(), mLength - QuizPacketEncoder.SIZE_OF_TYPE);
+    }
+
+    /**
+     * 圧縮済み問題文(CompressedQuestion)の展開後のバイト数を返します。
+     * @return  展開後のバイト数
+     */
+    public int getRawLength() {
+        return Varint.read(mBuffer, payloadOffset(), limit());
+    }
+
+    /**
+     * 問題集(QuestionBankEntry)・出題(QuestionIndex)の問題番号を返します。
+     * @return  問題番号
+     */
+    public int getQuestionIndex() {
+        return Varint.read(mBuffer, payloadOffset(), limit());
+    }
+
+    /**
+     * 問題集(QuestionBankEntry)に埋め込まれた問題文パケットを引数のビューで参照します。
+     * @param question  参照させるビュー。このインスタンス以外を指定してください。
+     * @return  question
+     */
+    @NonNull
+    public QuizPacketView wrapQuestion(@NonNull QuizPacketView question) {
+        int offset = payloadOffset() + Varint.sizeOf(getQuestionIndex());
+        return question.wrap(mBuffer, offset, limit() - offset);
+    }
+
+    /**
+     * 経路制御(Join/Leave)・中継(Routed)の経路番号を返します。
+     * @return  経路番号
+     */
+    public int getRouteId() {
+        return Varint.read(mBuffer, payloadOffset(), limit());
+    }
+
+    /**
+     * 中継(Routed)に埋め込まれたパケットを引数のビューで参照します。
+     * @param routed    参照させるビュー。このインスタンス以外を指定してください。
+     * @return  routed
+     */
+    @NonNull
+    public QuizPacketView wrapRouted(@NonNull QuizPacketView routed) {
+        int offset = payloadOffset() + Varint.sizeOf(getRouteId());
+        return routed.wrap(mBuffer, offset, limit() - offset);
+    }
+
+    /**
+     * 参照しているパケットを複製します。受信データを保持したり転送したりする場合に使います。
+     * @return  パケットのバイト列
+     */
+    @NonNull
+    public byte[] toBytes() {
+        byte[] bytes = new byte[mLength];
+        for (int cnt = 0; mLength > cnt; cnt++) {
+            bytes[cnt] = mBuffer.get(mOffset + cnt);
+        }
+        return bytes;
+    }
+
+    @NonNull
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    int getCompressedOffset() {
+        return payloadOffset() + Varint.sizeOf(getRawLength());
+    }
+
+    int getCompressedLength() {
+        return limit() - getCompressedOffset();
+    }
+
+    /**
+     * 圧縮済み問題文(CompressedQuestion)の圧縮済みデータを複製します。
+     * @return  圧縮済みデータ
+     */
+    @NonNull
+    byte[] toCompressedBytes() {
+        int offset = getCompressedOffset();
+        byte[] bytes = new byte[limit() - offset];
+        for (int cnt = 0; bytes.length > cnt; cnt++) {
+            bytes[cnt] = mBuffer.get(offset + cnt);
+        }
+        return bytes;
+    }
+
+    private byte getPayloadByte(int index) {
+        return mBuffer.get(payloadOffset() + index);
+    }
+
+    private int payloadOffset() {
+        return mOffset + PAYLOAD_OFFSET;
+    }
+
+    private int limit() {
+        return mOffset + mLength;
+    }
+
+    private boolean hasSequence() {
+        return (PacketType.PlayersState == mType) || (PacketType.PlayersStateDelta == mType)
+                || (PacketType.CatchUp == mType);
+    }
+
+    private int countOffset() {
+        if (PacketType.CatchUp == mType) {
+            // 通番・問題番号・回答済みの後ろ
+            return catchUpOffset(3);
+        }
+        int offset = payloadOffset();
+        if (hasSequence()) {
+            offset += Varint.sizeOf(Varint.read(mBuffer, offset, limit()));
+        }
+        return offset;
+    }
+
+    // 途中経過(CatchUp)の先頭からindex番目の可変長整数の位置
+    private int catchUpOffset(int index) {
+        if (PacketType.CatchUp != mType) {
+            throw new IllegalStateException("Not a catch up: " + mType);
+        }
+        int offset = payloadOffset();
+        for (int cnt = 0; index > cnt; cnt++) {
+            offset += Varint.sizeOf(Varint.read(mBuffer, offset, limit()));
+        }
+        return offset;
+    }
+
+    // 可変長のため読み飛ばして求める。直前に求めた位置より後ろなら、そこから読み飛ばす。
+    // 先頭から順に読めば、全要素を読んでも並び全体を1度走査するだけで済む
+    private int entryOffset(int index) {
+        int count = (PacketType.Batch == mType) ? getEntryCount() : getPlayerCount();
+        if ((0 > index) || (count <= index)) {
+            throw new IndexOutOfBoundsException("index: " + index + " count: " + count);
+        }
+        if ((0 > mCursorOffset) || (mCursorIndex > index)) {
+            mCursorIndex = 0;
+            mCursorOffset = ((PacketType.Batch == mType) ? payloadOffset() : countOffset())
+                    + Varint.sizeOf(count);
+        }
+        while (index > mCursorIndex) {
+            int value = Varint.read(mBuffer, mCursorOffset, limit());
+            mCursorOffset += Varint.sizeOf(value);
+            if ((PacketType.PlayerChanged == mType) || (PacketType.Batch == mType)) {
+                // IDまたはパケットの長さ分を読み飛ばす
+                mCursorOffset += value;
+            } else if (PacketType.CatchUp != mType) {
+                // スロット番号に続く得点を読み飛ばす。途中経過は得点のみ
+                mCursorOffset += Varint.sizeOf(Varint.read(mBuffer, mCursorOffset, limit()));
+            }
+            mCursorIndex++;
+        }
+        return mCursorOffset;
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.quiz_lib.packet;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * 中間バッファを作らずに文字列をUTF-8で{@link ByteBuffer}へ読み書きするためのユーティリティです。
+ */
+final class Utf8 {
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private Utf8() {
+    }
+
+    static int encodedLength(@NonNull CharSequence text) {
+        int length = 0;
+        int textLen = text.length();
+        for (int index = 0; textLen > index; index++) {
+            char c = text.charAt(index);
+            if (0x80 > c) {
+                length += 1;
+            } else if (0x800 > c) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && ((index + 1) < textLen)
+                    && Character.isLowSurrogate(text.charAt(index + 1))) {
+                length += 4;
+                index++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static void encode(@NonNull CharSequence text, @NonNull ByteBuffer dst) {
+        int textLen = text.length();
+        for (int index = 0; textLen > index; index++) {
+            char c = text.charAt(index);
+            if (0x80 > c) {
+                dst.put((byte) c);
+            } else if (0x800 > c) {
+                dst.put((byte) (0xC0 | (c >> 6)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && ((index + 1) < textLen)
+                    && Character.isLowSurrogate(text.charAt(index + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++index));
+                dst.put((byte) (0xF0 | (codePoint >> 18)));
+                dst.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                dst.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                dst.put((byte) (0xE0 | (c >> 12)));
+                dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    @NonNull
+    static String decode(@NonNull ByteBuffer src, int offset, int length) {
+        if (src.hasArray()) {
+            return new String(src.array(), src.arrayOffset() + offset, length, CHARSET);
+        }
+        byte[] bytes = new byte[length];
+        for (int index = 0; length > index; index++) {
+            bytes[index] = src.get(offset + index);
+        }
+        return new String(bytes, CHARSET);
+    }
+}
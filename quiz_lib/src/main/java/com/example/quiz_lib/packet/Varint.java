@@ -0,0 +1,58 @@
+package com.example.quiz_lib.packet;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 符号なし可変長整数(下位7bitずつ、最上位bitが継続フラグ)の読み書きを行うユーティリティです。<br>
+ * 127以下の値は1バイトで表現されます。
+ */
+final class Varint {
+    private static final int DATA_MASK = 0x7F;
+    private static final int CONTINUE_FLAG = 0x80;
+    private static final int MAX_SIZE = 5;
+
+    private Varint() {
+    }
+
+    static int sizeOf(int value) {
+        int size = 1;
+        while (0 != (value >>>= 7)) {
+            size++;
+        }
+        return size;
+    }
+
+    static void write(@NonNull ByteBuffer dst, int value) {
+        while (0 != (value & ~DATA_MASK)) {
+            dst.put((byte) ((value & DATA_MASK) | CONTINUE_FLAG));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    /**
+     * 絶対位置から値を読み出します。バッファの位置は変更しません。
+     * @param src       読み出し元バッファ
+     * @param offset    読み出し開始位置
+     * @param limit     読み出し可能な上限位置
+     * @return  読み出した値
+     * @throws IllegalArgumentException 値が途中で途切れている場合に投げられます。
+     */
+    static int read(@NonNull ByteBuffer src, int offset, int limit)
+            throws IllegalArgumentException {
+        int value = 0;
+        for (int cnt = 0; MAX_SIZE > cnt; cnt++) {
+            if (limit <= (offset + cnt)) {
+                break;
+            }
+            int b = src.get(offset + cnt);
+            value |= (b & DATA_MASK) << (7 * cnt);
+            if (0 == (b & CONTINUE_FLAG)) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Truncated varint");
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.quiz_lib.packet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+public class QuestionCompressorTest {
+    private static final String QUESTION_TEXT =
+            "神奈川県の県庁所在地は？\n\nA:川崎市\nB:鎌倉市\nC:町田市\nD:横浜市";
+    private static final byte[] DICTIONARY = (QUESTION_TEXT
+            + "日本一高い山は？\n\nA:富士山\nB:北岳\nC:奥穂高岳\nD:間ノ岳")
+            .getBytes(Charset.forName("UTF-8"));
+
+    @Test
+    public void compressWithDictionary() {
+        QuestionCompressor compressor = new QuestionCompressor(DICTIONARY);
+        byte[] data = compressor.encode(QUESTION_TEXT);
+
+        QuizPacketView view = new QuizPacketView().wrap(ByteBuffer.wrap(data));
+        Assert.assertTrue(PacketType.CompressedQuestion == view.getType());
+        Assert.assertTrue(QuizPacketEncoder.sizeOfQuestion(QUESTION_TEXT) > data.length);
+        Assert.assertEquals(QUESTION_TEXT, new QuestionCompressor(DICTIONARY).decode(view));
+    }
+
+    @Test
+    public void shortTextIsNotCompressed() {
+        QuestionCompressor compressor = new QuestionCompressor(DICTIONARY);
+        byte[] data = compressor.encode("日本一高い山は？");
+
+        QuizPacketView view = new QuizPacketView().wrap(ByteBuffer.wrap(data));
+        Assert.assertTrue(PacketType.Question == view.getType());
+        Assert.assertEquals("日本一高い山は？", compressor.decode(view));
+    }
+
+    @Test
+    public void reuseCompressor() {
+        QuestionCompressor compressor = new QuestionCompressor(DICTIONARY);
+        QuizPacketView view = new QuizPacketView();
+        for (int cnt = 0; 3 > cnt; cnt++) {
+            String text = QUESTION_TEXT + cnt;
+            view.wrap(ByteBuffer.wrap(compressor.encode(text)));
+            Assert.assertEquals(text, compressor.decode(view));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notQuestion() {
+        byte[] data = QuizPacket.Creator.keyframeRequest().getBytes();
+        new QuestionCompressor(DICTIONARY).decode(new QuizPacketView().wrap(ByteBuffer.wrap(data)));
+    }
+}
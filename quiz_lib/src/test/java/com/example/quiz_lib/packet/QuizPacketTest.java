@@ -1,18 +1,23 @@
 package com.example.quiz_lib.packet;
 
+import com.example.quiz_lib.Question.AnswerChoice;
 import com.example.quiz_lib.QuizPlayer;
 
 import org.junit.Assert;
 import org.junit.Test;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
 public class QuizPacketTest {
     @Test
     public void playerId() {
-        QuizPacket packet1 = QuizPacket.Creator.playerId("Player0");
+        QuizPacket packet1 = QuizPacket.Creator.playerId(
+                "Player0", 0x0123456789ABCDEFL, 0x1122334455667788L, true);
         byte[] byte1 = packet1.getBytes();
         QuizPacket packet2 = QuizPacket.Creator.parsePacket(byte1);
 
@@ -20,19 +25,22 @@ public class QuizPacketTest {
         String str2 = (String) packet2.getPayload(PayloadKey.PlayerId);
         Assert.assertTrue(str1.equals(str2));
         Assert.assertTrue(packet1.getType() == packet2.getType());
+        Assert.assertEquals(0x0123456789ABCDEFL, packet2.getResumeToken());
+        Assert.assertEquals(0x1122334455667788L, packet2.getRoomId());
+        Assert.assertTrue(packet2.isRelayable());
     }
 
     @Test
     public void playerChanged() {
-        LinkedList<QuizPlayer> playerList = new LinkedList<>();
+        ArrayList<QuizPlayer> playerList = new ArrayList<>();
         playerList.add(new QuizPlayer("Player0"));
         playerList.add(new QuizPlayer("Player1"));
         QuizPacket packet1 = QuizPacket.Creator.playerChanged(playerList);
         byte[] byte1 = packet1.getBytes();
         QuizPacket packet2 = QuizPacket.Creator.parsePacket(byte1);
 
-        LinkedList<QuizPlayer> listA = (LinkedList<QuizPlayer>) packet1.getPayload(PayloadKey.PlayerList);
-        LinkedList<QuizPlayer> listB = (LinkedList<QuizPlayer>) packet2.getPayload(PayloadKey.PlayerList);
+        ArrayList<QuizPlayer> listA = (ArrayList<QuizPlayer>) packet1.getPayload(PayloadKey.PlayerList);
+        ArrayList<QuizPlayer> listB = (ArrayList<QuizPlayer>) packet2.getPayload(PayloadKey.PlayerList);
 
         Assert.assertTrue(packet1.getType() == packet2.getType());
 
@@ -45,4 +53,89 @@ public class QuizPacketTest {
         Assert.assertTrue(playerA1.getId().equals(playerB1.getId()));
     }
 
+    @Test
+    public void roundTripAllTypes() {
+        ArrayList<QuizPlayer> roster = new ArrayList<>();
+        roster.add(new QuizPlayer("Player1", 2));
+        roster.add(new QuizPlayer("Player2", 130));
+        ArrayList<QuizPlayer> changed = new ArrayList<>();
+        changed.add(roster.get(1));
+        ArrayList<QuizPlayer> ranking = new ArrayList<>();
+        ranking.add(roster.get(1));
+        ranking.add(roster.get(0));
+        byte[] question = QuizPacket.Creator.question("問題文").getBytes();
+        List<byte[]> batched = Arrays.asList(
+                QuizPacket.Creator.playerAnswered(1).getBytes(), question);
+
+        List<QuizPacket> packets = Arrays.asList(
+                QuizPacket.Creator.playerId("Player1", 0x0123456789ABCDEFL, -1L, false),
+                QuizPacket.Creator.playerChanged(roster),
+                QuizPacket.Creator.question("問題文"),
+                QuizPacket.Creator.playerAnswered(1),
+                QuizPacket.Creator.answer(AnswerChoice.B),
+                QuizPacket.Creator.correctAnswer(AnswerChoice.D),
+                QuizPacket.Creator.playersState(7, roster),
+                QuizPacket.Creator.playerDisconnected(0),
+                QuizPacket.Creator.result(roster, ranking),
+                QuizPacket.Creator.playersStateDelta(8, roster, changed),
+                QuizPacket.Creator.keyframeRequest(),
+                QuizPacket.Creator.batch(batched),
+                QuizPacket.Creator.compressedQuestion(300, new byte[] {1, 2, 3}),
+                QuizPacket.Creator.questionBankEntry(4, question),
+                QuizPacket.Creator.questionIndex(4),
+                QuizPacket.Creator.resume(0x0123456789ABCDEFL, 3),
+                QuizPacket.Creator.catchUp(9, -1, 0x02, new int[] {2, 130}),
+                QuizPacket.Creator.routeControl(PacketType.Join, 200),
+                QuizPacket.Creator.routeControl(PacketType.Leave, 200),
+                QuizPacket.Creator.routed(200, question));
+
+        EnumSet<PacketType> covered = EnumSet.noneOf(PacketType.class);
+        for (QuizPacket packet : packets) {
+            byte[] bytes = packet.getBytes();
+            Assert.assertEquals(packet.getType().toString(), bytes.length, packet.getEncodedSize());
+            QuizPacket parsed = QuizPacket.Creator.parsePacket(bytes, roster);
+            Assert.assertTrue(packet.getType() == parsed.getType());
+            Assert.assertEquals(bytes.length, parsed.getEncodedSize());
+            Assert.assertArrayEquals(packet.getType().toString(), bytes, parsed.getBytes());
+            covered.add(packet.getType());
+        }
+        Assert.assertEquals(EnumSet.allOf(PacketType.class), covered);
+    }
+
+    @Test
+    public void reencodeParsedPlayersState() {
+        ArrayList<QuizPlayer> roster = new ArrayList<>();
+        roster.add(new QuizPlayer("Player1"));
+        roster.add(new QuizPlayer("Player2"));
+        ArrayList<QuizPlayer> scored = new ArrayList<>();
+        scored.add(new QuizPlayer("Player1", 5));
+        scored.add(new QuizPlayer("Player2", 6));
+        byte[] bytes = QuizPacket.Creator.playersState(3, scored).getBytes();
+
+        // 受信側の参加者表は得点が古く、別のインスタンスでも再符号化できる
+        QuizPacket parsed = QuizPacket.Creator.parsePacket(bytes, roster);
+        Assert.assertArrayEquals(bytes, parsed.getBytes());
+    }
+
+    @Test
+    public void embeddedPackets() {
+        byte[] question = QuizPacket.Creator.question("問題文").getBytes();
+        QuizPacket entry = QuizPacket.Creator.parsePacket(
+                QuizPacket.Creator.questionBankEntry(2, question).getBytes());
+        Assert.assertEquals(2, entry.getQuestionIndex());
+        Assert.assertArrayEquals(question, entry.getInnerPacket());
+
+        QuizPacket routed = QuizPacket.Creator.parsePacket(
+                QuizPacket.Creator.routed(5, question).getBytes());
+        Assert.assertEquals(5, routed.getRouteId());
+        Assert.assertArrayEquals(question, routed.getInnerPacket());
+
+        byte[] answer = QuizPacket.Creator.answer(AnswerChoice.A).getBytes();
+        QuizPacket batch = QuizPacket.Creator.parsePacket(
+                QuizPacket.Creator.batch(Arrays.asList(answer, question)).getBytes());
+        Assert.assertEquals(2, batch.getPackets().size());
+        Assert.assertArrayEquals(answer, batch.getPackets().get(0));
+        Assert.assertArrayEquals(question, batch.getPackets().get(1));
+    }
+
 }
\ No newline at end of file
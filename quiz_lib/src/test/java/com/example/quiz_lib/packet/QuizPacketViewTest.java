@@ -0,0 +1,254 @@
+package com.example.quiz_lib.packet;
+
+import com.example.quiz_lib.Question.AnswerChoice;
+import com.example.quiz_lib.QuizPlayer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+public class QuizPacketViewTest {
+    @Test
+    public void question() {
+        String text = "神奈川県の県庁所在地は？\n\nA:川崎市\nB:鎌倉市\nC:町田市\nD:横浜市";
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        int written = QuizPacketEncoder.question(buffer, text);
+        Assert.assertEquals(QuizPacketEncoder.sizeOfQuestion(text), written);
+        buffer.flip();
+
+        QuizPacketView view = new QuizPacketView().wrap(buffer);
+        Assert.assertTrue(PacketType.Question == view.getType());
+        Assert.assertEquals(text, view.getQuestionText());
+        Assert.assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void playersState() {
+        ArrayList<QuizPlayer> playerList = new ArrayList<>();
+        playerList.add(new QuizPlayer("Player1", 3));
+        playerList.add(new QuizPlayer("Player2", 1));
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        QuizPacketEncoder.playersState(buffer, 5, playerList);
+        buffer.flip();
+
+        QuizPacketView view = new QuizPacketView().wrap(buffer);
+        Assert.assertEquals(5, view.getSequence());
+        Assert.assertEquals(2, view.getPlayerCount());
+        Assert.assertEquals(0, view.getSlot(0));
+        Assert.assertEquals(3, view.getCorrectAnswerPoint(0));
+        Assert.assertEquals(1, view.getSlot(1));
+        Assert.assertEquals(1, view.getCorrectAnswerPoint(1));
+        // スロット番号と得点で1人2バイト
+        Assert.assertEquals(1 + 1 + 1 + (2 * 2), buffer.remaining());
+    }
+
+    @Test
+    public void playersStateDelta() {
+        ArrayList<QuizPlayer> roster = new ArrayList<>();
+        roster.add(new QuizPlayer("Player1", 2));
+        roster.add(new QuizPlayer("Player2", 0));
+        roster.add(new QuizPlayer("Player3", 4));
+        ArrayList<QuizPlayer> changed = new ArrayList<>();
+        changed.add(roster.get(2));
+        byte[] data = QuizPacket.Creator.playersStateDelta(300, roster, changed).getBytes();
+
+        QuizPacketView view = new QuizPacketView().wrap(ByteBuffer.wrap(data));
+        Assert.assertTrue(PacketType.PlayersStateDelta == view.getType());
+        Assert.assertEquals(300, view.getSequence());
+        Assert.assertEquals(1, view.getPlayerCount());
+        Assert.assertEquals(2, view.getSlot(0));
+        Assert.assertEquals(4, view.getCorrectAnswerPoint(0));
+        // 種別 + 通番(2バイト) + 件数 + 1人分
+        Assert.assertEquals(1 + 2 + 1 + 2, data.length);
+    }
+
+    @Test
+    public void rosterWithLongId() {
+        ArrayList<QuizPlayer> roster = new ArrayList<>();
+        roster.add(new QuizPlayer("Player9"));
+        roster.add(new QuizPlayer("Player10"));
+        roster.add(new QuizPlayer("Player100"));
+        byte[] data = QuizPacket.Creator.playerChanged(roster).getBytes();
+
+        QuizPacketView view = new QuizPacketView().wrap(ByteBuffer.wrap(data));
+        Assert.assertEquals(3, view.getPlayerCount());
+        Assert.assertEquals("Player9", view.getPlayerId(0));
+        Assert.assertEquals("Player10", view.getPlayerId(1));
+        Assert.assertEquals("Player100", view.getPlayerId(2));
+    }
+
+    @Test
+    public void resultResolvedByRoster() {
+        ArrayList<QuizPlayer> roster = new ArrayList<>();
+        roster.add(new QuizPlayer("Player1", 1));
+        roster.add(new QuizPlayer("Player12", 200));
+        ArrayList<QuizPlayer> ranking = new ArrayList<>();
+        ranking.add(roster.get(1));
+        ranking.add(roster.get(0));
+        byte[] data = QuizPacket.Creator.result(roster, ranking).getBytes();
+
+        ArrayList<QuizPlayer> parsed =
+                QuizPacket.Creator.parsePacket(data, roster).getPlayerList();
+        Assert.assertEquals(2, parsed.size());
+        Assert.assertEquals("Player12", parsed.get(0).getId());
+        Assert.assertEquals(200, parsed.get(0).getCorrectAnswerPoint());
+        Assert.assertEquals("Player1", parsed.get(1).getId());
+        Assert.assertEquals(1, parsed.get(1).getCorrectAnswerPoint());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pointsWithoutRoster() {
+        ArrayList<QuizPlayer> roster = new ArrayList<>();
+        roster.add(new QuizPlayer("Player1"));
+        QuizPacket.Creator.parsePacket(QuizPacket.Creator.playersState(1, roster).getBytes());
+    }
+
+    @Test
+    public void reuseViewAtOffset() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        QuizPacketEncoder.answer(buffer, AnswerChoice.C);
+        int second = buffer.position();
+        QuizPacketEncoder.playerAnswered(buffer, 2);
+
+        QuizPacketView view = new QuizPacketView();
+        ByteBuffer first = buffer.duplicate();
+        first.position(0).limit(second);
+        view.wrap(first);
+        Assert.assertTrue(AnswerChoice.C == view.getChoice());
+
+        ByteBuffer next = buffer.duplicate();
+        next.position(second).limit(buffer.position());
+        view.wrap(next);
+        Assert.assertTrue(PacketType.PlayerAnswered == view.getType());
+        Assert.assertEquals(2, view.getPlayerNum());
+    }
+
+    @Test
+    public void matchesQuizPacket() {
+        QuizPacket packet = QuizPacket.Creator.correctAnswer(AnswerChoice.D);
+        ByteBuffer buffer = ByteBuffer.allocate(packet.getEncodedSize());
+        packet.encodeTo(buffer);
+        Assert.assertArrayEquals(packet.getBytes(), buffer.array());
+    }
+
+    @Test
+    public void batch() {
+        ArrayList<byte[]> packets = new ArrayList<>();
+        packets.add(QuizPacket.Creator.playerAnswered(1).getBytes());
+        packets.add(QuizPacket.Creator.correctAnswer(AnswerChoice.B).getBytes());
+        byte[] data = new byte[QuizPacketEncoder.sizeOfBatch(packets)];
+        QuizPacketEncoder.batch(ByteBuffer.wrap(data), packets);
+
+        QuizPacketView view = new QuizPacketView().wrap(ByteBuffer.wrap(data));
+        Assert.assertTrue(PacketType.Batch == view.getType());
+        Assert.assertEquals(2, view.getEntryCount());
+        QuizPacketView entry = new QuizPacketView();
+        view.wrapEntry(0, entry);
+        Assert.assertTrue(PacketType.PlayerAnswered == entry.getType());
+        Assert.assertEquals(1, entry.getPlayerNum());
+        view.wrapEntry(1, entry);
+        Assert.assertTrue(PacketType.CorrectAnswer == entry.getType());
+        Assert.assertTrue(AnswerChoice.B == entry.getChoice());
+    }
+
+    @Test
+    public void questionBankEntry() {
+        String text = "神奈川県の県庁所在地は？";
+        byte[] question = QuizPacket.Creator.question(text).getBytes();
+        byte[] data = new byte[QuizPacketEncoder.sizeOfQuestionBankEntry(200, question)];
+        QuizPacketEncoder.questionBankEntry(ByteBuffer.wrap(data), 200, question);
+
+        QuizPacketView view = new QuizPacketView().wrap(ByteBuffer.wrap(data));
+        Assert.assertTrue(PacketType.QuestionBankEntry == view.getType());
+        Assert.assertEquals(200, view.getQuestionIndex());
+        QuizPacketView entry = view.wrapQuestion(new QuizPacketView());
+        Assert.assertTrue(PacketType.Question == entry.getType());
+        Assert.assertEquals(text, entry.getQuestionText());
+    }
+
+    @Test
+    public void questionIndex() {
+        byte[] data = QuizPacket.Creator.questionIndex(5).getBytes();
+        // 種別 + 問題番号1バイト
+        Assert.assertEquals(2, data.length);
+        Assert.assertEquals(5, QuizPacket.Creator.parsePacket(data).getQuestionIndex());
+    }
+
+    @Test
+    public void playerId() {
+        byte[] data = QuizPacket.Creator.playerId("Player3", 5L, 6L, false).getBytes();
+        // 種別 + 再開トークン + 部屋の識別子 + 中継の可否 + プレイヤーID
+        Assert.assertEquals(1 + 8 + 8 + 1 + 7, data.length);
+        QuizPacketView view = new QuizPacketView().wrap(ByteBuffer.wrap(data));
+        Assert.assertTrue(PacketType.PlayerId == view.getType());
+        Assert.assertEquals(5L, view.getResumeToken());
+        Assert.assertEquals(6L, view.getRoomId());
+        Assert.assertFalse(view.isRelayable());
+        Assert.assertEquals("Player3", view.getPlayerId());
+    }
+
+    @Test
+    public void resume() {
+        byte[] data = QuizPacket.Creator.resume(-2L, 130).getBytes();
+        // 種別 + 再開トークン + 問題数(130は2バイト)
+        Assert.assertEquals(1 + 8 + 2, data.length);
+        QuizPacketView view = new QuizPacketView().wrap(ByteBuffer.wrap(data));
+        Assert.assertTrue(PacketType.Resume == view.getType());
+        Assert.assertEquals(-2L, view.getResumeToken());
+        Assert.assertEquals(130, view.getCachedCount());
+    }
+
+    @Test
+    public void catchUp() {
+        int[] points = {3, 0, 200};
+        byte[] data = QuizPacket.Creator.catchUp(7, 4, 0x05, points).getBytes();
+        // 種別 + 通番・問題番号・回答済み・件数各1バイト + 得点(200のみ2バイト)
+        Assert.assertEquals(1 + 4 + 1 + 1 + 2, data.length);
+
+        QuizPacketView view = new QuizPacketView().wrap(ByteBuffer.wrap(data));
+        Assert.assertTrue(PacketType.CatchUp == view.getType());
+        Assert.assertEquals(7, view.getSequence());
+        Assert.assertEquals(4, view.getCurrentQuestionIndex());
+        Assert.assertEquals(0x05, view.getAnsweredMask());
+        Assert.assertEquals(3, view.getPlayerCount());
+        Assert.assertEquals(3, view.getPoint(0));
+        Assert.assertEquals(0, view.getPoint(1));
+        Assert.assertEquals(200, view.getPoint(2));
+        // 読み戻しても、包み直しても正しい位置から読む
+        Assert.assertEquals(0, view.getPoint(1));
+        view.wrap(data);
+        Assert.assertEquals(200, view.getPoint(2));
+        Assert.assertEquals(3, view.getPoint(0));
+
+        // 回答受付中で無い
+        data = QuizPacket.Creator.catchUp(0, -1, 0, new int[0]).getBytes();
+        QuizPacket packet = QuizPacket.Creator.parsePacket(data);
+        Assert.assertEquals(-1, packet.getQuestionIndex());
+        Assert.assertEquals(0, packet.getPoints().length);
+    }
+
+    @Test
+    public void routed() {
+        byte[] join = QuizPacket.Creator.routeControl(PacketType.Join, 3).getBytes();
+        Assert.assertEquals(2, join.length);
+        QuizPacket packet = QuizPacket.Creator.parsePacket(join);
+        Assert.assertTrue(PacketType.Join == packet.getType());
+        Assert.assertEquals(3, packet.getRouteId());
+
+        byte[] inner = QuizPacket.Creator.answer(AnswerChoice.A).getBytes();
+        byte[] data = new byte[QuizPacketEncoder.sizeOfRouted(200, inner)];
+        QuizPacketEncoder.routed(ByteBuffer.wrap(data), 200, inner);
+        // 種別 + 経路番号2バイト + 中のパケット
+        Assert.assertEquals(1 + 2 + inner.length, data.length);
+
+        QuizPacketView view = new QuizPacketView().wrap(ByteBuffer.wrap(data));
+        Assert.assertTrue(PacketType.Routed == view.getType());
+        Assert.assertEquals(200, view.getRouteId());
+        QuizPacketView routed = view.wrapRouted(new QuizPacketView());
+        Assert.assertTrue(PacketType.Answer == routed.getType());
+        Assert.assertTrue(AnswerChoice.A == routed.getChoice());
+        Assert.assertArrayEquals(inner, routed.toBytes());
+    }
+}
@@ -0,0 +1,66 @@
+package com.sky.hori_t.util;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.EnumMap;
+
+/**
+ * ライブラリ全体で共有するイベントループです。<br>
+ * 部品毎にスレッドを作らず、役割毎に決まった数のループへ割り当てます。
+ * ループは最初に使われた時に開始し、{@link #shutdown()}まで使い回します。
+ * 終了後に再び使われた場合は開始し直します。
+ */
+public class EventLoopScheduler {
+    public enum Loop {
+        // BLE通信
+        Io,
+        // クイズの進行
+        Game,
+        // 呼び出し元がルーパーを指定しなかった場合のコールバック
+        Callback,
+    }
+
+    @NonNull
+    private static final EventLoopScheduler sInstance = new EventLoopScheduler();
+
+    @NonNull
+    private final EnumMap<Loop, HandlerThread> mThreads = new EnumMap<>(Loop.class);
+
+    private EventLoopScheduler() {
+    }
+
+    @NonNull
+    public static EventLoopScheduler getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * 役割に割り当てたループのルーパーを返します。開始していなければ開始します。<br>
+     * 同じループを使う部品同士は、互いのスレッドを待つ呼び出し(Mutex)をしないでください。
+     * @param loop  役割
+     * @return  ルーパー
+     */
+    @NonNull
+    public synchronized Looper getLooper(@NonNull Loop loop) {
+        HandlerThread thread = mThreads.get(loop);
+        if (null == thread) {
+            thread = new HandlerThread(getClass().getSimpleName() + loop);
+            thread.start();
+            mThreads.put(loop, thread);
+        }
+        return thread.getLooper();
+    }
+
+    /**
+     * 全てのループを終了します。積まれている処理を実行してから終了します。<br>
+     * 通信の切断処理が残らないよう、アプリの終了時に呼び出してください。
+     */
+    public synchronized void shutdown() {
+        for (HandlerThread thread : mThreads.values()) {
+            thread.quitSafely();
+        }
+        mThreads.clear();
+    }
+}
@@ -0,0 +1,140 @@
+package com.sky.hori_t.util;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 遷移表で許した遷移のみ行う状態機械です。<br>
+ * 状態はどのスレッドからでも待たずに読めます。遷移は所有スレッドからのみ行えます。
+ * 状態毎の滞在時間を積算します。
+ * @param <S>   状態の列挙型
+ */
+public class StateMachine<S extends Enum<S>> {
+    public interface Clock {
+        /**
+         * @return  現在時刻(ms)。単調増加であること
+         */
+        long nowMs();
+    }
+
+    @NonNull
+    private final EnumMap<S, EnumSet<S>> mTransitions;
+    @NonNull
+    private final Class<S> mStateClass;
+    // 遷移できるスレッド。nullなら確認しない
+    @Nullable
+    private final Thread mOwner;
+    @NonNull
+    private final Clock mClock;
+    @NonNull
+    private volatile S mState;
+    private volatile long mEnteredAtMs;
+    // 状態毎の滞在時間(ms)。添字は状態の序数。現在の状態の滞在分は含まない
+    @NonNull
+    private final AtomicLongArray mDwellTimeMs;
+
+    /**
+     * @param stateClass    状態の列挙型
+     * @param initialState  初期状態
+     * @param owner         遷移できるスレッド。nullなら確認しない
+     */
+    public StateMachine(
+            @NonNull Class<S> stateClass, @NonNull S initialState, @Nullable Thread owner) {
+        this(stateClass, initialState, owner, SystemClock::elapsedRealtime);
+    }
+
+    public StateMachine(
+            @NonNull Class<S> stateClass,
+            @NonNull S initialState,
+            @Nullable Thread owner,
+            @NonNull Clock clock) {
+        mStateClass = stateClass;
+        mTransitions = new EnumMap<>(stateClass);
+        mOwner = owner;
+        mClock = clock;
+        mState = initialState;
+        mEnteredAtMs = clock.nowMs();
+        mDwellTimeMs = new AtomicLongArray(stateClass.getEnumConstants().length);
+    }
+
+    /**
+     * 遷移を許します。使い始める前に全て宣言してください。
+     * @param from  遷移元
+     * @param to    遷移先
+     * @return  このインスタンス
+     */
+    @SafeVarargs
+    @NonNull
+    public final StateMachine<S> allow(@NonNull S from, @NonNull S... to) {
+        EnumSet<S> targets = mTransitions.get(from);
+        if (null == targets) {
+            targets = EnumSet.noneOf(mStateClass);
+            mTransitions.put(from, targets);
+        }
+        for (S state : to) {
+            targets.add(state);
+        }
+        return this;
+    }
+
+    /**
+     * @return  現在の状態
+     */
+    @NonNull
+    public S get() {
+        return mState;
+    }
+
+    /**
+     * @param next  遷移先
+     * @return  true: 現在の状態から遷移できる。同じ状態への遷移は常に許す
+     */
+    public boolean canMoveTo(@NonNull S next) {
+        S state = mState;
+        if (state == next) {
+            return true;
+        }
+        EnumSet<S> targets = mTransitions.get(state);
+        return (null != targets) && targets.contains(next);
+    }
+
+    /**
+     * 状態を遷移します。同じ状態への遷移は何もしません。
+     * @param next  遷移先
+     * @throws IllegalStateException    所有スレッド以外から呼び出した場合か、許していない遷移の場合に投げられます。
+     */
+    public void moveTo(@NonNull S next) throws IllegalStateException {
+        if ((null != mOwner) && (Thread.currentThread() != mOwner)) {
+            throw new IllegalStateException("Bad thread.");
+        }
+        S state = mState;
+        if (state == next) {
+            return;
+        }
+        if (!canMoveTo(next)) {
+            throw new IllegalStateException("Bad transition. " + state + " -> " + next);
+        }
+        long nowMs = mClock.nowMs();
+        mDwellTimeMs.addAndGet(state.ordinal(), nowMs - mEnteredAtMs);
+        mEnteredAtMs = nowMs;
+        mState = next;
+    }
+
+    /**
+     * 状態の滞在時間の合計を返します。現在の状態であれば、今回の滞在分も含めます。
+     * @param state 状態
+     * @return  滞在時間(ms)
+     */
+    public long getDwellTimeMs(@NonNull S state) {
+        long dwellTimeMs = mDwellTimeMs.get(state.ordinal());
+        if (state == mState) {
+            dwellTimeMs += mClock.nowMs() - mEnteredAtMs;
+        }
+        return dwellTimeMs;
+    }
+}
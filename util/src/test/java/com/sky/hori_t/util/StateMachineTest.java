@@ -0,0 +1,58 @@
+package com.sky.hori_t.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StateMachineTest {
+    private enum State {
+        Stopped,
+        Running,
+        Finished,
+    }
+
+    private long mNowMs = 0;
+
+    private StateMachine<State> create(Thread owner) {
+        return new StateMachine<>(State.class, State.Stopped, owner, () -> mNowMs)
+                .allow(State.Stopped, State.Running)
+                .allow(State.Running, State.Stopped, State.Finished);
+    }
+
+    @Test
+    public void declaredTransitions() {
+        StateMachine<State> stateMachine = create(null);
+        Assert.assertEquals(State.Stopped, stateMachine.get());
+        Assert.assertFalse(stateMachine.canMoveTo(State.Finished));
+        Assert.assertTrue(stateMachine.canMoveTo(State.Stopped));
+        stateMachine.moveTo(State.Running);
+        stateMachine.moveTo(State.Running);
+        stateMachine.moveTo(State.Finished);
+        Assert.assertTrue(State.Finished == stateMachine.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void undeclaredTransition() {
+        create(null).moveTo(State.Finished);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void otherThread() {
+        create(new Thread()).moveTo(State.Running);
+    }
+
+    @Test
+    public void dwellTime() {
+        StateMachine<State> stateMachine = create(Thread.currentThread());
+        mNowMs = 100;
+        stateMachine.moveTo(State.Running);
+        mNowMs = 130;
+        stateMachine.moveTo(State.Stopped);
+        mNowMs = 150;
+        stateMachine.moveTo(State.Running);
+        mNowMs = 160;
+        Assert.assertEquals(120, stateMachine.getDwellTimeMs(State.Stopped));
+        // 現在の状態は今回の滞在分も含む
+        Assert.assertEquals(40, stateMachine.getDwellTimeMs(State.Running));
+        Assert.assertEquals(0, stateMachine.getDwellTimeMs(State.Finished));
+    }
+}